@@ -0,0 +1,97 @@
+package se.rosenbaum.jpop.benchmark;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.Wallet;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.ScriptBuilder;
+import se.rosenbaum.jpop.Pop;
+import se.rosenbaum.jpop.validate.TransactionStore;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Deterministic test data for the benchmarks: a payment with a chosen number of P2PKH inputs, the transactions it
+ * spends, the keys owning them and a signed pop of the payment. The keys are derived from fixed private keys and
+ * signing is deterministic (RFC 6979), so every run works on byte-identical data.
+ */
+class Fixtures {
+    static final NetworkParameters PARAMS = UnitTestParams.get();
+    static final byte[] NONCE = new byte[] {1, 2, 3, 4, 5, 6};
+
+    final List<ECKey> keys = new ArrayList<ECKey>();
+    final List<Transaction> fundingTransactions = new ArrayList<Transaction>();
+    final Map<Sha256Hash, Transaction> transactions = new HashMap<Sha256Hash, Transaction>();
+    final Transaction payment;
+    final Pop signedPop;
+    final byte[] signedPopBytes;
+
+    Fixtures(int inputs) {
+        ECKey receiver = ECKey.fromPrivate(BigInteger.valueOf(999));
+        payment = new Transaction(PARAMS);
+        for (int i = 0; i < inputs; i++) {
+            ECKey key = ECKey.fromPrivate(BigInteger.valueOf(1000 + i));
+            keys.add(key);
+            Transaction funding = new Transaction(PARAMS);
+            // The script only makes each funding transaction unique
+            funding.addInput(new TransactionInput(PARAMS, funding, new byte[] {(byte) (i >> 8), (byte) i}));
+            funding.addOutput(Coin.COIN, key.toAddress(PARAMS));
+            fundingTransactions.add(funding);
+            transactions.put(funding.getHash(), funding);
+            payment.addInput(funding.getOutput(0));
+        }
+        payment.addOutput(Coin.COIN.multiply(inputs).subtract(Coin.MILLICOIN), receiver.toAddress(PARAMS));
+        // Stored unconnected, like a transaction read from a database
+        transactions.put(payment.getHash(), new Transaction(PARAMS, payment.bitcoinSerialize()));
+
+        signedPop = newUnsignedPop();
+        sign(signedPop);
+        signedPopBytes = signedPop.bitcoinSerialize();
+    }
+
+    /**
+     * @return an unsigned pop of the payment with all inputs connected, ready to be signed.
+     */
+    Pop newUnsignedPop() {
+        Pop pop = new Pop(PARAMS, payment.bitcoinSerialize(), NONCE);
+        for (int i = 0; i < pop.getInputs().size(); i++) {
+            pop.getInput(i).connect(fundingTransactions.get(i), TransactionInput.ConnectMode.ABORT_ON_CONFLICT);
+        }
+        return pop;
+    }
+
+    void sign(Pop pop) {
+        for (int i = 0; i < pop.getInputs().size(); i++) {
+            ECKey key = keys.get(i);
+            TransactionSignature signature = pop.calculateSignature(i, key,
+                    fundingTransactions.get(i).getOutput(0).getScriptPubKey(), Transaction.SigHash.ALL, false);
+            pop.getInput(i).setScriptSig(ScriptBuilder.createInputScript(signature, key));
+        }
+    }
+
+    /**
+     * @return a wallet holding the keys of all inputs.
+     */
+    Wallet newWallet() {
+        Wallet wallet = new Wallet(PARAMS);
+        wallet.importKeys(keys);
+        return wallet;
+    }
+
+    TransactionStore transactionStore() {
+        return new TransactionStore() {
+            public Transaction getTransaction(Sha256Hash txid) {
+                return transactions.get(txid);
+            }
+        };
+    }
+}
@@ -0,0 +1,91 @@
+package se.rosenbaum.jpop.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import se.rosenbaum.jpop.PopRequest;
+import se.rosenbaum.jpop.PopRequestURI;
+import se.rosenbaum.jpop.generate.HttpPopSender;
+import se.rosenbaum.jpop.generate.PopSender;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sending a signed pop with HttpPopSender to a stub on localhost that reads the pop and replies "valid". This measures
+ * the sender and the loopback connection, not validation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpPopSenderBenchmark {
+    private static final byte[] VALID = "valid".getBytes(StandardCharsets.US_ASCII);
+
+    private Fixtures fixtures;
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private PopRequestURI popRequestURI;
+
+    @Setup
+    public void setup() throws IOException {
+        fixtures = new Fixtures(1);
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 128);
+        server.createContext("/pop", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                byte[] buffer = new byte[4096];
+                while (in.read(buffer) != -1) {
+                    // Discard the pop
+                }
+                exchange.sendResponseHeaders(200, VALID.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(VALID);
+                out.close();
+            }
+        });
+        serverExecutor = Executors.newFixedThreadPool(4);
+        server.setExecutor(serverExecutor);
+        server.start();
+
+        PopRequest popRequest = new PopRequest();
+        popRequest.setNonce(Fixtures.NONCE);
+        popRequest.setDestination("http://localhost:" + server.getAddress().getPort() + "/pop");
+        popRequestURI = new PopRequestURI(popRequest);
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop(0);
+        serverExecutor.shutdown();
+    }
+
+    @Benchmark
+    public PopSender.Result sendPop() {
+        HttpPopSender sender = new HttpPopSender(popRequestURI);
+        sender.sendPop(fixtures.signedPop);
+        if (sender.getResult() != PopSender.Result.OK) {
+            throw new IllegalStateException("Unexpected result: " + sender.getResult() + " " + sender.errorMessage());
+        }
+        return sender.getResult();
+    }
+}
@@ -0,0 +1,50 @@
+package se.rosenbaum.jpop.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.rosenbaum.jpop.Pop;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Construction of a Pop with each constructor: parsing a received pop and turning a payment into an unsigned pop.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PopBenchmark {
+    @Param({"1", "10", "200"})
+    public int inputs;
+
+    private byte[] paymentBytes;
+    private byte[] popBytes;
+
+    @Setup
+    public void setup() {
+        Fixtures fixtures = new Fixtures(inputs);
+        paymentBytes = fixtures.payment.bitcoinSerialize();
+        popBytes = fixtures.signedPopBytes;
+    }
+
+    @Benchmark
+    public Pop parsePop() {
+        return new Pop(Fixtures.PARAMS, popBytes);
+    }
+
+    @Benchmark
+    public Pop popFromPayment() {
+        return new Pop(Fixtures.PARAMS, paymentBytes, Fixtures.NONCE);
+    }
+}
@@ -0,0 +1,68 @@
+package se.rosenbaum.jpop.benchmark;
+
+import org.bitcoinj.core.Wallet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.rosenbaum.jpop.Pop;
+import se.rosenbaum.jpop.generate.PopGenerationException;
+import se.rosenbaum.jpop.generate.PopGenerator;
+import se.rosenbaum.jpop.generate.PopSigningException;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creation and signing of a pop with 1, 10 and 200 inputs. The wallet skips inputs that are already signed, so
+ * signPop creates a fresh pop for each signing; subtract createPop to get the signing alone. signPopInParallel signs
+ * the inputs on the common ForkJoinPool, see PopGenerator.setSigningExecutor.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PopGeneratorBenchmark {
+    @Param({"1", "10", "200"})
+    public int inputs;
+
+    private final PopGenerator popGenerator = new PopGenerator();
+    private final PopGenerator parallelPopGenerator = new PopGenerator();
+    private Fixtures fixtures;
+    private Wallet wallet;
+
+    @Setup
+    public void setup() {
+        fixtures = new Fixtures(inputs);
+        wallet = fixtures.newWallet();
+        parallelPopGenerator.setSigningExecutor(ForkJoinPool.commonPool(), 2);
+    }
+
+    @Benchmark
+    public Pop createPop() throws PopGenerationException {
+        return popGenerator.createPop(fixtures.payment, Fixtures.NONCE);
+    }
+
+    @Benchmark
+    public Pop signPop() throws PopGenerationException, PopSigningException {
+        Pop pop = popGenerator.createPop(fixtures.payment, Fixtures.NONCE);
+        popGenerator.signPop(pop, wallet, null);
+        return pop;
+    }
+
+    @Benchmark
+    public Pop signPopInParallel() throws PopGenerationException, PopSigningException {
+        Pop pop = parallelPopGenerator.createPop(fixtures.payment, Fixtures.NONCE);
+        parallelPopGenerator.signPop(pop, wallet, null);
+        return pop;
+    }
+}
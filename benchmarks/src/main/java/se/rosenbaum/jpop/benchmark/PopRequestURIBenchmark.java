@@ -0,0 +1,65 @@
+package se.rosenbaum.jpop.benchmark;
+
+import org.bitcoinj.core.Coin;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.rosenbaum.jpop.PopRequest;
+import se.rosenbaum.jpop.PopRequestURI;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and formatting of pop request URIs. The label and message are percent encoded, so the ascii and emoji
+ * variants exercise the cheap and the expensive paths of the URI encoding and decoding.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PopRequestURIBenchmark {
+    @Param({"ascii", "emoji"})
+    public String text;
+
+    private PopRequestURI popRequestURI;
+    private String uriString;
+
+    @Setup
+    public void setup() {
+        Fixtures fixtures = new Fixtures(1);
+        PopRequest popRequest = new PopRequest();
+        popRequest.setNonce(Fixtures.NONCE);
+        popRequest.setDestination("https://www.example.com/pop/1234");
+        popRequest.setTxid(fixtures.payment.getHash());
+        popRequest.setAmount(Coin.valueOf(1, 50));
+        if ("ascii".equals(text)) {
+            popRequest.setLabel("Concert ticket, row 12");
+            popRequest.setMessage("Show this at the entrance");
+        } else {
+            popRequest.setLabel("\uD83C\uDFB5 Concert ticket \uD83C\uDFAB row 12");
+            popRequest.setMessage("Show this at the entrance \uD83D\uDE00\uD83D\uDE00\uD83D\uDE00");
+        }
+        popRequestURI = new PopRequestURI(popRequest);
+        uriString = popRequestURI.toURIString();
+    }
+
+    @Benchmark
+    public PopRequestURI parse() {
+        return new PopRequestURI(uriString);
+    }
+
+    @Benchmark
+    public String toURIString() {
+        return popRequestURI.toURIString();
+    }
+}
@@ -0,0 +1,55 @@
+package se.rosenbaum.jpop.benchmark;
+
+import org.bitcoinj.core.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.rosenbaum.jpop.Pop;
+import se.rosenbaum.jpop.validate.InvalidPopException;
+import se.rosenbaum.jpop.validate.PopValidator;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Validation of a signed pop with 1, 10 and 200 inputs.
+ * <p>
+ * validatePop validates the same parsed pop over and over. validateReceivedPop parses the raw pop first, as a
+ * receiver does for each pop, and is the one to compare with real-world throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PopValidatorBenchmark {
+    @Param({"1", "10", "200"})
+    public int inputs;
+
+    private Fixtures fixtures;
+    private PopValidator popValidator;
+
+    @Setup
+    public void setup() {
+        fixtures = new Fixtures(inputs);
+        popValidator = new PopValidator(fixtures.transactionStore());
+    }
+
+    @Benchmark
+    public Transaction validatePop() throws InvalidPopException {
+        return popValidator.validatePop(fixtures.signedPop, Fixtures.NONCE);
+    }
+
+    @Benchmark
+    public Transaction validateReceivedPop() throws InvalidPopException {
+        return popValidator.validatePop(new Pop(Fixtures.PARAMS, fixtures.signedPopBytes), Fixtures.NONCE);
+    }
+}
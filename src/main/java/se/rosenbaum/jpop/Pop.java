@@ -6,6 +6,7 @@ import org.bitcoinj.core.ProtocolException;
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
 import org.bitcoinj.core.TransactionOutput;
 import org.bitcoinj.script.ScriptOpCodes;
 
@@ -15,7 +16,7 @@ import java.nio.ByteBuffer;
  * This is the central data structure as described in BIP120. It is a subclass of Transaction because
  * it has the exact same format as a transaction, but it's not supposed to ever appear on the bitcoin p2p network.
  *
- * There are two constructors. One for the proving party, generating the PoP, and one for the validating party.
+ * There are constructors for the proving party, generating the PoP, and one for the validating party.
  */
 public class Pop extends Transaction {
     private static final int POP_LOCK_TIME = 499999999;
@@ -42,12 +43,7 @@ public class Pop extends Transaction {
      */
     public Pop(NetworkParameters params, byte[] payloadBytes, byte[] nonce) {
         this(params, payloadBytes); // This will create a copy of the transaction to prove
-        if (nonce == null) {
-            throw new IllegalArgumentException("Nonce must not be null.");
-        }
-        if (nonce.length != NONCE_LENGTH) {
-            throw new IllegalArgumentException("Nonce length " + nonce.length + " illegal. Expected " + NONCE_LENGTH + " bytes");
-        }
+        checkNonce(nonce);
         Sha256Hash txidToProve = getHash(); // Remember the hash of the transaction to prove
 
         // Now, PoPify this "transaction". Set lock_time and sequence numbers, keep all the inputs, replace all outputs
@@ -61,7 +57,61 @@ public class Pop extends Transaction {
             input.setSequenceNumber(POP_SEQ_NR);
         }
         clearOutputs();
+        addPopOutput(txidToProve, nonce);
+    }
+
+    /**
+     * This constructor is intended for the PoP generating party, like the one taking the raw transaction, but it
+     * builds the PoP directly from the transaction instead of parsing a serialized copy of it. Only the inputs are
+     * copied, and the txid is taken from the transaction, so its outputs are never serialized or hashed again.
+     * Inputs that are connected in transaction will be connected to the same transactions in the PoP.
+     * <p>
+     * The version of the PoP is always 1, see {@link #canCopyInputsOf(Transaction)}.
+     * @param transaction the transaction to generate a PoP for. It is not modified.
+     * @param nonce the nonce as requested by the validating party.
+     * @throws IllegalArgumentException if nonce is null not of length 6, or if the version of transaction isn't 1.
+     */
+    public Pop(Transaction transaction, byte[] nonce) {
+        super(transaction.getParams());
+        checkNonce(nonce);
+        if (!canCopyInputsOf(transaction)) {
+            throw new IllegalArgumentException("Transaction version " + transaction.getVersion()
+                    + " can't be copied. Create the PoP from the raw transaction instead.");
+        }
+        Sha256Hash txidToProve = transaction.getHash();
+        setLockTime(POP_LOCK_TIME);
+        for (TransactionInput txInput : transaction.getInputs()) {
+            TransactionOutPoint txOutpoint = txInput.getOutpoint();
+            TransactionOutput connectedOutput = txOutpoint.getConnectedOutput();
+            TransactionOutPoint outpoint = connectedOutput == null
+                    ? new TransactionOutPoint(params, txOutpoint.getIndex(), txOutpoint.getHash())
+                    : new TransactionOutPoint(params, txOutpoint.getIndex(), connectedOutput.getParentTransaction());
+            TransactionInput input = new TransactionInput(params, this, txInput.getScriptBytes().clone(), outpoint);
+            input.setSequenceNumber(POP_SEQ_NR);
+            addInput(input);
+        }
+        addPopOutput(txidToProve, nonce);
+    }
+
+    /**
+     * The version of a transaction can't be set in bitcoinj, so {@link #Pop(Transaction, byte[])} can only copy
+     * transactions of the default version 1, which is all transactions that bitcoinj creates.
+     * @return true if a PoP of transaction can be created with {@link #Pop(Transaction, byte[])}.
+     */
+    public static boolean canCopyInputsOf(Transaction transaction) {
+        return transaction.getVersion() == 1;
+    }
+
+    private static void checkNonce(byte[] nonce) {
+        if (nonce == null) {
+            throw new IllegalArgumentException("Nonce must not be null.");
+        }
+        if (nonce.length != NONCE_LENGTH) {
+            throw new IllegalArgumentException("Nonce length " + nonce.length + " illegal. Expected " + NONCE_LENGTH + " bytes");
+        }
+    }
 
+    private void addPopOutput(Sha256Hash txidToProve, byte[] nonce) {
         // Create the PoP output "OP_RETURN <version> <txid> <nonce>"
         ByteBuffer byteBuffer = ByteBuffer.allocate(41);
         byteBuffer.put((byte) ScriptOpCodes.OP_RETURN);
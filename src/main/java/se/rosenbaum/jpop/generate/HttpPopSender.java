@@ -72,6 +72,10 @@ public class HttpPopSender implements PopSender {
             }
             try {
                 int responseCode = urlConnection.getResponseCode();
+                if (responseCode == HttpURLConnection.HTTP_UNAVAILABLE) {
+                    result(Result.OVERLOADED, "Receiver overloaded, retry later");
+                    return;
+                }
                 if (responseCode != HttpURLConnection.HTTP_OK) {
                     result(Result.COMMUNICATION_ERROR, "Got response code: " + responseCode);
                     return;
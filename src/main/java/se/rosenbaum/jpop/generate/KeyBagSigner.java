@@ -0,0 +1,121 @@
+package se.rosenbaum.jpop.generate;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.crypto.KeyCrypterException;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.wallet.KeyBag;
+import org.spongycastle.crypto.params.KeyParameter;
+import se.rosenbaum.jpop.Pop;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Signs the pay-to-pubkey-hash and pay-to-pubkey inputs of a pop directly with keys from a KeyBag, without going
+ * through Wallet.signTransaction. The signature hashes are computed on the calling thread, as hashForSignature can't
+ * run concurrently on the same transaction. The signatures, which take most of the time, are created on an executor if
+ * one is given. The scriptSigs are set in input order once all inputs are signed.
+ */
+final class KeyBagSigner {
+    private KeyBagSigner() {
+    }
+
+    /**
+     * Signs all inputs of pop with SIGHASH_ALL.
+     * @param keyBag where to find the keys of the spent outputs.
+     * @param decryptionKey the key to decrypt encrypted keys with, or null if the keys aren't encrypted.
+     * @param executor the executor to sign on, with the calling thread taking part, or null to sign on the calling
+     *                 thread only.
+     * @return false if pop has an input that can't be signed this way, in which case nothing is signed.
+     */
+    static boolean sign(Pop pop, KeyBag keyBag, final KeyParameter decryptionKey, Executor executor)
+            throws PopSigningException {
+        List<TransactionInput> inputs = pop.getInputs();
+        final int inputCount = inputs.size();
+        final ECKey[] keys = new ECKey[inputCount];
+        final Sha256Hash[] hashes = new Sha256Hash[inputCount];
+        boolean[] payToPubKeyHash = new boolean[inputCount];
+        // Finding the keys and computing the hashes is quick compared to signing, and hashForSignature can't run
+        // concurrently on the same transaction anyway.
+        for (int i = 0; i < inputCount; i++) {
+            TransactionOutput connectedOutput = inputs.get(i).getConnectedOutput();
+            if (connectedOutput == null) {
+                return false;
+            }
+            Script scriptPubKey = connectedOutput.getScriptPubKey();
+            if (scriptPubKey.isSentToAddress()) {
+                keys[i] = keyBag.findKeyFromPubHash(scriptPubKey.getPubKeyHash());
+                payToPubKeyHash[i] = true;
+            } else if (scriptPubKey.isSentToRawPubKey()) {
+                keys[i] = keyBag.findKeyFromPubKey(scriptPubKey.getPubKey());
+            } else {
+                return false;
+            }
+            if (keys[i] == null || (keys[i].isPubKeyOnly() && !keys[i].isEncrypted())) {
+                return false;
+            }
+            hashes[i] = pop.hashForSignature(i, connectedOutput.getScriptBytes(), Transaction.SigHash.ALL, false);
+        }
+
+        final TransactionSignature[] signatures = new TransactionSignature[inputCount];
+        final AtomicInteger nextIndex = new AtomicInteger();
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        final CountDownLatch remaining = new CountDownLatch(inputCount);
+        Runnable worker = new Runnable() {
+            public void run() {
+                int i;
+                while ((i = nextIndex.getAndIncrement()) < inputCount) {
+                    try {
+                        if (failure.get() == null) {
+                            signatures[i] = new TransactionSignature(keys[i].sign(hashes[i], decryptionKey),
+                                    Transaction.SigHash.ALL, false);
+                        }
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        remaining.countDown();
+                    }
+                }
+            }
+        };
+        int helpers = executor == null ? 0 : Math.min(inputCount, Runtime.getRuntime().availableProcessors()) - 1;
+        for (int i = 0; i < helpers; i++) {
+            try {
+                executor.execute(worker);
+            } catch (RejectedExecutionException e) {
+                break; // The calling thread will do the rest
+            }
+        }
+        worker.run();
+        try {
+            remaining.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PopSigningException("Interrupted while signing pop", e);
+        }
+        Exception e = failure.get();
+        if (e instanceof KeyCrypterException || e instanceof ECKey.KeyIsEncryptedException) {
+            throw new PopSigningException("Couldn't sign pop: " + e.getMessage(), e, true);
+        } else if (e != null) {
+            throw new PopSigningException("Could not sign pop: " + e.getMessage(), e);
+        }
+
+        for (int i = 0; i < inputCount; i++) {
+            Script scriptSig = payToPubKeyHash[i]
+                    ? ScriptBuilder.createInputScript(signatures[i], keys[i])
+                    : ScriptBuilder.createInputScript(signatures[i]);
+            inputs.get(i).setScriptSig(scriptSig);
+        }
+        return true;
+    }
+}
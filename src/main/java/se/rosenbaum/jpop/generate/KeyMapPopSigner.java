@@ -0,0 +1,69 @@
+package se.rosenbaum.jpop.generate;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.wallet.KeyBag;
+import org.bitcoinj.wallet.RedeemData;
+import se.rosenbaum.jpop.Pop;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Signs PoPs with a fixed set of private keys, held in an immutable map from pubkey hash to key. Nothing is locked
+ * while signing, so any number of PoPs may be signed concurrently with the same signer. This suits a server-side
+ * prover holding the keys of many users.
+ * <p>
+ * Only pay-to-pubkey-hash and pay-to-pubkey inputs can be signed. The keys are held unencrypted for as long as the
+ * signer is reachable.
+ */
+public class KeyMapPopSigner implements PopSigner {
+    // Keys by hex encoded pubkey hash
+    private final Map<String, ECKey> keys;
+    private final KeyBag keyBag = new KeyBag() {
+        public ECKey findKeyFromPubHash(byte[] pubkeyHash) {
+            return keys.get(Utils.HEX.encode(pubkeyHash));
+        }
+
+        public ECKey findKeyFromPubKey(byte[] pubkey) {
+            return findKeyFromPubHash(Utils.sha256hash160(pubkey));
+        }
+
+        public RedeemData findRedeemDataFromScriptHash(byte[] bytes) {
+            return null;
+        }
+    };
+
+    /**
+     * @param keys the keys to sign with. They must have unencrypted private keys.
+     * @throws IllegalArgumentException if a key has no private key or is encrypted.
+     */
+    public KeyMapPopSigner(Collection<ECKey> keys) {
+        Map<String, ECKey> keyMap = new HashMap<String, ECKey>();
+        for (ECKey key : keys) {
+            if (key.isPubKeyOnly() || key.isEncrypted()) {
+                throw new IllegalArgumentException("No unencrypted private key for " + key.getPublicKeyAsHex());
+            }
+            keyMap.put(Utils.HEX.encode(key.getPubKeyHash()), key);
+        }
+        this.keys = Collections.unmodifiableMap(keyMap);
+    }
+
+    /**
+     * @throws PopSigningException if an input spends an output that isn't pay-to-pubkey-hash or pay-to-pubkey of one
+     * of the keys, or isn't connected.
+     */
+    public void signPop(Pop pop) throws PopSigningException {
+        boolean signed;
+        try {
+            signed = KeyBagSigner.sign(pop, keyBag, null, null);
+        } catch (RuntimeException e) {
+            throw new PopSigningException("Could not sign pop: " + e.getMessage(), e);
+        }
+        if (!signed) {
+            throw new PopSigningException("Could not sign pop: Missing key or unsupported input", null);
+        }
+    }
+}
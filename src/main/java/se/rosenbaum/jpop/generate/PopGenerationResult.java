@@ -0,0 +1,43 @@
+package se.rosenbaum.jpop.generate;
+
+import se.rosenbaum.jpop.Pop;
+
+/**
+ * The outcome of creating one pop in a batch, see {@link PopGenerator#createPops(java.util.List, java.util.List)}.
+ * Either a pop or the reason it couldn't be created.
+ */
+public class PopGenerationResult {
+    private final Pop pop;
+    private final PopGenerationException exception;
+
+    private PopGenerationResult(Pop pop, PopGenerationException exception) {
+        this.pop = pop;
+        this.exception = exception;
+    }
+
+    static PopGenerationResult success(Pop pop) {
+        return new PopGenerationResult(pop, null);
+    }
+
+    static PopGenerationResult failure(PopGenerationException exception) {
+        return new PopGenerationResult(null, exception);
+    }
+
+    public boolean isSuccess() {
+        return pop != null;
+    }
+
+    /**
+     * @return the unsigned pop, or null if it couldn't be created.
+     */
+    public Pop getPop() {
+        return pop;
+    }
+
+    /**
+     * @return why the pop couldn't be created, or null if it was.
+     */
+    public PopGenerationException getException() {
+        return exception;
+    }
+}
@@ -8,12 +8,61 @@ import org.bitcoinj.crypto.KeyCrypterException;
 import org.spongycastle.crypto.params.KeyParameter;
 import se.rosenbaum.jpop.Pop;
 
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This is the class to use for the proving party.
  */
 public class PopGenerator {
+    /**
+     * Serialization buffers larger than this are not kept for reuse, so a single huge transaction doesn't pin memory
+     * in every thread.
+     */
+    private static final int MAX_REUSED_BUFFER_SIZE = 1024 * 1024;
+
+    private static final ThreadLocal<SerializationBuffer> serializationBuffers = new ThreadLocal<SerializationBuffer>();
+
+    private Executor batchExecutor = ForkJoinPool.commonPool();
+    private Executor signingExecutor;
+    private int parallelInputThreshold;
+
+    /**
+     * Sets the executor that {@link #createPops(List, List)} fans its work out on. Defaults to the common
+     * ForkJoinPool.
+     * @param batchExecutor the executor to create pops on. Must not be null.
+     */
+    public void setBatchExecutor(Executor batchExecutor) {
+        if (batchExecutor == null) {
+            throw new NullPointerException("Executor must not be null");
+        }
+        this.batchExecutor = batchExecutor;
+    }
+
+    /**
+     * Makes {@link #signPop(Pop, Wallet, KeyParameter)} sign the inputs of large PoPs concurrently. For PoPs with at
+     * least parallelInputThreshold inputs, the signature hashes are computed on the calling thread and the signatures
+     * are created on the given executor, with the calling thread taking part. The signatures are put in the inputs in
+     * input order once all of them are done. Smaller PoPs, and PoPs spending anything but pay-to-pubkey-hash and
+     * pay-to-pubkey outputs of keys in the wallet, are signed by the wallet as usual.
+     * <p>
+     * The executor is typically a CPU sized pool shared by the application.
+     * @param signingExecutor the executor to sign inputs on, or null to always let the wallet sign, which is the
+     *                        default.
+     * @param parallelInputThreshold the minimum number of inputs for a PoP to be signed in parallel.
+     */
+    public void setSigningExecutor(Executor signingExecutor, int parallelInputThreshold) {
+        if (parallelInputThreshold < 2) {
+            throw new IllegalArgumentException("Threshold must be at least 2: " + parallelInputThreshold);
+        }
+        this.signingExecutor = signingExecutor;
+        this.parallelInputThreshold = parallelInputThreshold;
+    }
 
     /**
      * Creates an unsigned PoP of the given transaction. The transaction to prove must
@@ -30,29 +79,80 @@ public class PopGenerator {
         if (transaction == null) {
             throw new NullPointerException("Transaction must not be null");
         }
+        // In order to sign the PoP, all inputs must be connected. The PoP is connected to the same input transactions
+        // as the proven transaction.
+        List<TransactionInput> txInputs = transaction.getInputs();
+        for (TransactionInput txInput : txInputs) {
+            if (txInput.getOutpoint().getConnectedOutput() == null) {
+                throw new PopGenerationException("Transaction to prove is not fully connected");
+            }
+        }
+        if (Pop.canCopyInputsOf(transaction)) {
+            try {
+                return new Pop(transaction, nonce);
+            } catch (Exception e) {
+                throw new PopGenerationException("Could not create PoP: " + e.getMessage(), e);
+            }
+        }
+
         Pop pop;
+        SerializationBuffer buffer = serializationBuffer();
         try {
-            pop = new Pop(transaction.getParams(), transaction.bitcoinSerialize(), nonce);
+            transaction.bitcoinSerialize(buffer);
+            // The pop is parsed from the start of the buffer, whatever follows is ignored and nothing is retained.
+            pop = new Pop(transaction.getParams(), buffer.array(), nonce);
         } catch (Exception e) {
             throw new PopGenerationException("Could not create PoP: " + e.getMessage(), e);
+        } finally {
+            buffer.release();
         }
-
-        // In order to sign the PoP, all inputs must be connected. This is done by copying the connected outputs from
-        // the proven transaction to the Pop.
-        List<TransactionInput> txInputs = transaction.getInputs();
-        long inputSize = txInputs.size();
-        for (int i = 0; i < inputSize; i++) {
-            // Connect the pop with the same input transactions as the payment.
+        for (int i = 0; i < txInputs.size(); i++) {
             TransactionOutput connectedOutput = txInputs.get(i).getOutpoint().getConnectedOutput();
-            if (connectedOutput == null) {
-                throw new PopGenerationException("Transaction to prove is not fully connected");
-            }
-            TransactionInput popInput = pop.getInput(i);
-            popInput.connect(connectedOutput.getParentTransaction(), TransactionInput.ConnectMode.ABORT_ON_CONFLICT);
+            pop.getInput(i).connect(connectedOutput.getParentTransaction(), TransactionInput.ConnectMode.ABORT_ON_CONFLICT);
         }
         return pop;
     }
 
+    /**
+     * Creates unsigned PoPs of a batch of transactions concurrently on the batch executor, see
+     * {@link #setBatchExecutor(Executor)}. Each PoP is created exactly as with {@link #createPop(Transaction, byte[])},
+     * but a transaction that fails does not abort the batch. Instead every transaction gets its own result.
+     * <p>
+     * The transactions must not be modified while the batch is running.
+     * @param transactions fully connected transactions.
+     * @param nonces the nonces that the server requires. nonces.get(i) is put in the pop of transactions.get(i).
+     * @return one result per transaction, in the same order as the transactions.
+     * @throws IllegalArgumentException if transactions and nonces are of different sizes.
+     */
+    public List<PopGenerationResult> createPops(List<Transaction> transactions, List<byte[]> nonces) {
+        if (transactions.size() != nonces.size()) {
+            throw new IllegalArgumentException("Got " + transactions.size() + " transactions but " + nonces.size()
+                    + " nonces");
+        }
+        List<CompletableFuture<PopGenerationResult>> futures =
+                new ArrayList<CompletableFuture<PopGenerationResult>>(transactions.size());
+        for (int i = 0; i < transactions.size(); i++) {
+            final Transaction transaction = transactions.get(i);
+            final byte[] nonce = nonces.get(i);
+            futures.add(CompletableFuture.supplyAsync(() -> createPopQuietly(transaction, nonce), batchExecutor));
+        }
+        List<PopGenerationResult> results = new ArrayList<PopGenerationResult>(futures.size());
+        for (CompletableFuture<PopGenerationResult> future : futures) {
+            results.add(future.join());
+        }
+        return results;
+    }
+
+    private PopGenerationResult createPopQuietly(Transaction transaction, byte[] nonce) {
+        try {
+            return PopGenerationResult.success(createPop(transaction, nonce));
+        } catch (PopGenerationException e) {
+            return PopGenerationResult.failure(e);
+        } catch (RuntimeException e) {
+            return PopGenerationResult.failure(new PopGenerationException("Could not create PoP: " + e.getMessage(), e));
+        }
+    }
+
     /**
      * This is a convenience method to sign a pop. Users who want more control over the signing should do this
      * themselves.
@@ -63,6 +163,42 @@ public class PopGenerator {
      * @throws PopSigningException
      */
     public void signPop(Pop pop, Wallet wallet, KeyParameter decryptionKey) throws PopSigningException {
+        if (signingExecutor != null && pop.getInputs().size() >= parallelInputThreshold
+                && KeyBagSigner.sign(pop, wallet, decryptionKey, signingExecutor)) {
+            return;
+        }
+        signWithWallet(pop, wallet, decryptionKey);
+    }
+
+    /**
+     * Signs pop with signer. This is the same as signer.signPop(pop).
+     * @param pop The unsigned Pop to sign.
+     * @param signer The signer to sign the pop with, for example a {@link KeyMapPopSigner}.
+     * @throws PopSigningException if the pop couldn't be signed.
+     */
+    public void signPop(Pop pop, PopSigner signer) throws PopSigningException {
+        signer.signPop(pop);
+    }
+
+    /**
+     * Opens a session for signing several PoPs with the keys of an encrypted wallet without decrypting the keys for
+     * every PoP, see {@link PopSigningSession}. The session signs on the signing executor like
+     * {@link #signPop(Pop, Wallet, KeyParameter)}, see {@link #setSigningExecutor(Executor, int)}.
+     * @param wallet the wallet to sign with.
+     * @param decryptionKey the key to decrypt the signing keys with, or null if the wallet isn't encrypted.
+     * @param maxAge how long the session may be used.
+     * @param unit the unit of maxAge.
+     * @param maxSignatures the maximum number of inputs the session may sign, in all PoPs together.
+     * @return an open session, to be closed as soon as the PoPs are signed.
+     * @throws PopSigningException if decryptionKey can't decrypt the wallet.
+     */
+    public PopSigningSession openSigningSession(Wallet wallet, KeyParameter decryptionKey, long maxAge, TimeUnit unit,
+                                                int maxSignatures) throws PopSigningException {
+        return new PopSigningSession(wallet, decryptionKey, unit.toNanos(maxAge), maxSignatures, signingExecutor,
+                parallelInputThreshold);
+    }
+
+    static void signWithWallet(Pop pop, Wallet wallet, KeyParameter decryptionKey) throws PopSigningException {
         try {
             // The PoP is signed using the exact same signing as for an ordinary transaction
             Wallet.SendRequest sendRequest = Wallet.SendRequest.forTx(pop);
@@ -74,4 +210,33 @@ public class PopGenerator {
             throw new PopSigningException("Could not sign pop: " + e.getMessage(), e);
         }
     }
+
+    private static SerializationBuffer serializationBuffer() {
+        SerializationBuffer buffer = serializationBuffers.get();
+        if (buffer == null) {
+            buffer = new SerializationBuffer();
+            serializationBuffers.set(buffer);
+        }
+        buffer.reset();
+        return buffer;
+    }
+
+    /**
+     * A ByteArrayOutputStream whose array can be used without copying it.
+     */
+    private static class SerializationBuffer extends ByteArrayOutputStream {
+        SerializationBuffer() {
+            super(1024);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+
+        void release() {
+            if (buf.length > MAX_REUSED_BUFFER_SIZE) {
+                serializationBuffers.remove();
+            }
+        }
+    }
 }
@@ -7,7 +7,9 @@ import se.rosenbaum.jpop.Pop;
  */
 public interface PopSender {
     enum Result {
-        OK, INVALID_POP, COMMUNICATION_ERROR, PROTOCOL_ERROR, LOCAL_ERROR;
+        OK, INVALID_POP, COMMUNICATION_ERROR, PROTOCOL_ERROR, LOCAL_ERROR,
+        /** The receiver was too busy to validate the pop. Sending the same pop again later may succeed. */
+        OVERLOADED;
     }
 
     /**
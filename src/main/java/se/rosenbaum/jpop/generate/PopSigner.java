@@ -0,0 +1,21 @@
+package se.rosenbaum.jpop.generate;
+
+import se.rosenbaum.jpop.Pop;
+
+/**
+ * Signs the inputs of PoPs. Implementations are:
+ * <ul>
+ *     <li>{@link WalletPopSigner}, signing with the keys of a wallet, the same way as an ordinary transaction.</li>
+ *     <li>{@link KeyMapPopSigner}, signing with a fixed set of keys without taking any shared lock, so that a prover
+ *     holding keys for many users can sign PoPs in parallel.</li>
+ *     <li>{@link PopSigningSession}, signing with keys of an encrypted wallet that are decrypted only once.</li>
+ * </ul>
+ */
+public interface PopSigner {
+    /**
+     * Signs all inputs of pop.
+     * @param pop the unsigned pop, typically from {@link PopGenerator#createPop(org.bitcoinj.core.Transaction, byte[])}.
+     * @throws PopSigningException if pop couldn't be signed, for example because a key is missing.
+     */
+    void signPop(Pop pop) throws PopSigningException;
+}
@@ -4,6 +4,7 @@ public class PopSigningException extends Exception {
     boolean badDecryptionKey = false;
 
     public PopSigningException(String message, Exception cause, boolean isBadDecryptionKey) {
+        super(message, cause);
         this.badDecryptionKey = isBadDecryptionKey;
     }
 
@@ -0,0 +1,160 @@
+package se.rosenbaum.jpop.generate;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.core.Wallet;
+import org.bitcoinj.crypto.KeyCrypterException;
+import org.bitcoinj.wallet.KeyBag;
+import org.bitcoinj.wallet.RedeemData;
+import org.spongycastle.crypto.params.KeyParameter;
+import se.rosenbaum.jpop.Pop;
+
+import java.io.Closeable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Signs several PoPs with the keys of a possibly encrypted wallet, decrypting each key only the first time it's
+ * needed. Signing a PoP with {@link PopGenerator#signPop(Pop, Wallet, KeyParameter)} decrypts the key of every input
+ * again, which is noticeable when one user proves several payments in a row or a service proves a batch. Open a
+ * session with {@link PopGenerator#openSigningSession(Wallet, KeyParameter, long, java.util.concurrent.TimeUnit, int)}
+ * and close it as soon as the PoPs are signed:
+ * <pre>
+ * PopSigningSession session = popGenerator.openSigningSession(wallet, aesKey, 1, TimeUnit.MINUTES, 1000);
+ * try {
+ *     for (Pop pop : pops) {
+ *         session.signPop(pop);
+ *     }
+ * } finally {
+ *     session.close();
+ * }
+ * </pre>
+ * A session may only be used for a limited time and a limited number of signatures, one per input. When either limit
+ * is reached, the session closes itself and refuses to sign. It's thread safe, so PoPs may be signed concurrently.
+ * <p>
+ * Closing the session forgets the decrypted keys and the decryption key. bitcoinj keeps private keys in immutable
+ * BigIntegers that can't be overwritten, so the keys can't truly be zeroized; they stay in memory until they are
+ * garbage collected. Keys of an expired session are forgotten on the next use, or on close, whichever comes first.
+ * <p>
+ * Inputs that aren't pay-to-pubkey-hash or pay-to-pubkey are signed by the wallet, decrypting their keys as usual.
+ */
+public class PopSigningSession implements PopSigner, Closeable {
+    private final Wallet wallet;
+    private final long expiresAt;
+    private final int maxSignatures;
+    private final Executor signingExecutor;
+    private final int parallelInputThreshold;
+    private final AtomicInteger signatureCount = new AtomicInteger();
+    // Decrypted keys by hex encoded pubkey hash
+    private final ConcurrentMap<String, ECKey> decryptedKeys = new ConcurrentHashMap<String, ECKey>();
+    private final KeyBag keyBag = new KeyBag() {
+        public ECKey findKeyFromPubHash(byte[] pubkeyHash) {
+            return decryptedKey(pubkeyHash, wallet.findKeyFromPubHash(pubkeyHash));
+        }
+
+        public ECKey findKeyFromPubKey(byte[] pubkey) {
+            return decryptedKey(Utils.sha256hash160(pubkey), wallet.findKeyFromPubKey(pubkey));
+        }
+
+        public RedeemData findRedeemDataFromScriptHash(byte[] bytes) {
+            return null;
+        }
+    };
+    private volatile KeyParameter decryptionKey;
+    private volatile boolean closed;
+
+    PopSigningSession(Wallet wallet, KeyParameter decryptionKey, long maxAgeNanos, int maxSignatures,
+                      Executor signingExecutor, int parallelInputThreshold) throws PopSigningException {
+        if (maxAgeNanos <= 0) {
+            throw new IllegalArgumentException("Max age must be positive: " + maxAgeNanos);
+        }
+        if (maxSignatures <= 0) {
+            throw new IllegalArgumentException("Max signatures must be positive: " + maxSignatures);
+        }
+        if (wallet.isEncrypted() && (decryptionKey == null || !wallet.checkAESKey(decryptionKey))) {
+            throw new PopSigningException("Decryption key doesn't decrypt the wallet", null, true);
+        }
+        this.wallet = wallet;
+        this.decryptionKey = decryptionKey;
+        this.expiresAt = System.nanoTime() + maxAgeNanos;
+        this.maxSignatures = maxSignatures;
+        this.signingExecutor = signingExecutor;
+        this.parallelInputThreshold = parallelInputThreshold;
+    }
+
+    /**
+     * @throws PopSigningException if the session is closed or expired, if signing pop would exceed the maximum number
+     * of signatures, or if pop couldn't be signed.
+     */
+    public void signPop(Pop pop) throws PopSigningException {
+        if (closed) {
+            throw new PopSigningException("Signing session is closed", null);
+        }
+        if (System.nanoTime() - expiresAt >= 0) {
+            close();
+            throw new PopSigningException("Signing session has expired", null);
+        }
+        int inputCount = pop.getInputs().size();
+        if (signatureCount.addAndGet(inputCount) > maxSignatures) {
+            close();
+            throw new PopSigningException("Signing session is limited to " + maxSignatures + " signatures", null);
+        }
+        Executor executor = signingExecutor != null && inputCount >= parallelInputThreshold ? signingExecutor : null;
+        boolean signed;
+        try {
+            signed = KeyBagSigner.sign(pop, keyBag, null, executor);
+        } catch (KeyCrypterException e) {
+            throw new PopSigningException("Couldn't sign pop: " + e.getMessage(), e, true);
+        } catch (RuntimeException e) {
+            throw new PopSigningException("Could not sign pop: " + e.getMessage(), e);
+        }
+        if (!signed) {
+            KeyParameter key = decryptionKey;
+            if (closed) {
+                throw new PopSigningException("Signing session is closed", null);
+            }
+            PopGenerator.signWithWallet(pop, wallet, key);
+        }
+    }
+
+    /**
+     * @return true if the session hasn't been closed, hasn't expired and has signatures left.
+     */
+    public boolean isOpen() {
+        return !closed && System.nanoTime() - expiresAt < 0 && signatureCount.get() < maxSignatures;
+    }
+
+    /**
+     * Forgets the decrypted keys. PoPs being signed while closing may still be signed.
+     */
+    public void close() {
+        closed = true;
+        decryptionKey = null;
+        decryptedKeys.clear();
+    }
+
+    private ECKey decryptedKey(byte[] pubkeyHash, ECKey key) {
+        if (key == null) {
+            return null;
+        }
+        String id = Utils.HEX.encode(pubkeyHash);
+        ECKey decrypted = decryptedKeys.get(id);
+        if (decrypted == null) {
+            KeyParameter aesKey = decryptionKey;
+            if (closed) {
+                throw new IllegalStateException("Signing session is closed");
+            }
+            decrypted = key.isEncrypted() ? key.decrypt(aesKey) : key;
+            ECKey previous = decryptedKeys.putIfAbsent(id, decrypted);
+            if (previous != null) {
+                decrypted = previous;
+            }
+            if (closed) {
+                decryptedKeys.clear(); // Closed while decrypting
+            }
+        }
+        return decrypted;
+    }
+}
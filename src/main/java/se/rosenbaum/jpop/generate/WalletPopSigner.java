@@ -0,0 +1,30 @@
+package se.rosenbaum.jpop.generate;
+
+import org.bitcoinj.core.Wallet;
+import org.spongycastle.crypto.params.KeyParameter;
+import se.rosenbaum.jpop.Pop;
+
+/**
+ * Signs PoPs with Wallet.signTransaction, exactly like an ordinary transaction. The wallet is locked while signing,
+ * so PoPs signed with the same wallet are signed one at a time.
+ */
+public class WalletPopSigner implements PopSigner {
+    private final Wallet wallet;
+    private final KeyParameter decryptionKey;
+
+    /**
+     * @param wallet the wallet to sign with.
+     * @param decryptionKey the key to decrypt the signing keys with, or null if the wallet isn't encrypted.
+     */
+    public WalletPopSigner(Wallet wallet, KeyParameter decryptionKey) {
+        if (wallet == null) {
+            throw new NullPointerException("Wallet must not be null");
+        }
+        this.wallet = wallet;
+        this.decryptionKey = decryptionKey;
+    }
+
+    public void signPop(Pop pop) throws PopSigningException {
+        PopGenerator.signWithWallet(pop, wallet, decryptionKey);
+    }
+}
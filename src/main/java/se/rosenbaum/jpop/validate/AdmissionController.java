@@ -0,0 +1,148 @@
+package se.rosenbaum.jpop.validate;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of pops being validated at once, adapting the limit to the observed latency. When the limit is
+ * reached further pops are shed immediately, rather than queued, so that the pops that are admitted complete within
+ * the target latency even when the offered load is far beyond capacity.
+ * <p>
+ * The limit is adjusted AIMD style. Each pop completing within the target latency raises the limit by 1/limit, that
+ * is by one for every limit completions, as long as the limit is in use. A pop exceeding the target lowers the limit
+ * by 10%, at most once per target latency so that a single burst of slow pops doesn't collapse it.
+ * <p>
+ * Latency is measured from {@link #tryAcquire()} to {@link Permit#release()}. The part spent waiting for a thread and
+ * the part spent validating are tracked separately if {@link Permit#serviceStarted()} is called.
+ */
+public class AdmissionController {
+    private static final double BACKOFF = 0.9;
+    private static final double EWMA_WEIGHT = 0.05;
+
+    private final Ticker ticker;
+    private final long targetNanos;
+    private final int maxLimit;
+
+    private double limit;
+    private int inFlight;
+    private long lastDecrease;
+    private long admittedCount;
+    private long overloadedCount;
+    private double averageQueueNanos;
+    private double averageServiceNanos;
+
+    /**
+     * @param targetLatency the latency, queueing included, that admitted pops should complete within.
+     * @param unit the unit of targetLatency.
+     * @param initialLimit the number of concurrent pops to start with.
+     * @param maxLimit the limit is never raised above this.
+     */
+    public AdmissionController(long targetLatency, TimeUnit unit, int initialLimit, int maxLimit) {
+        this(targetLatency, unit, initialLimit, maxLimit, Ticker.SYSTEM);
+    }
+
+    AdmissionController(long targetLatency, TimeUnit unit, int initialLimit, int maxLimit, Ticker ticker) {
+        if (initialLimit < 1 || maxLimit < initialLimit) {
+            throw new IllegalArgumentException("Bad limits: " + initialLimit + ", " + maxLimit);
+        }
+        this.targetNanos = unit.toNanos(targetLatency);
+        this.limit = initialLimit;
+        this.maxLimit = maxLimit;
+        this.ticker = ticker;
+        this.lastDecrease = ticker.nanoTime() - targetNanos;
+    }
+
+    /**
+     * A pop admitted for validation. Must be released exactly once when the validation is done.
+     */
+    public final class Permit {
+        private final long acquired;
+        private long serviceStart;
+        private boolean released;
+
+        private Permit(long acquired) {
+            this.acquired = acquired;
+            this.serviceStart = acquired;
+        }
+
+        /**
+         * Marks the end of queueing and the start of the validation proper.
+         */
+        public void serviceStarted() {
+            serviceStart = ticker.nanoTime();
+        }
+
+        public void release() {
+            AdmissionController.this.release(this, ticker.nanoTime());
+        }
+    }
+
+    /**
+     * @return a permit, or null if the limit is reached and the pop should be rejected as overloaded.
+     */
+    public synchronized Permit tryAcquire() {
+        if (inFlight >= (int) limit) {
+            overloadedCount++;
+            return null;
+        }
+        inFlight++;
+        admittedCount++;
+        return new Permit(ticker.nanoTime());
+    }
+
+    private synchronized void release(Permit permit, long now) {
+        if (permit.released) {
+            return;
+        }
+        permit.released = true;
+        inFlight--;
+        long queueNanos = permit.serviceStart - permit.acquired;
+        long serviceNanos = now - permit.serviceStart;
+        averageQueueNanos += (queueNanos - averageQueueNanos) * EWMA_WEIGHT;
+        averageServiceNanos += (serviceNanos - averageServiceNanos) * EWMA_WEIGHT;
+        if (queueNanos + serviceNanos > targetNanos) {
+            if (now - lastDecrease >= targetNanos) {
+                limit = Math.max(1, limit * BACKOFF);
+                lastDecrease = now;
+            }
+        } else if (inFlight + 1 >= limit / 2) {
+            // Only grow a limit that is actually used, or it would grow without bound while idle.
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+    /**
+     * @return the current number of pops allowed to be validated at once.
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized long getAdmittedCount() {
+        return admittedCount;
+    }
+
+    /**
+     * @return the number of pops rejected because the limit was reached.
+     */
+    public synchronized long getOverloadedCount() {
+        return overloadedCount;
+    }
+
+    /**
+     * @return the moving average of the time admitted pops waited before validation started.
+     */
+    public synchronized long getAverageQueueLatency(TimeUnit unit) {
+        return unit.convert((long) averageQueueNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the moving average of the time admitted pops took to validate.
+     */
+    public synchronized long getAverageServiceLatency(TimeUnit unit) {
+        return unit.convert((long) averageServiceNanos, TimeUnit.NANOSECONDS);
+    }
+}
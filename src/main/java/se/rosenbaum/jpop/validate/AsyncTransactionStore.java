@@ -0,0 +1,17 @@
+package se.rosenbaum.jpop.validate;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A non-blocking alternative to {@link TransactionStore}. Implementations should start the lookup and return
+ * immediately, completing the future when the transaction arrives. The future should complete with null if the
+ * transaction is unknown, and exceptionally if the lookup failed.
+ *
+ * @see PopValidator#PopValidator(AsyncTransactionStore)
+ */
+public interface AsyncTransactionStore {
+    CompletableFuture<Transaction> getTransaction(Sha256Hash txid);
+}
@@ -0,0 +1,338 @@
+package se.rosenbaum.jpop.validate;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.Utils;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A TransactionStore that caches the transactions of another TransactionStore. The cache is bounded by the total
+ * serialized size of the cached transactions, not by their number.
+ * <p>
+ * Eviction is least recently used, but a new transaction is only admitted if it has been asked for more often than
+ * the transactions it would evict (TinyLFU). Access frequencies are estimated by a small count-min sketch that is
+ * halved periodically, so old popularity fades. This keeps one-off lookups, for example of unknown transactions in
+ * junk PoPs, from flushing out the frequently used ones.
+ * <p>
+ * Unknown transactions (null from the underlying store) are never cached. Lookups of transactions missing in the
+ * cache are made outside of any lock, so two threads may load the same transaction concurrently.
+ */
+public class CachingTransactionStore implements TransactionStore {
+    private final TransactionStore transactionStore;
+    private final long maxBytes;
+    private final long ttlNanos;
+    private final FrequencySketch sketch;
+    private final LinkedHashMap<Sha256Hash, Entry> entries = new LinkedHashMap<Sha256Hash, Entry>(16, 0.75f, true);
+    private long weightedSize;
+
+    private long hitCount;
+    private long missCount;
+    private long loadCount;
+    private long totalLoadTimeNanos;
+    private long evictionCount;
+    private long rejectionCount;
+
+    /**
+     * @param transactionStore the store to cache transactions from.
+     * @param maxBytes the maximum total serialized size of the cached transactions.
+     */
+    public CachingTransactionStore(TransactionStore transactionStore, long maxBytes) {
+        this(transactionStore, maxBytes, 0, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param transactionStore the store to cache transactions from.
+     * @param maxBytes the maximum total serialized size of the cached transactions.
+     * @param ttl how long a transaction may stay in the cache after it was loaded. 0 means forever.
+     * @param unit the unit of ttl
+     */
+    public CachingTransactionStore(TransactionStore transactionStore, long maxBytes, long ttl, TimeUnit unit) {
+        if (transactionStore == null) {
+            throw new NullPointerException("TransactionStore must not be null");
+        }
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+        }
+        if (ttl < 0) {
+            throw new IllegalArgumentException("ttl must not be negative: " + ttl);
+        }
+        this.transactionStore = transactionStore;
+        this.maxBytes = maxBytes;
+        this.ttlNanos = unit.toNanos(ttl);
+        // Assume an average transaction size of 256 bytes when sizing the sketch.
+        this.sketch = new FrequencySketch((int) Math.min(maxBytes / 256, 1 << 24));
+    }
+
+    public Transaction getTransaction(Sha256Hash txid) {
+        synchronized (this) {
+            sketch.increment(txid);
+            Entry entry = entries.get(txid);
+            if (entry != null) {
+                if (ttlNanos == 0 || System.nanoTime() - entry.loadTime < ttlNanos) {
+                    hitCount++;
+                    return entry.transaction;
+                }
+                entries.remove(txid);
+                weightedSize -= entry.weight;
+                evictionCount++;
+            }
+            missCount++;
+        }
+
+        long start = System.nanoTime();
+        Transaction transaction = transactionStore.getTransaction(txid);
+        long loadTime = System.nanoTime();
+
+        synchronized (this) {
+            loadCount++;
+            totalLoadTimeNanos += loadTime - start;
+            if (transaction != null) {
+                admit(txid, new Entry(transaction, transaction.getMessageSize(), loadTime));
+            }
+        }
+        return transaction;
+    }
+
+    /**
+     * Serves the cached transactions from the cache and fetches the rest with a single call to the underlying
+     * store's getTransactions.
+     */
+    @Override
+    public Map<Sha256Hash, Transaction> getTransactions(Collection<Sha256Hash> txids) {
+        Map<Sha256Hash, Transaction> transactions = new HashMap<Sha256Hash, Transaction>();
+        List<Sha256Hash> missing = new ArrayList<Sha256Hash>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            for (Sha256Hash txid : txids) {
+                sketch.increment(txid);
+                Entry entry = entries.get(txid);
+                if (entry != null && ttlNanos != 0 && now - entry.loadTime >= ttlNanos) {
+                    entries.remove(txid);
+                    weightedSize -= entry.weight;
+                    evictionCount++;
+                    entry = null;
+                }
+                if (entry != null) {
+                    hitCount++;
+                    transactions.put(txid, entry.transaction);
+                } else {
+                    missCount++;
+                    missing.add(txid);
+                }
+            }
+        }
+        if (missing.isEmpty()) {
+            return transactions;
+        }
+
+        long start = System.nanoTime();
+        Map<Sha256Hash, Transaction> loaded = transactionStore.getTransactions(missing);
+        long loadTime = System.nanoTime();
+
+        synchronized (this) {
+            loadCount++;
+            totalLoadTimeNanos += loadTime - start;
+            for (Map.Entry<Sha256Hash, Transaction> transaction : loaded.entrySet()) {
+                admit(transaction.getKey(), new Entry(transaction.getValue(), transaction.getValue().getMessageSize(), loadTime));
+            }
+        }
+        transactions.putAll(loaded);
+        return transactions;
+    }
+
+    /**
+     * Puts the entry in the cache if it's more popular than the transactions that has to be evicted to make room for
+     * it. Must be called with the lock held.
+     */
+    private void admit(Sha256Hash txid, Entry entry) {
+        Entry existing = entries.get(txid);
+        if (existing != null) {
+            // Loaded concurrently by another thread.
+            return;
+        }
+        if (entry.weight > maxBytes) {
+            rejectionCount++;
+            return;
+        }
+        long needed = weightedSize + entry.weight - maxBytes;
+        if (needed > 0) {
+            int candidateFrequency = sketch.frequency(txid);
+            List<Sha256Hash> victims = new ArrayList<Sha256Hash>();
+            long freed = 0;
+            Iterator<Map.Entry<Sha256Hash, Entry>> iterator = entries.entrySet().iterator();
+            while (freed < needed) {
+                Map.Entry<Sha256Hash, Entry> victim = iterator.next();
+                if (sketch.frequency(victim.getKey()) >= candidateFrequency) {
+                    rejectionCount++;
+                    return;
+                }
+                victims.add(victim.getKey());
+                freed += victim.getValue().weight;
+            }
+            for (Sha256Hash victim : victims) {
+                weightedSize -= entries.remove(victim).weight;
+                evictionCount++;
+            }
+        }
+        entries.put(txid, entry);
+        weightedSize += entry.weight;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return hits / (hits + misses), or 1.0 if there has been no lookups yet.
+     */
+    public synchronized double getHitRatio() {
+        long requests = hitCount + missCount;
+        return requests == 0 ? 1.0 : (double) hitCount / requests;
+    }
+
+    /**
+     * @return the number of transactions removed from the cache, to make room for others or because they expired.
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @return the number of loaded transactions that were not admitted to the cache.
+     */
+    public synchronized long getRejectionCount() {
+        return rejectionCount;
+    }
+
+    /**
+     * @return the number of calls made to the underlying TransactionStore. A getTransactions call counts as one.
+     */
+    public synchronized long getLoadCount() {
+        return loadCount;
+    }
+
+    /**
+     * @return the total time spent in lookups in the underlying TransactionStore.
+     */
+    public synchronized long getTotalLoadTime(TimeUnit unit) {
+        return unit.convert(totalLoadTimeNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the average time spent in a lookup in the underlying TransactionStore, 0 if there has been none.
+     */
+    public synchronized double getAverageLoadTimeNanos() {
+        return loadCount == 0 ? 0.0 : (double) totalLoadTimeNanos / loadCount;
+    }
+
+    /**
+     * @return the total serialized size of the cached transactions.
+     */
+    public synchronized long getWeightedSize() {
+        return weightedSize;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void invalidateAll() {
+        entries.clear();
+        weightedSize = 0;
+    }
+
+    private static class Entry {
+        final Transaction transaction;
+        final int weight;
+        final long loadTime;
+
+        Entry(Transaction transaction, int weight, long loadTime) {
+            this.transaction = transaction;
+            this.weight = weight;
+            this.loadTime = loadTime;
+        }
+    }
+
+    /**
+     * A count-min sketch with four rows of byte sized counters. All counters are halved when the number of
+     * increments reaches ten times the width, so that the estimates favour recent popularity.
+     * <p>
+     * Txids are chosen by whoever creates the transactions, so the counters are indexed by the txid mixed with a
+     * random seed per sketch and row. Without the seed, txids could be ground to share counters with a victim and
+     * inflate its estimated frequency.
+     */
+    static class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 127;
+        private static final SecureRandom seedGenerator = new SecureRandom();
+        private final byte[][] table;
+        private final long[] seeds = new long[DEPTH];
+        private final int mask;
+        private final int sampleSize;
+        private int increments;
+
+        FrequencySketch(int expectedEntries) {
+            int width = Integer.highestOneBit(Math.max(expectedEntries, 64) - 1) << 1;
+            table = new byte[DEPTH][width];
+            mask = width - 1;
+            sampleSize = 10 * width;
+            for (int row = 0; row < DEPTH; row++) {
+                seeds[row] = seedGenerator.nextLong();
+            }
+        }
+
+        void increment(Sha256Hash key) {
+            boolean added = false;
+            for (int row = 0; row < DEPTH; row++) {
+                int index = index(key, row);
+                if (table[row][index] < MAX_COUNT) {
+                    table[row][index]++;
+                    added = true;
+                }
+            }
+            if (added && ++increments >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(Sha256Hash key) {
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < DEPTH; row++) {
+                frequency = Math.min(frequency, table[row][index(key, row)]);
+            }
+            return frequency;
+        }
+
+        private void reset() {
+            for (byte[] row : table) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = (byte) (row[i] >> 1);
+                }
+            }
+            increments /= 2;
+        }
+
+        private int index(Sha256Hash key, int row) {
+            // Each row uses a different 8 bytes of the key, mixed with the seed of the row by the MurmurHash3
+            // finalizer so that every bit of the index depends on the seed.
+            long hash = Utils.readInt64(key.getBytes(), row * 8) ^ seeds[row];
+            hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+            hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+            hash ^= hash >>> 33;
+            return (int) hash & mask;
+        }
+    }
+}
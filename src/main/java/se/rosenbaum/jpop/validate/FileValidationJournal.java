@@ -0,0 +1,391 @@
+package se.rosenbaum.jpop.validate;
+
+import org.bitcoinj.core.Sha256Hash;
+import se.rosenbaum.jpop.Pop;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A ValidationJournal that appends a record per validated pop to memory mapped segment files in a directory. Each
+ * record holds the time, the pop hash, the txid and nonce in the pop output, the result code and the raw pop. Raw
+ * pops rejected without being parsed are journaled the same way, with the hash of the raw bytes as pop hash and zeros
+ * as txid and nonce. Use {@link ValidationJournalReader} to read the records back in order.
+ * <p>
+ * Appending is a copy into the mapped segment under a short lock, so it costs microseconds. When a segment is full
+ * the journal continues in a new one. How records reach the storage device is decided by the {@link SyncPolicy}. With
+ * {@link SyncPolicy#ALWAYS} concurrent appends share syncs: while one thread forces the segment, the others queue up
+ * behind it, and one sync covers all records appended before it started.
+ * <p>
+ * Every record carries a checksum. When an existing journal is opened, appending continues after the last intact
+ * record. If the last segment ends with a torn record, from a crash in the middle of an append, appending continues
+ * in a new segment instead so the torn record is never overwritten by a shorter one.
+ * <p>
+ * Segment layout: magic, format version, then records. Record layout: length and CRC32 of the rest, timestamp in
+ * milliseconds, 32 bytes pop hash, 32 bytes txid, 6 bytes nonce, result code name prefixed by its length in a byte,
+ * raw pop. A length of 0 ends the segment.
+ */
+public class FileValidationJournal implements ValidationJournal, Closeable {
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    static final int MAGIC = 0x6a706a6c; // "jpjl"
+    static final int FORMAT_VERSION = 1;
+    static final int SEGMENT_HEADER_SIZE = 8;
+    static final int RECORD_HEADER_SIZE = 8;
+    static final int FIXED_BODY_SIZE = 8 + 32 + 32 + 6 + 1;
+
+    /**
+     * When appended records are forced to the storage device. Records always survive the process crashing, since
+     * they are in the operating system's page cache, but not necessarily the machine crashing.
+     */
+    public enum SyncPolicy {
+        /** Leave it to the operating system, and to {@link #sync()} and {@link #close()}. */
+        NONE,
+        /** Sync from a background thread at a fixed interval. A machine crash loses at most one interval. */
+        INTERVAL,
+        /** Appending returns only when the record is on the storage device. */
+        ALWAYS
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final SyncPolicy syncPolicy;
+    private final ScheduledExecutorService syncExecutor;
+
+    // Guarded by this
+    private MappedByteBuffer segment;
+    private int segmentNumber;
+    private int writePosition;
+    private long appendedCount;
+    private boolean closed;
+
+    // Guarded by syncLock
+    private final Object syncLock = new Object();
+    private long syncedCount;
+    private long syncCount;
+
+    /**
+     * Opens the journal in directory, creating it if it doesn't exist, with default segment size, syncing once a
+     * second.
+     */
+    public FileValidationJournal(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, SyncPolicy.INTERVAL, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Opens the journal in directory, creating it if it doesn't exist.
+     * @param segmentSize the size of each segment file. Must be larger than the largest record, which is about 120
+     *                    bytes plus the pop.
+     * @param syncPolicy when records are forced to the storage device.
+     * @param syncInterval the time between syncs with {@link SyncPolicy#INTERVAL}, otherwise ignored.
+     * @param unit the unit of syncInterval.
+     * @throws IOException if the files can't be created, opened or mapped, or if they are not a valid journal.
+     */
+    public FileValidationJournal(File directory, int segmentSize, SyncPolicy syncPolicy, long syncInterval,
+                                 TimeUnit unit) throws IOException {
+        if (segmentSize <= SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE + FIXED_BODY_SIZE) {
+            throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.syncPolicy = syncPolicy;
+        File[] segmentFiles = segmentFiles(directory);
+        if (segmentFiles.length == 0) {
+            openSegment(0);
+        } else {
+            File last = segmentFiles[segmentFiles.length - 1];
+            int lastNumber = segmentNumber(last);
+            segment = map(last, last.length());
+            checkHeader(segment, last);
+            segmentNumber = lastNumber;
+            writePosition = endOfRecords(segment);
+            if (writePosition + RECORD_HEADER_SIZE <= segment.capacity() && segment.getInt(writePosition) != 0) {
+                openSegment(lastNumber + 1); // Keep the torn record
+            }
+        }
+        if (syncPolicy == SyncPolicy.INTERVAL) {
+            syncExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "pop-journal-sync");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            syncExecutor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        sync();
+                    } catch (RuntimeException e) {
+                        // Closed, or the device failed. The next sync, or close, will tell.
+                    }
+                }
+            }, syncInterval, syncInterval, unit);
+        } else {
+            syncExecutor = null;
+        }
+    }
+
+    /**
+     * Appends a record of the validation.
+     * @throws UncheckedIOException if a new segment can't be created.
+     * @throws IllegalArgumentException if the record is larger than a segment.
+     * @throws IllegalStateException if the journal is closed.
+     */
+    public void validated(Pop pop, ValidationResult result) {
+        append(record(System.currentTimeMillis(), pop, result));
+    }
+
+    /**
+     * Appends a record of the rejection.
+     * @throws UncheckedIOException if a new segment can't be created.
+     * @throws IllegalArgumentException if the record is larger than a segment.
+     * @throws IllegalStateException if the journal is closed.
+     */
+    public void rejected(byte[] payload, ValidationResult result) {
+        append(record(System.currentTimeMillis(), payload, result));
+    }
+
+    private void append(byte[] record) {
+        if (SEGMENT_HEADER_SIZE + record.length > segmentSize) {
+            throw new IllegalArgumentException("Record of " + record.length + " bytes doesn't fit in a segment of "
+                    + segmentSize + " bytes");
+        }
+        long sequence = appendRecord(record);
+        if (syncPolicy == SyncPolicy.ALWAYS) {
+            awaitSynced(sequence);
+        }
+    }
+
+    private synchronized long appendRecord(byte[] record) {
+        checkOpen();
+        if (writePosition + record.length > segment.capacity()) {
+            try {
+                // Records written so far must be on the device before a sync of the new segment can cover them.
+                segment.force();
+                openSegment(segmentNumber + 1);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Can't create journal segment", e);
+            }
+        }
+        ByteBuffer target = segment.duplicate();
+        target.position(writePosition + 4);
+        target.put(record, 4, record.length - 4);
+        // The length last, as it makes the record visible to readers.
+        segment.putInt(writePosition, record.length - RECORD_HEADER_SIZE);
+        writePosition += record.length;
+        return ++appendedCount;
+    }
+
+    /**
+     * Group commit. The first thread to need a sync forces everything appended so far. Threads arriving meanwhile
+     * block on the lock, and find their records covered by that sync when they get it, unless they were appended too
+     * late, in which case the first of them syncs again.
+     */
+    private void awaitSynced(long sequence) {
+        synchronized (syncLock) {
+            if (syncedCount < sequence) {
+                forceAppended();
+            }
+        }
+    }
+
+    /**
+     * Forces all records appended so far to the storage device.
+     * @throws IllegalStateException if the journal is closed.
+     */
+    public void sync() {
+        synchronized (syncLock) {
+            forceAppended();
+        }
+    }
+
+    /**
+     * Must be called holding syncLock, but not the lock of this, so appends go on while forcing.
+     */
+    private void forceAppended() {
+        long target;
+        MappedByteBuffer current;
+        synchronized (this) {
+            checkOpen();
+            target = appendedCount;
+            current = segment;
+        }
+        // Earlier segments were forced when they were left.
+        current.force();
+        syncedCount = Math.max(syncedCount, target);
+        syncCount++;
+    }
+
+    /**
+     * @return the number of records appended since the journal was opened.
+     */
+    public synchronized long getAppendedCount() {
+        return appendedCount;
+    }
+
+    /**
+     * @return the number of times the journal has been forced to the storage device. With
+     * {@link SyncPolicy#ALWAYS} and concurrent validations this is lower than the number of records.
+     */
+    public long getSyncCount() {
+        synchronized (syncLock) {
+            return syncCount;
+        }
+    }
+
+    /**
+     * Forces all records to the storage device and closes the journal.
+     */
+    public void close() {
+        if (syncExecutor != null) {
+            syncExecutor.shutdownNow();
+        }
+        synchronized (syncLock) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                segment.force();
+                syncedCount = appendedCount;
+                closed = true;
+            }
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Journal is closed");
+        }
+    }
+
+    private void openSegment(int number) throws IOException {
+        File file = segmentFile(directory, number);
+        segment = map(file, segmentSize);
+        segment.putInt(0, MAGIC);
+        segment.putInt(4, FORMAT_VERSION);
+        segmentNumber = number;
+        writePosition = SEGMENT_HEADER_SIZE;
+    }
+
+    /**
+     * @return the serialized record, header included.
+     */
+    static byte[] record(long timestamp, Pop pop, ValidationResult result) {
+        byte[] output = pop.getOutputs().isEmpty() ? null : pop.getOutput(0).getScriptBytes();
+        return record(timestamp, pop.getHash(), output, pop.bitcoinSerialize(), result);
+    }
+
+    /**
+     * @return the serialized record of a raw pop that wasn't parsed, header included.
+     */
+    static byte[] record(long timestamp, byte[] payload, ValidationResult result) {
+        return record(timestamp, Sha256Hash.wrapReversed(Sha256Hash.hashTwice(payload)), null, payload, result);
+    }
+
+    /**
+     * @param output the script of the pop output, or null if it's unknown.
+     */
+    private static byte[] record(long timestamp, Sha256Hash popHash, byte[] output, byte[] popBytes,
+                                 ValidationResult result) {
+        byte[] code = result.getCode().name().getBytes(StandardCharsets.US_ASCII);
+        int bodyLength = FIXED_BODY_SIZE + code.length + popBytes.length;
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + bodyLength);
+        buffer.putInt(bodyLength);
+        buffer.putInt(0); // CRC, below
+        buffer.putLong(timestamp);
+        buffer.put(popHash.getBytes());
+        if (output != null && output.length == 41) {
+            // The txid and nonce, as in a well formed pop output
+            buffer.put(output, 3, 38);
+        } else {
+            buffer.put(new byte[38]);
+        }
+        buffer.put((byte) code.length);
+        buffer.put(code);
+        buffer.put(popBytes);
+        byte[] record = buffer.array();
+        buffer.putInt(4, (int) crc(record, RECORD_HEADER_SIZE, bodyLength));
+        return record;
+    }
+
+    static long crc(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return crc.getValue();
+    }
+
+    /**
+     * @return the position after the last intact record of segment.
+     */
+    static int endOfRecords(ByteBuffer segment) {
+        int position = SEGMENT_HEADER_SIZE;
+        while (position + RECORD_HEADER_SIZE <= segment.capacity()) {
+            int length = segment.getInt(position);
+            if (length < FIXED_BODY_SIZE || length > segment.capacity() - position - RECORD_HEADER_SIZE) {
+                break;
+            }
+            byte[] body = new byte[length];
+            ByteBuffer view = segment.duplicate();
+            view.position(position + RECORD_HEADER_SIZE);
+            view.get(body);
+            if ((int) crc(body, 0, length) != segment.getInt(position + 4)) {
+                break;
+            }
+            position += RECORD_HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    static void checkHeader(ByteBuffer segment, File file) throws IOException {
+        if (segment.capacity() < SEGMENT_HEADER_SIZE || segment.getInt(0) != MAGIC
+                || segment.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("Not a validation journal segment: " + file);
+        }
+    }
+
+    static File[] segmentFiles(File directory) {
+        File[] files = directory.listFiles((dir, name) -> name.matches("journal-\\d{10}\\.dat"));
+        if (files == null) {
+            return new File[0];
+        }
+        // Fixed width numbers sort by name
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static File segmentFile(File directory, int number) {
+        return new File(directory, String.format(Locale.ROOT, "journal-%010d.dat", number));
+    }
+
+    private static int segmentNumber(File file) {
+        String name = file.getName();
+        return Integer.parseInt(name.substring("journal-".length(), name.length() - ".dat".length()));
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            // The mapping stays valid after the channel is closed.
+            randomAccessFile.close();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package se.rosenbaum.jpop.validate;
+
+import se.rosenbaum.jpop.validate.ValidationResult.Code;
+import se.rosenbaum.jpop.validate.ValidationResult.Step;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ValidationMetrics that keeps a latency histogram per step, a counter per outcome and a histogram of input counts.
+ * Recording is lock-free and allocates nothing, so this can be used in production. The histograms have four buckets
+ * per power of two, so percentiles are accurate to within 25%.
+ */
+public class HistogramValidationMetrics implements ValidationMetrics {
+    private final Histogram[] stepLatencies = new Histogram[Step.values().length];
+    private final LongAdder[] outcomes = new LongAdder[Code.values().length];
+    private final Histogram inputCounts = new Histogram();
+
+    public HistogramValidationMetrics() {
+        for (int i = 0; i < stepLatencies.length; i++) {
+            stepLatencies[i] = new Histogram();
+        }
+        for (int i = 0; i < outcomes.length; i++) {
+            outcomes[i] = new LongAdder();
+        }
+    }
+
+    public void stepCompleted(Step step, long nanos) {
+        stepLatencies[step.ordinal()].record(nanos);
+    }
+
+    public void validated(Code code) {
+        outcomes[code.ordinal()].increment();
+    }
+
+    public void inputCount(int inputs) {
+        inputCounts.record(inputs);
+    }
+
+    /**
+     * @return the latencies of step, in nanoseconds.
+     */
+    public Histogram getStepLatencies(Step step) {
+        return stepLatencies[step.ordinal()];
+    }
+
+    /**
+     * @return the number of validations with outcome code.
+     */
+    public long getCount(Code code) {
+        return outcomes[code.ordinal()].sum();
+    }
+
+    public Histogram getInputCounts() {
+        return inputCounts;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        for (Step step : Step.values()) {
+            Histogram histogram = getStepLatencies(step);
+            if (histogram.getCount() > 0) {
+                result.append(step).append(": n=").append(histogram.getCount())
+                        .append(" mean=").append(TimeUnit.NANOSECONDS.toMicros((long) histogram.getMean()))
+                        .append("us p99=").append(TimeUnit.NANOSECONDS.toMicros(histogram.getValueAtPercentile(99)))
+                        .append("us\n");
+            }
+        }
+        for (Code code : Code.values()) {
+            long count = getCount(code);
+            if (count > 0) {
+                result.append(code).append(": ").append(count).append('\n');
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * A histogram of non-negative longs.
+     */
+    public static final class Histogram {
+        private static final int SUB_BUCKETS = 4;
+        private final AtomicLongArray buckets = new AtomicLongArray(bucket(Long.MAX_VALUE) + 1);
+        private final LongAdder sum = new LongAdder();
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            buckets.incrementAndGet(bucket(value));
+            sum.add(value);
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                count += buckets.get(i);
+            }
+            return count;
+        }
+
+        public long getSum() {
+            return sum.sum();
+        }
+
+        public double getMean() {
+            long count = getCount();
+            return count == 0 ? 0 : (double) getSum() / count;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return an upper bound of the value at percentile, or 0 if nothing is recorded.
+         */
+        public long getValueAtPercentile(double percentile) {
+            long count = getCount();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return upperBound(i);
+                }
+            }
+            return upperBound(buckets.length() - 1);
+        }
+
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) (value >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+            return SUB_BUCKETS * (exponent - 1) + subBucket;
+        }
+
+        static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + 1;
+            long next = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS + 1) << (exponent - 2);
+            return next < 0 ? Long.MAX_VALUE : next - 1;
+        }
+    }
+}
@@ -0,0 +1,508 @@
+package se.rosenbaum.jpop.validate;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.rosenbaum.jpop.Pop;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receives pops over http, the server side of {@link se.rosenbaum.jpop.generate.HttpPopSender}. A pop is POSTed as
+ * the raw serialized transaction, and the reply is a text body of either "valid" or "invalid\n" followed by the
+ * reason. Pops are validated with {@link PopValidator#validate(Pop)}, so the validator must have a NonceRegistry.
+ * <p>
+ * All connections are served by a single thread using non-blocking IO, so a slow client costs a few hundred bytes of
+ * heap rather than a thread. The body is only buffered once its Content-Length is known to be within the maximum pop
+ * size. Bodies sent with chunked transfer encoding are refused with 411 Length Required. Validation is made on a
+ * separate executor, since the TransactionStore may block. Connections are closed after the reply.
+ * <p>
+ * If the PopValidator has an AdmissionController, the receiver asks it for admission as soon as a pop has arrived,
+ * and answers 503 Service Unavailable at once if the pop is shed. The wait for a validation thread then counts as
+ * queueing latency.
+ * <p>
+ * Connections that send nothing for the idle timeout are closed, as are new connections beyond the maximum number
+ * of connections.
+ */
+public class HttpPopReceiver implements Closeable {
+    public static final int DEFAULT_MAX_POP_SIZE = 100000;
+    private static final int MAX_HEADER_SIZE = 8192;
+    private static final int READ_BUFFER_SIZE = 65536;
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final int READING_HEADER = 0;
+    private static final int READING_BODY = 1;
+    private static final int VALIDATING = 2;
+    private static final int WRITING = 3;
+
+    private final Logger logger = LoggerFactory.getLogger(HttpPopReceiver.class);
+    private final NetworkParameters params;
+    private final PopValidator popValidator;
+    private final InetSocketAddress address;
+    private final Queue<Connection> validated = new ConcurrentLinkedQueue<Connection>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    private int maxPopSize = DEFAULT_MAX_POP_SIZE;
+    private int maxConnections = 50000;
+    private long idleTimeoutNanos = TimeUnit.SECONDS.toNanos(30);
+    private Executor validationExecutor;
+    private ExecutorService ownExecutor;
+    private Listener listener;
+
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
+    private Thread selectorThread;
+    private volatile boolean running;
+    private int connectionCount;
+
+    /**
+     * Gets notified of every pop that passes validation. Called on the validation executor.
+     */
+    public interface Listener {
+        void popAccepted(Pop pop, ValidationResult result);
+    }
+
+    /**
+     * @param address the address to listen on. Use port 0 to let the system pick a free port, see {@link #getPort()}.
+     * @param params the network the pops belong to.
+     * @param popValidator the validator, with a NonceRegistry set.
+     */
+    public HttpPopReceiver(InetSocketAddress address, NetworkParameters params, PopValidator popValidator) {
+        this.address = address;
+        this.params = params;
+        this.popValidator = popValidator;
+    }
+
+    /**
+     * Sets the largest accepted body. Larger requests are answered with 413 without reading the body.
+     * Default is {@value #DEFAULT_MAX_POP_SIZE} bytes.
+     */
+    public void setMaxPopSize(int maxPopSize) {
+        this.maxPopSize = maxPopSize;
+    }
+
+    /**
+     * Sets the maximum number of open connections. Default is 50000.
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Sets how long a client may be silent before its connection is closed. Default is 30 seconds.
+     */
+    public void setIdleTimeout(long timeout, TimeUnit unit) {
+        this.idleTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * Sets the executor that validates pops. Requests that the executor rejects are answered with 503. By default
+     * a fixed pool with one thread per processor is used.
+     */
+    public void setValidationExecutor(Executor validationExecutor) {
+        this.validationExecutor = validationExecutor;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Binds the address and starts serving.
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            throw new IllegalStateException("Already started");
+        }
+        if (validationExecutor == null) {
+            ownExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+            validationExecutor = ownExecutor;
+        }
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address, 1024);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        selectorThread = new Thread(new Runnable() {
+            public void run() {
+                serve();
+            }
+        }, "HttpPopReceiver-" + getPort());
+        selectorThread.start();
+    }
+
+    /**
+     * @return the port the receiver listens on.
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Stops serving and closes all connections. Pops being validated are dropped.
+     */
+    public synchronized void close() throws IOException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+            ownExecutor = null;
+            validationExecutor = null;
+        }
+    }
+
+    private void serve() {
+        long lastSweep = System.nanoTime();
+        while (running) {
+            try {
+                selector.select(1000);
+                Connection connection;
+                while ((connection = validated.poll()) != null) {
+                    startWriting(connection);
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        read((Connection) key.attachment());
+                    } else if (key.isWritable()) {
+                        write((Connection) key.attachment());
+                    }
+                }
+                long now = System.nanoTime();
+                if (now - lastSweep > SWEEP_INTERVAL_NANOS) {
+                    closeIdleConnections(now);
+                    lastSweep = now;
+                }
+            } catch (IOException e) {
+                logger.warn("Selector failure", e);
+            } catch (RuntimeException e) {
+                logger.error("Unexpected failure in receiver", e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            if (connectionCount >= maxConnections) {
+                channel.close();
+                continue;
+            }
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connectionCount++;
+        }
+    }
+
+    private void read(Connection connection) {
+        readBuffer.clear();
+        int read;
+        try {
+            read = connection.channel.read(readBuffer);
+        } catch (IOException e) {
+            close(connection);
+            return;
+        }
+        if (read < 0) {
+            close(connection);
+            return;
+        }
+        readBuffer.flip();
+        connection.lastActivity = System.nanoTime();
+        if (connection.state == READING_HEADER) {
+            readHeader(connection);
+        }
+        if (connection.state == READING_BODY) {
+            readBody(connection);
+        }
+    }
+
+    private void readHeader(Connection connection) {
+        while (readBuffer.hasRemaining()) {
+            if (connection.headerLength == connection.header.length) {
+                if (connection.header.length == MAX_HEADER_SIZE) {
+                    reply(connection, 431, "Request Header Fields Too Large", null);
+                    return;
+                }
+                connection.header = Arrays.copyOf(connection.header, connection.header.length * 2);
+            }
+            byte b = readBuffer.get();
+            connection.header[connection.headerLength++] = b;
+            if (b == '\n' && connection.endOfHeader()) {
+                parseHeader(connection);
+                return;
+            }
+        }
+    }
+
+    private void parseHeader(Connection connection) {
+        String[] lines = new String(connection.header, 0, connection.headerLength, StandardCharsets.US_ASCII)
+                .split("\r\n");
+        connection.header = null;
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+            reply(connection, 400, "Bad Request", null);
+            return;
+        }
+        if (!"POST".equals(requestLine[0])) {
+            reply(connection, 405, "Method Not Allowed", null);
+            return;
+        }
+        long contentLength = -1;
+        boolean expectContinue = false;
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String name = lines[i].substring(0, colon).trim();
+            String value = lines[i].substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Content-Length")) {
+                try {
+                    contentLength = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    reply(connection, 400, "Bad Request", null);
+                    return;
+                }
+            } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                contentLength = -1;
+                break;
+            } else if (name.equalsIgnoreCase("Expect")) {
+                expectContinue = value.equalsIgnoreCase("100-continue");
+            }
+        }
+        if (contentLength < 0) {
+            reply(connection, 411, "Length Required", null);
+            return;
+        }
+        if (contentLength > maxPopSize) {
+            reply(connection, 413, "Payload Too Large", null);
+            return;
+        }
+        if (expectContinue && !sendContinue(connection)) {
+            return;
+        }
+        connection.body = new byte[(int) contentLength];
+        connection.state = READING_BODY;
+    }
+
+    private boolean sendContinue(Connection connection) {
+        ByteBuffer response = ByteBuffer.wrap("HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        try {
+            // Tiny, and nothing else has been written on the connection, so it fits the socket buffer.
+            connection.channel.write(response);
+        } catch (IOException e) {
+            close(connection);
+            return false;
+        }
+        if (response.hasRemaining()) {
+            close(connection);
+            return false;
+        }
+        return true;
+    }
+
+    private void readBody(final Connection connection) {
+        int length = Math.min(readBuffer.remaining(), connection.body.length - connection.bodyLength);
+        readBuffer.get(connection.body, connection.bodyLength, length);
+        connection.bodyLength += length;
+        if (connection.bodyLength < connection.body.length) {
+            return;
+        }
+        AdmissionController admissionController = popValidator.getAdmissionController();
+        if (admissionController != null) {
+            connection.permit = admissionController.tryAcquire();
+            if (connection.permit == null) {
+                popValidator.recorded(ValidationResult.invalid(ValidationResult.Code.OVERLOADED));
+                reply(connection, 503, "Service Unavailable", null);
+                return;
+            }
+        }
+        connection.state = VALIDATING;
+        connection.key.interestOps(0);
+        try {
+            validationExecutor.execute(new Runnable() {
+                public void run() {
+                    validate(connection);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            if (connection.permit != null) {
+                connection.permit.release();
+            }
+            reply(connection, 503, "Service Unavailable", null);
+        }
+    }
+
+    /**
+     * Called on the validation executor.
+     */
+    private void validate(Connection connection) {
+        byte[] payload = connection.body;
+        connection.body = null;
+        if (connection.permit != null) {
+            connection.permit.serviceStarted();
+        }
+        ValidationResult result = PopPrefilter.check(payload, null).getRejection();
+        Pop pop = null;
+        if (result == null) {
+            try {
+                pop = new Pop(params, payload);
+                result = popValidator.validateAdmitted(pop);
+            } catch (ProtocolException e) {
+                result = popValidator.recorded(payload, ValidationResult.invalid(ValidationResult.Code.MALFORMED));
+            } catch (RuntimeException e) {
+                logger.debug("Unexpected failure while validating pop", e);
+                result = pop != null ? popValidator.recorded(pop, ValidationResult.error(e))
+                        : popValidator.recorded(payload, ValidationResult.error(e));
+            }
+        } else {
+            result = popValidator.recorded(payload, result);
+        }
+        if (connection.permit != null) {
+            connection.permit.release();
+        }
+        if (result.isValid() && listener != null) {
+            try {
+                listener.popAccepted(pop, result);
+            } catch (RuntimeException e) {
+                logger.warn("Listener failed", e);
+            }
+        }
+        if (result.getCode() == ValidationResult.Code.OVERLOADED) {
+            connection.response = response(503, "Service Unavailable", null);
+        } else if (result.getCode() == ValidationResult.Code.ERROR) {
+            connection.response = response(500, "Internal Server Error", null);
+        } else {
+            connection.response = response(200, "OK", result.isValid() ? "valid" : "invalid\n" + result.getMessage());
+        }
+        validated.add(connection);
+        selector.wakeup();
+    }
+
+    private void reply(Connection connection, int status, String reason, String body) {
+        connection.response = response(status, reason, body);
+        startWriting(connection);
+    }
+
+    private void startWriting(Connection connection) {
+        if (!connection.key.isValid()) {
+            return;
+        }
+        connection.state = WRITING;
+        connection.lastActivity = System.nanoTime();
+        connection.key.interestOps(SelectionKey.OP_WRITE);
+        write(connection);
+    }
+
+    private void write(Connection connection) {
+        try {
+            connection.channel.write(connection.response);
+        } catch (IOException e) {
+            close(connection);
+            return;
+        }
+        if (!connection.response.hasRemaining()) {
+            close(connection);
+        }
+    }
+
+    private void closeIdleConnections(long now) {
+        for (SelectionKey key : selector.keys()) {
+            Connection connection = (Connection) key.attachment();
+            if (connection != null && connection.state != VALIDATING
+                    && now - connection.lastActivity > idleTimeoutNanos) {
+                close(connection);
+            }
+        }
+    }
+
+    private void close(Connection connection) {
+        if (!connection.key.isValid()) {
+            return;
+        }
+        connection.key.cancel();
+        connectionCount--;
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            logger.debug("Failed to close connection", e);
+        }
+    }
+
+    private static ByteBuffer response(int status, String reason, String body) {
+        byte[] bodyBytes = body == null ? new byte[0] : body.getBytes(StandardCharsets.US_ASCII);
+        String head = "HTTP/1.1 " + status + " " + reason + "\r\n"
+                + "Content-Type: text/plain; charset=US-ASCII\r\n"
+                + "Content-Length: " + bodyBytes.length + "\r\n"
+                + (status == 503 ? "Retry-After: 1\r\n" : "")
+                + "Connection: close\r\n\r\n";
+        byte[] headBytes = head.getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer response = ByteBuffer.allocate(headBytes.length + bodyBytes.length);
+        response.put(headBytes).put(bodyBytes).flip();
+        return response;
+    }
+
+    private static class Connection {
+        final SocketChannel channel;
+        SelectionKey key;
+        int state = READING_HEADER;
+        long lastActivity = System.nanoTime();
+        byte[] header = new byte[256];
+        int headerLength;
+        byte[] body;
+        int bodyLength;
+        ByteBuffer response;
+        AdmissionController.Permit permit;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        boolean endOfHeader() {
+            return headerLength >= 4 && header[headerLength - 4] == '\r' && header[headerLength - 3] == '\n'
+                    && header[headerLength - 2] == '\r';
+        }
+    }
+}
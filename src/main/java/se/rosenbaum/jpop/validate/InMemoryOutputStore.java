@@ -0,0 +1,251 @@
+package se.rosenbaum.jpop.validate;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionOutput;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A compact OutputStore that keeps outputs in a few primitive arrays. The key, txid and output index, is stored as
+ * four longs and an int in an open addressing hash table. Values and scriptPubKeys are kept in a long array and a
+ * single byte array, so there are no objects per stored output. An output takes roughly 90 bytes plus its
+ * scriptPubKey, about 115 bytes for a P2PKH output.
+ * <p>
+ * Txids are chosen by whoever creates the transactions, so probing starts at the key mixed with a random seed per
+ * store. Without it, txids could be ground to build long probe sequences. A replaced output reuses the script bytes
+ * of the old one if the new script fits, otherwise the old bytes are counted as garbage, and the scripts are
+ * compacted when more than half of them are garbage.
+ * <p>
+ * Lookups may be made concurrently from many threads. Additions are serialized.
+ */
+public class InMemoryOutputStore implements OutputStore {
+    private static final double MAX_LOAD = 0.7;
+    private static final int EMPTY = -1;
+    private static final SecureRandom seedGenerator = new SecureRandom();
+
+    private final NetworkParameters params;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final long seed = seedGenerator.nextLong();
+
+    private long[] txids;
+    private int[] indexes;
+    private long[] values;
+    private int[] scriptOffsets;
+    private int[] scriptLengths;
+    private byte[] scripts;
+    private int scriptsSize;
+    private int garbageSize;
+    private int size;
+
+    public InMemoryOutputStore(NetworkParameters params) {
+        this(params, 1024);
+    }
+
+    /**
+     * @param initialCapacity the number of outputs the store can hold before it has to grow the first time.
+     */
+    public InMemoryOutputStore(NetworkParameters params, int initialCapacity) {
+        this.params = params;
+        int capacity = Integer.highestOneBit(Math.max((int) (initialCapacity / MAX_LOAD), 16) - 1) << 1;
+        allocate(capacity);
+        scripts = new byte[capacity * 25];
+    }
+
+    public TransactionOutput getOutput(TransactionOutPoint outPoint) {
+        byte[] txid = outPoint.getHash().getBytes();
+        int index = (int) outPoint.getIndex();
+        lock.readLock().lock();
+        try {
+            int slot = find(txid, index);
+            if (scriptLengths[slot] == EMPTY) {
+                return null;
+            }
+            byte[] scriptBytes = Arrays.copyOfRange(scripts, scriptOffsets[slot], scriptOffsets[slot] + scriptLengths[slot]);
+            return new TransactionOutput(params, null, Coin.valueOf(values[slot]), scriptBytes);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds all outputs of transaction to the store.
+     */
+    public void putOutputs(Transaction transaction) {
+        Sha256Hash txid = transaction.getHash();
+        List<TransactionOutput> outputs = transaction.getOutputs();
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < outputs.size(); i++) {
+                put(txid.getBytes(), i, outputs.get(i));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds a single output to the store, replacing any output previously stored for outPoint.
+     */
+    public void putOutput(TransactionOutPoint outPoint, TransactionOutput output) {
+        lock.writeLock().lock();
+        try {
+            put(outPoint.getHash().getBytes(), (int) outPoint.getIndex(), output);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The number of bytes allocated for scripts, including garbage from replaced outputs.
+     */
+    int scriptCapacity() {
+        lock.readLock().lock();
+        try {
+            return scripts.length;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void put(byte[] txid, int index, TransactionOutput output) {
+        byte[] scriptBytes = output.getScriptBytes();
+        int slot = find(txid, index);
+        if (scriptLengths[slot] == EMPTY) {
+            size++;
+        } else if (scriptBytes.length <= scriptLengths[slot]) {
+            // Replace in place
+            System.arraycopy(scriptBytes, 0, scripts, scriptOffsets[slot], scriptBytes.length);
+            garbageSize += scriptLengths[slot] - scriptBytes.length;
+            scriptLengths[slot] = scriptBytes.length;
+            values[slot] = output.getValue().getValue();
+            compactIfNeeded();
+            return;
+        } else {
+            garbageSize += scriptLengths[slot];
+        }
+        store(slot, txid, index, output.getValue().getValue(), scriptBytes, 0, scriptBytes.length);
+        if (size > indexes.length * MAX_LOAD) {
+            rebuild(indexes.length * 2);
+        } else {
+            compactIfNeeded();
+        }
+    }
+
+    private void compactIfNeeded() {
+        if (garbageSize > 4096 && garbageSize > scriptsSize / 2) {
+            rebuild(indexes.length);
+        }
+    }
+
+    private void store(int slot, byte[] txid, int index, long value, byte[] script, int scriptOffset, int scriptLength) {
+        for (int i = 0; i < 4; i++) {
+            txids[slot * 4 + i] = getLong(txid, i * 8);
+        }
+        indexes[slot] = index;
+        values[slot] = value;
+        if (scriptsSize + scriptLength > scripts.length) {
+            scripts = Arrays.copyOf(scripts, Math.max(scripts.length * 2, scriptsSize + scriptLength));
+        }
+        System.arraycopy(script, scriptOffset, scripts, scriptsSize, scriptLength);
+        scriptOffsets[slot] = scriptsSize;
+        scriptLengths[slot] = scriptLength;
+        scriptsSize += scriptLength;
+    }
+
+    /**
+     * @return the slot holding the key, or the empty slot where it should be inserted.
+     */
+    private int find(byte[] txid, int index) {
+        long k0 = getLong(txid, 0);
+        long k1 = getLong(txid, 8);
+        long k2 = getLong(txid, 16);
+        long k3 = getLong(txid, 24);
+        int mask = indexes.length - 1;
+        int slot = (int) mix(k0 ^ seed ^ (index * 0x9E3779B97F4A7C15L)) & mask;
+        while (scriptLengths[slot] != EMPTY) {
+            if (indexes[slot] == index && txids[slot * 4] == k0 && txids[slot * 4 + 1] == k1
+                    && txids[slot * 4 + 2] == k2 && txids[slot * 4 + 3] == k3) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Rehashes all outputs into tables of the given capacity, and copies their scripts into a new array without the
+     * garbage.
+     */
+    private void rebuild(int capacity) {
+        long[] oldTxids = txids;
+        int[] oldIndexes = indexes;
+        long[] oldValues = values;
+        int[] oldScriptOffsets = scriptOffsets;
+        int[] oldScriptLengths = scriptLengths;
+        byte[] oldScripts = scripts;
+        allocate(capacity);
+        scripts = new byte[Math.max(scriptsSize - garbageSize, 16)];
+        scriptsSize = 0;
+        garbageSize = 0;
+        byte[] txid = new byte[32];
+        for (int slot = 0; slot < oldIndexes.length; slot++) {
+            if (oldScriptLengths[slot] != EMPTY) {
+                for (int i = 0; i < 4; i++) {
+                    putLong(txid, i * 8, oldTxids[slot * 4 + i]);
+                }
+                store(find(txid, oldIndexes[slot]), txid, oldIndexes[slot], oldValues[slot], oldScripts,
+                        oldScriptOffsets[slot], oldScriptLengths[slot]);
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        txids = new long[capacity * 4];
+        indexes = new int[capacity];
+        values = new long[capacity];
+        scriptOffsets = new int[capacity];
+        scriptLengths = new int[capacity];
+        Arrays.fill(scriptLengths, EMPTY);
+    }
+
+    /**
+     * The MurmurHash3 finalizer, so that every bit of the first slot depends on the seed.
+     */
+    private static long mix(long key) {
+        key = (key ^ (key >>> 33)) * 0xff51afd7ed558ccdL;
+        key = (key ^ (key >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return key ^ (key >>> 33);
+    }
+
+    private static long getLong(byte[] bytes, int offset) {
+        long result = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            result = (result << 8) | (bytes[i] & 0xff);
+        }
+        return result;
+    }
+
+    private static void putLong(byte[] bytes, int offset, long value) {
+        for (int i = offset + 7; i >= offset; i--) {
+            bytes[i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package se.rosenbaum.jpop.validate;
+
+import org.bitcoinj.core.ScriptException;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.script.Script;
+
+import java.util.List;
+
+/**
+ * The parsed input scripts of a pop. The inputs only hold them weakly and may re-parse them, so they are parsed
+ * once, while creating this, and used from here. A malformed script is kept as the exception it failed with, so the
+ * input is rejected like any other input that fails to verify.
+ * <p>
+ * This is immutable once created, so the inputs of a pop may be verified concurrently.
+ */
+final class InputScripts {
+    private final Script[] scriptSigs;
+    private final ScriptException[] errors;
+
+    InputScripts(Transaction pop) {
+        List<TransactionInput> inputs = pop.getInputs();
+        scriptSigs = new Script[inputs.size()];
+        ScriptException[] errors = null;
+        for (int i = 0; i < inputs.size(); i++) {
+            try {
+                scriptSigs[i] = inputs.get(i).getScriptSig();
+            } catch (ScriptException e) {
+                if (errors == null) {
+                    errors = new ScriptException[inputs.size()];
+                }
+                errors[i] = e;
+            }
+        }
+        this.errors = errors;
+    }
+
+    /**
+     * @return the parsed script of the input.
+     * @throws ScriptException the exception that parsing the script failed with, if it's malformed.
+     */
+    Script getScriptSig(int inputIndex) throws ScriptException {
+        if (scriptSigs[inputIndex] == null) {
+            throw errors[inputIndex];
+        }
+        return scriptSigs[inputIndex];
+    }
+}
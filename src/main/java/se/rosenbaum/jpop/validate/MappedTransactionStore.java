@@ -0,0 +1,448 @@
+package se.rosenbaum.jpop.validate;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A self contained, file based TransactionStore. Raw serialized transactions are appended to fixed size segment files
+ * and read back through memory mapped buffers. An open addressing hash table from txid to location lives in a memory
+ * mapped side file, so a lookup is one probe sequence in the index plus one slice of a segment. Opening an existing
+ * store only maps the files, nothing is replayed, and neither the index nor the transactions live on the java heap.
+ * <p>
+ * Transactions are only ever added, never removed. The index doubles in size when it gets 70% full. Txids are chosen
+ * by whoever creates the transactions, so probing starts at the txid mixed with a random seed, kept in the index
+ * file. Without it, txids could be ground to build long probe sequences. Changes reach
+ * the disk when the operating system writes back the mapped pages, or when {@link #flush()} or {@link #close()} is
+ * called. The operating system writes back pages in any order, so after a crash an index slot may have reached the
+ * disk without the transaction it points to. Slots that don't point to a stored transaction are treated as empty.
+ * Only what was flushed is guaranteed to survive a crash.
+ * <p>
+ * Lookups may be made concurrently from many threads. Additions are serialized.
+ */
+public class MappedTransactionStore implements TransactionStore, Closeable {
+    public static final int DEFAULT_SEGMENT_SIZE = 256 * 1024 * 1024;
+    public static final long DEFAULT_INITIAL_CAPACITY = 1 << 16;
+
+    private static final int MAGIC = 0x6a706f70; // "jpop"
+    private static final int FORMAT_VERSION = 2;
+    private static final String INDEX_FILE = "index.dat";
+    private static final double MAX_LOAD = 0.7;
+
+    // Index header: magic, version, capacity, size, segment count, write position in last segment, probing seed
+    private static final int HEADER_SIZE = 64;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int SIZE_OFFSET = 16;
+    private static final int SEGMENT_COUNT_OFFSET = 24;
+    private static final int WRITE_POSITION_OFFSET = 28;
+    private static final int SEED_OFFSET = 32;
+
+    // Index slot: 32 bytes txid, segment number, offset in segment, length. Length 0 means empty slot.
+    private static final int SLOT_SIZE = 48;
+    private static final int SEGMENT_SLOT_OFFSET = 32;
+    private static final int POSITION_SLOT_OFFSET = 36;
+    private static final int LENGTH_SLOT_OFFSET = 40;
+    private static final int MAX_CHUNK_SHIFT = 22; // 4M slots, 192MB, per mapping
+
+    private final NetworkParameters params;
+    private final File directory;
+    private final int segmentSize;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+    private Index index;
+    private int writePosition;
+    private boolean closed;
+
+    /**
+     * Opens the store in directory, creating it if it doesn't exist, with default segment size and initial capacity.
+     */
+    public MappedTransactionStore(NetworkParameters params, File directory) throws IOException {
+        this(params, directory, DEFAULT_SEGMENT_SIZE, DEFAULT_INITIAL_CAPACITY);
+    }
+
+    /**
+     * Opens the store in directory, creating it if it doesn't exist.
+     * @param segmentSize the size of each segment file. Must be larger than the largest transaction to store. Only
+     *                    used when creating a new store; an existing store keeps its segment size.
+     * @param initialCapacity the number of transactions the index can hold before it's grown the first time. Only
+     *                        used when creating a new store.
+     * @throws IOException if the files can't be created, opened or mapped, or if they are not a valid store.
+     */
+    public MappedTransactionStore(NetworkParameters params, File directory, int segmentSize, long initialCapacity) throws IOException {
+        if (segmentSize <= 4) {
+            throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+        }
+        this.params = params;
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create directory " + directory);
+        }
+        File indexFile = new File(directory, INDEX_FILE);
+        if (indexFile.exists()) {
+            index = Index.open(indexFile);
+            int segmentCount = index.header.getInt(SEGMENT_COUNT_OFFSET);
+            writePosition = index.header.getInt(WRITE_POSITION_OFFSET);
+            for (int i = 0; i < segmentCount; i++) {
+                File segmentFile = segmentFile(i);
+                if (!segmentFile.exists()) {
+                    throw new IOException("Missing segment file " + segmentFile);
+                }
+                segments.add(map(segmentFile, segmentFile.length()));
+            }
+            this.segmentSize = segments.isEmpty() ? segmentSize : segments.get(0).capacity();
+        } else {
+            this.segmentSize = segmentSize;
+            long capacity = Long.highestOneBit(Math.max(initialCapacity, 16) - 1) << 1;
+            index = Index.create(indexFile, capacity);
+        }
+    }
+
+    public Transaction getTransaction(Sha256Hash txid) {
+        ByteBuffer raw = getRawTransaction(txid);
+        if (raw == null) {
+            return null;
+        }
+        byte[] bytes = new byte[raw.remaining()];
+        raw.get(bytes);
+        return new Transaction(params, bytes);
+    }
+
+    /**
+     * @return a read only view of the serialized transaction directly in the mapped segment, or null if the
+     * transaction is not in the store. The view stays valid after the store is closed, but must not be used after the
+     * store's files are deleted.
+     */
+    public ByteBuffer getRawTransaction(Sha256Hash txid) {
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            long slot = index.find(txid.getBytes());
+            int length = index.getInt(slot, LENGTH_SLOT_OFFSET);
+            if (length == 0 || !isStored(slot)) {
+                return null;
+            }
+            int segment = index.getInt(slot, SEGMENT_SLOT_OFFSET);
+            int position = index.getInt(slot, POSITION_SLOT_OFFSET);
+            ByteBuffer view = segments.get(segment).asReadOnlyBuffer();
+            view.limit(position + length);
+            view.position(position);
+            return view.slice();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Appends the transaction to the store.
+     * @return false if a transaction with the same txid was already stored, true otherwise.
+     * @throws IllegalArgumentException if the transaction doesn't fit in a segment.
+     * @throws IOException if a new segment file or a larger index can't be created.
+     */
+    public boolean putTransaction(Transaction transaction) throws IOException {
+        byte[] txid = transaction.getHash().getBytes();
+        byte[] bytes = transaction.bitcoinSerialize();
+        if (bytes.length + 4 > segmentSize) {
+            throw new IllegalArgumentException("Transaction of " + bytes.length + " bytes doesn't fit in a segment of "
+                    + segmentSize + " bytes");
+        }
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            long slot = index.find(txid);
+            boolean reused = false;
+            if (index.getInt(slot, LENGTH_SLOT_OFFSET) != 0) {
+                if (isStored(slot)) {
+                    return false;
+                }
+                reused = true; // Left by a crash, see isStored
+            }
+            if (segments.isEmpty() || writePosition + 4 + bytes.length > segmentSize) {
+                segments.add(map(segmentFile(segments.size()), segmentSize));
+                writePosition = 0;
+            }
+            int segment = segments.size() - 1;
+            ByteBuffer segmentBuffer = segments.get(segment);
+            // The length prefix makes the segments readable without the index.
+            segmentBuffer.putInt(writePosition, bytes.length);
+            ByteBuffer target = segmentBuffer.duplicate();
+            target.position(writePosition + 4);
+            target.put(bytes);
+            int position = writePosition + 4;
+            writePosition = position + bytes.length;
+
+            index.header.putInt(SEGMENT_COUNT_OFFSET, segments.size());
+            index.header.putInt(WRITE_POSITION_OFFSET, writePosition);
+            index.put(slot, txid, segment, position, bytes.length, reused);
+            if (index.size() > index.capacity * MAX_LOAD) {
+                grow();
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Checks that a used slot points to a transaction within the stored data, with a matching length prefix. A crash
+     * may leave slots whose transaction, or the header covering it, never reached the disk.
+     */
+    private boolean isStored(long slot) {
+        int segment = index.getInt(slot, SEGMENT_SLOT_OFFSET);
+        int position = index.getInt(slot, POSITION_SLOT_OFFSET);
+        int length = index.getInt(slot, LENGTH_SLOT_OFFSET);
+        if (segment < 0 || segment >= segments.size() || position < 4 || length <= 0) {
+            return false;
+        }
+        MappedByteBuffer segmentBuffer = segments.get(segment);
+        int limit = segment == segments.size() - 1 ? writePosition : segmentBuffer.capacity();
+        return position <= limit - length && segmentBuffer.getInt(position - 4) == length;
+    }
+
+    /**
+     * @return the number of stored transactions.
+     */
+    public long size() {
+        lock.readLock().lock();
+        try {
+            return index.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Forces all changes to the storage device.
+     */
+    public void flush() {
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            for (MappedByteBuffer segment : segments) {
+                segment.force();
+            }
+            index.force();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            for (MappedByteBuffer segment : segments) {
+                segment.force();
+            }
+            index.force();
+            closed = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Store is closed");
+        }
+    }
+
+    /**
+     * Rehashes all slots into a new index of twice the capacity and atomically replaces the old index file with it.
+     * Must be called with the write lock held.
+     */
+    private void grow() throws IOException {
+        File indexFile = new File(directory, INDEX_FILE);
+        File newIndexFile = new File(directory, INDEX_FILE + ".tmp");
+        Index newIndex = Index.create(newIndexFile, index.capacity * 2);
+        byte[] txid = new byte[32];
+        for (long slot = 0; slot < index.capacity; slot++) {
+            int length = index.getInt(slot, LENGTH_SLOT_OFFSET);
+            if (length != 0 && isStored(slot)) { // Slots left by a crash are dropped
+                index.getTxid(slot, txid);
+                newIndex.put(newIndex.find(txid), txid, index.getInt(slot, SEGMENT_SLOT_OFFSET),
+                        index.getInt(slot, POSITION_SLOT_OFFSET), length, false);
+            }
+        }
+        newIndex.header.putInt(SEGMENT_COUNT_OFFSET, segments.size());
+        newIndex.header.putInt(WRITE_POSITION_OFFSET, writePosition);
+        newIndex.force();
+        Files.move(newIndexFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        index = newIndex;
+    }
+
+    private File segmentFile(int segment) {
+        return new File(directory, String.format(Locale.ROOT, "segment-%05d.dat", segment));
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            // The mapping stays valid after the channel is closed.
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * The memory mapped hash table. Slots are found by linear probing from the first 8 bytes of the txid, which are
+     * already uniformly distributed.
+     */
+    private static class Index {
+        private static final SecureRandom seedGenerator = new SecureRandom();
+
+        final MappedByteBuffer header;
+        final MappedByteBuffer[] chunks;
+        final long capacity;
+        final int chunkShift;
+        final long chunkMask;
+        final long seed;
+
+        private Index(MappedByteBuffer header, MappedByteBuffer[] chunks, long capacity, int chunkShift) {
+            this.header = header;
+            this.chunks = chunks;
+            this.capacity = capacity;
+            this.chunkShift = chunkShift;
+            this.chunkMask = (1L << chunkShift) - 1;
+            this.seed = header.getLong(SEED_OFFSET);
+        }
+
+        static Index create(File file, long capacity) throws IOException {
+            // Don't pick up slots from a half written file left by a crash.
+            Files.deleteIfExists(file.toPath());
+            MappedByteBuffer header = map(file, HEADER_SIZE);
+            header.putInt(0, MAGIC);
+            header.putInt(4, FORMAT_VERSION);
+            header.putLong(CAPACITY_OFFSET, capacity);
+            header.putLong(SIZE_OFFSET, 0);
+            header.putLong(SEED_OFFSET, seedGenerator.nextLong());
+            return open(file, capacity);
+        }
+
+        static Index open(File file) throws IOException {
+            MappedByteBuffer header = map(file, HEADER_SIZE);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != FORMAT_VERSION) {
+                throw new IOException("Not a transaction store index: " + file);
+            }
+            return open(file, header.getLong(CAPACITY_OFFSET));
+        }
+
+        private static Index open(File file, long capacity) throws IOException {
+            int chunkShift = Math.min(Long.numberOfTrailingZeros(capacity), MAX_CHUNK_SHIFT);
+            long slotsPerChunk = 1L << chunkShift;
+            int chunkCount = (int) (capacity / slotsPerChunk);
+            MappedByteBuffer[] chunks = new MappedByteBuffer[chunkCount];
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                FileChannel channel = randomAccessFile.getChannel();
+                MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+                for (int i = 0; i < chunkCount; i++) {
+                    chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                            HEADER_SIZE + i * slotsPerChunk * SLOT_SIZE, slotsPerChunk * SLOT_SIZE);
+                }
+                return new Index(header, chunks, capacity, chunkShift);
+            } finally {
+                randomAccessFile.close();
+            }
+        }
+
+        /**
+         * @return the slot holding txid, or the empty slot where it should be inserted.
+         */
+        long find(byte[] txid) {
+            long k0 = getLong(txid, 0);
+            long k1 = getLong(txid, 8);
+            long k2 = getLong(txid, 16);
+            long k3 = getLong(txid, 24);
+            long mask = capacity - 1;
+            long slot = mix(k0 ^ seed) & mask;
+            while (true) {
+                ByteBuffer chunk = chunks[(int) (slot >>> chunkShift)];
+                int offset = (int) ((slot & chunkMask) * SLOT_SIZE);
+                if (chunk.getInt(offset + LENGTH_SLOT_OFFSET) == 0) {
+                    return slot;
+                }
+                if (chunk.getLong(offset) == k0 && chunk.getLong(offset + 8) == k1
+                        && chunk.getLong(offset + 16) == k2 && chunk.getLong(offset + 24) == k3) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        /**
+         * @param reused true if the slot was left by a crash and is already counted.
+         */
+        void put(long slot, byte[] txid, int segment, int position, int length, boolean reused) {
+            ByteBuffer chunk = chunks[(int) (slot >>> chunkShift)];
+            int offset = (int) ((slot & chunkMask) * SLOT_SIZE);
+            for (int i = 0; i < 32; i += 8) {
+                chunk.putLong(offset + i, getLong(txid, i));
+            }
+            chunk.putInt(offset + SEGMENT_SLOT_OFFSET, segment);
+            chunk.putInt(offset + POSITION_SLOT_OFFSET, position);
+            // Length last, it marks the slot as used.
+            chunk.putInt(offset + LENGTH_SLOT_OFFSET, length);
+            if (!reused) {
+                header.putLong(SIZE_OFFSET, header.getLong(SIZE_OFFSET) + 1);
+            }
+        }
+
+        int getInt(long slot, int slotOffset) {
+            return chunks[(int) (slot >>> chunkShift)].getInt((int) ((slot & chunkMask) * SLOT_SIZE) + slotOffset);
+        }
+
+        void getTxid(long slot, byte[] txid) {
+            ByteBuffer chunk = chunks[(int) (slot >>> chunkShift)].duplicate();
+            chunk.position((int) ((slot & chunkMask) * SLOT_SIZE));
+            chunk.get(txid);
+        }
+
+        long size() {
+            return header.getLong(SIZE_OFFSET);
+        }
+
+        void force() {
+            for (MappedByteBuffer chunk : chunks) {
+                chunk.force();
+            }
+            header.force();
+        }
+
+        /**
+         * The MurmurHash3 finalizer, so that every bit of the first slot depends on the seed.
+         */
+        private static long mix(long key) {
+            key = (key ^ (key >>> 33)) * 0xff51afd7ed558ccdL;
+            key = (key ^ (key >>> 33)) * 0xc4ceb9fe1a85ec53L;
+            return key ^ (key >>> 33);
+        }
+
+        private static long getLong(byte[] bytes, int offset) {
+            long result = 0;
+            for (int i = offset; i < offset + 8; i++) {
+                result = (result << 8) | (bytes[i] & 0xff);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package se.rosenbaum.jpop.validate;
+
+import se.rosenbaum.jpop.PopRequest;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of the outstanding PopRequests of a validating party, keyed by their nonces. A PopValidator with a
+ * NonceRegistry, see {@link PopValidator#setNonceRegistry(NonceRegistry)}, can validate a pop without being told which
+ * nonce to expect, and makes sure that each nonce is only used once.
+ * <p>
+ * Nonces are 6 random bytes, packed into a long. The registry is split into stripes, each an open addressing hash
+ * table of primitive long keys guarded by its own lock, so there is no global lock. Requests expire a fixed time after
+ * they were issued. Each stripe has a hashed timer wheel with one bucket per tick of the validity period, so expiring
+ * requests never involves scanning the table. Expired requests are removed whenever their stripe is used, or by
+ * calling {@link #expire()}.
+ */
+public class NonceRegistry {
+    private static final int NONCE_LENGTH = 6;
+    private static final long NONCE_MASK = 0xffffffffffffL;
+    private static final int STRIPES = 64;
+    private static final int TICKS_PER_VALIDITY = 64;
+
+    private final SecureRandom random = new SecureRandom();
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final long tickNanos;
+    private final int validityTicks;
+    private final Ticker ticker;
+
+    /**
+     * @param validity how long an issued nonce may be used.
+     * @param unit the unit of validity.
+     */
+    public NonceRegistry(long validity, TimeUnit unit) {
+        this(validity, unit, Ticker.SYSTEM);
+    }
+
+    NonceRegistry(long validity, TimeUnit unit, Ticker ticker) {
+        if (validity <= 0) {
+            throw new IllegalArgumentException("Validity must be positive: " + validity);
+        }
+        this.tickNanos = Math.max(unit.toNanos(validity) / TICKS_PER_VALIDITY, 1);
+        this.validityTicks = (int) Math.min(TICKS_PER_VALIDITY, unit.toNanos(validity));
+        this.ticker = ticker;
+        long now = currentTick();
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(validityTicks + 1, now);
+        }
+    }
+
+    /**
+     * Issues a new nonce for request, sets it on the request and registers the request.
+     * @return the new nonce.
+     */
+    public byte[] issueNonce(PopRequest request) {
+        if (request == null) {
+            throw new NullPointerException("PopRequest must not be null");
+        }
+        byte[] nonceBytes = new byte[NONCE_LENGTH];
+        while (true) {
+            random.nextBytes(nonceBytes);
+            long nonce = toLong(nonceBytes);
+            if (nonce == 0) {
+                continue; // 0 marks empty slots
+            }
+            if (stripe(nonce).add(nonce, request, currentTick())) {
+                request.setNonce(nonceBytes);
+                return nonceBytes.clone();
+            }
+        }
+    }
+
+    /**
+     * @return the registered request for nonce, or null if there is none or if it has expired.
+     */
+    public PopRequest get(byte[] nonce) {
+        if (nonce == null || nonce.length != NONCE_LENGTH) {
+            return null;
+        }
+        long key = toLong(nonce);
+        return key == 0 ? null : stripe(key).get(key, currentTick());
+    }
+
+    /**
+     * Removes the request for nonce, so that the nonce can't be used again. Of several threads consuming the same
+     * nonce, exactly one will get the request. A nonce that is reserved, see {@link #reserve(byte[])}, can't be
+     * consumed.
+     * @return the removed request, or null if there was none, if it had expired or if it's reserved.
+     */
+    public PopRequest consume(byte[] nonce) {
+        if (nonce == null || nonce.length != NONCE_LENGTH) {
+            return null;
+        }
+        long key = toLong(nonce);
+        return key == 0 ? null : stripe(key).remove(key, currentTick(), false);
+    }
+
+    /**
+     * Reserves the request for nonce, so that it can neither be reserved nor consumed by anyone else. The reservation
+     * must be followed by {@link #commit(byte[])}, which removes the request, or {@link #release(byte[])}, which makes
+     * the nonce usable again. This lets a validator decide if a pop is accepted before its nonce is used up.
+     * @return the reserved request, or null if there is none, if it has expired or if it's already reserved.
+     */
+    PopRequest reserve(byte[] nonce) {
+        if (nonce == null || nonce.length != NONCE_LENGTH) {
+            return null;
+        }
+        long key = toLong(nonce);
+        return key == 0 ? null : stripe(key).reserve(key, currentTick());
+    }
+
+    /**
+     * Removes the request for a nonce reserved with {@link #reserve(byte[])}.
+     */
+    void commit(byte[] nonce) {
+        long key = toLong(nonce);
+        stripe(key).remove(key, currentTick(), true);
+    }
+
+    /**
+     * Gives back a nonce reserved with {@link #reserve(byte[])}, unless it has expired in the meantime.
+     */
+    void release(byte[] nonce) {
+        long key = toLong(nonce);
+        stripe(key).release(key, currentTick());
+    }
+
+    /**
+     * Removes all expired requests. Calling this is not necessary for correctness, expired requests are never
+     * returned, but it frees their memory in stripes that are seldom used.
+     */
+    public void expire() {
+        long now = currentTick();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.advance(now);
+            }
+        }
+    }
+
+    /**
+     * @return the number of registered, and not yet removed, requests.
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size;
+            }
+        }
+        return size;
+    }
+
+    static long toLong(byte[] nonce) {
+        long result = 0;
+        for (byte b : nonce) {
+            result = (result << 8) | (b & 0xff);
+        }
+        return result & NONCE_MASK;
+    }
+
+    private long currentTick() {
+        return ticker.nanoTime() / tickNanos;
+    }
+
+    private Stripe stripe(long nonce) {
+        // The nonce is random, but mix anyway in case someone registers nonces differing only in the high bits.
+        return stripes[(int) ((nonce * 0x9E3779B97F4A7C15L) >>> 58)];
+    }
+
+    private class Stripe {
+        private long[] keys = new long[16];
+        private PopRequest[] requests = new PopRequest[16];
+        private long[] expiryTicks = new long[16];
+        private boolean[] reserved = new boolean[16];
+        private int size;
+
+        private final long[][] wheel;
+        private final int[] wheelSizes;
+        private long lastTick;
+
+        Stripe(int wheelSize, long now) {
+            wheel = new long[wheelSize][];
+            wheelSizes = new int[wheelSize];
+            lastTick = now;
+        }
+
+        synchronized boolean add(long key, PopRequest request, long now) {
+            advance(now);
+            int slot = find(key);
+            if (keys[slot] == key) {
+                return false;
+            }
+            long expiryTick = now + validityTicks;
+            keys[slot] = key;
+            requests[slot] = request;
+            expiryTicks[slot] = expiryTick;
+            size++;
+            schedule(key, expiryTick);
+            if (size > keys.length * 0.6) {
+                rehash(keys.length * 2);
+            }
+            return true;
+        }
+
+        synchronized PopRequest get(long key, long now) {
+            advance(now);
+            int slot = find(key);
+            return keys[slot] == key && expiryTicks[slot] > now ? requests[slot] : null;
+        }
+
+        synchronized PopRequest reserve(long key, long now) {
+            advance(now);
+            int slot = find(key);
+            if (keys[slot] != key || expiryTicks[slot] <= now || reserved[slot]) {
+                return null;
+            }
+            reserved[slot] = true;
+            return requests[slot];
+        }
+
+        synchronized void release(long key, long now) {
+            advance(now);
+            int slot = find(key);
+            if (keys[slot] == key) {
+                reserved[slot] = false;
+            }
+        }
+
+        /**
+         * @param reservation true to remove only a reserved request, false to remove only an unreserved one.
+         */
+        synchronized PopRequest remove(long key, long now, boolean reservation) {
+            advance(now);
+            int slot = find(key);
+            if (keys[slot] != key || reserved[slot] != reservation) {
+                return null;
+            }
+            PopRequest request = expiryTicks[slot] > now ? requests[slot] : null;
+            delete(slot);
+            return request;
+        }
+
+        /**
+         * Empties the wheel buckets of all ticks since the last advance, removing the requests that have expired.
+         */
+        void advance(long now) {
+            long ticks = Math.min(now - lastTick, wheel.length);
+            for (long tick = now - ticks + 1; tick <= now; tick++) {
+                int bucket = (int) Math.floorMod(tick, (long) wheel.length);
+                long[] scheduled = wheel[bucket];
+                for (int i = 0; i < wheelSizes[bucket]; i++) {
+                    int slot = find(scheduled[i]);
+                    // The request may already be consumed, or even replaced by a later one with the same nonce.
+                    if (keys[slot] == scheduled[i] && expiryTicks[slot] <= now) {
+                        delete(slot);
+                    }
+                }
+                wheelSizes[bucket] = 0;
+                if (scheduled != null && scheduled.length > 256) {
+                    wheel[bucket] = null; // Give back memory after a peak
+                }
+            }
+            if (now > lastTick) {
+                lastTick = now;
+            }
+        }
+
+        private void schedule(long key, long expiryTick) {
+            int bucket = (int) Math.floorMod(expiryTick, (long) wheel.length);
+            long[] scheduled = wheel[bucket];
+            if (scheduled == null) {
+                scheduled = wheel[bucket] = new long[8];
+            } else if (wheelSizes[bucket] == scheduled.length) {
+                scheduled = wheel[bucket] = Arrays.copyOf(scheduled, scheduled.length * 2);
+            }
+            scheduled[wheelSizes[bucket]++] = key;
+        }
+
+        private int find(long key) {
+            int mask = keys.length - 1;
+            int slot = (int) (key ^ (key >>> 24)) & mask;
+            while (keys[slot] != 0 && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        /**
+         * Removes the entry at slot, shifting following entries back so that no probe sequence is broken.
+         */
+        private void delete(int slot) {
+            int mask = keys.length - 1;
+            int hole = slot;
+            int next = (hole + 1) & mask;
+            while (keys[next] != 0) {
+                int home = (int) (keys[next] ^ (keys[next] >>> 24)) & mask;
+                // Move the entry at next into the hole unless its home lies cyclically in (hole, next].
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    keys[hole] = keys[next];
+                    requests[hole] = requests[next];
+                    expiryTicks[hole] = expiryTicks[next];
+                    reserved[hole] = reserved[next];
+                    hole = next;
+                }
+                next = (next + 1) & mask;
+            }
+            keys[hole] = 0;
+            requests[hole] = null;
+            reserved[hole] = false;
+            size--;
+        }
+
+        private void rehash(int capacity) {
+            long[] oldKeys = keys;
+            PopRequest[] oldRequests = requests;
+            long[] oldExpiryTicks = expiryTicks;
+            boolean[] oldReserved = reserved;
+            keys = new long[capacity];
+            requests = new PopRequest[capacity];
+            expiryTicks = new long[capacity];
+            reserved = new boolean[capacity];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    int slot = find(oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    requests[slot] = oldRequests[i];
+                    expiryTicks[slot] = oldExpiryTicks[i];
+                    reserved[slot] = oldReserved[i];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package se.rosenbaum.jpop.validate;
+
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionOutput;
+
+/**
+ * An alternative to looking up whole input transactions when validating a pop. Script verification only needs the
+ * value and scriptPubKey of the spent outputs, so an OutputStore only has to keep those.
+ *
+ * @see PopValidator#setOutputStore(OutputStore)
+ * @see InMemoryOutputStore
+ */
+public interface OutputStore {
+    /**
+     * @param outPoint the txid and output index of the output.
+     * @return the output, or null if it's unknown. The parent transaction of the returned output may be null.
+     */
+    TransactionOutput getOutput(TransactionOutPoint outPoint);
+}
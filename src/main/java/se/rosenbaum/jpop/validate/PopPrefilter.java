@@ -0,0 +1,220 @@
+package se.rosenbaum.jpop.validate;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.script.ScriptOpCodes;
+import se.rosenbaum.jpop.validate.ValidationResult.Code;
+
+import java.nio.ByteBuffer;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Cheap structural checks on a raw, serialized pop, made before a {@link se.rosenbaum.jpop.Pop} is constructed. The
+ * prefilter walks the bytes in place and checks the structure, the sequence numbers, that there is a single zero
+ * valued output with a 41 byte OP_RETURN script of version 1, the lock_time and, optionally, the nonce.
+ * <p>
+ * Rejections are preallocated, so rejecting a payload doesn't allocate anything. An accepted payload gives the txid
+ * of the proven transaction and the nonce, so the lookup of the proven transaction can start while the pop is parsed.
+ * <p>
+ * Passing the prefilter doesn't make a pop valid. It must still be validated by a {@link PopValidator}.
+ */
+public final class PopPrefilter {
+    private static final int POP_SCRIPT_LENGTH = 41;
+    private static final long POP_LOCK_TIME = PopValidator.LOCK_TIME;
+    private static final int NONCE_LENGTH = 6;
+
+    private static final Map<Code, Result> REJECTIONS = new EnumMap<Code, Result>(Code.class);
+
+    static {
+        for (Code code : Code.values()) {
+            if (code != Code.VALID) {
+                REJECTIONS.put(code, new Result(ValidationResult.invalid(code), null, null));
+            }
+        }
+    }
+
+    private PopPrefilter() {
+    }
+
+    /**
+     * The result of {@link PopPrefilter#check(ByteBuffer, byte[])}.
+     */
+    public static final class Result {
+        private final ValidationResult rejection;
+        private final Sha256Hash provenTxid;
+        private final byte[] nonce;
+
+        private Result(ValidationResult rejection, Sha256Hash provenTxid, byte[] nonce) {
+            this.rejection = rejection;
+            this.provenTxid = provenTxid;
+            this.nonce = nonce;
+        }
+
+        public boolean isAccepted() {
+            return rejection == null;
+        }
+
+        /**
+         * @return the reason the payload was rejected, or null if it was accepted.
+         */
+        public ValidationResult getRejection() {
+            return rejection;
+        }
+
+        /**
+         * @return the txid in the pop output, or null if the payload was rejected.
+         */
+        public Sha256Hash getProvenTxid() {
+            return provenTxid;
+        }
+
+        /**
+         * @return the nonce in the pop output, or null if the payload was rejected.
+         */
+        public byte[] getNonce() {
+            return nonce == null ? null : nonce.clone();
+        }
+    }
+
+    public static Result check(byte[] payload, byte[] expectedNonce) {
+        return check(ByteBuffer.wrap(payload), expectedNonce);
+    }
+
+    /**
+     * Checks the bytes between the position and the limit of payload. The position of payload is not changed.
+     * @param payload the raw pop as received by the validator.
+     * @param expectedNonce the requested nonce, or null to not check the nonce.
+     * @return the result of the checks. Never null.
+     */
+    public static Result check(ByteBuffer payload, byte[] expectedNonce) {
+        int end = payload.limit();
+        int p = payload.position() + 4; // version
+        if (p > end) {
+            return reject(Code.MALFORMED);
+        }
+
+        long inputCount = readVarInt(payload, p, end);
+        if (inputCount < 0) {
+            return reject(Code.MALFORMED);
+        }
+        p += varIntSize(payload, p);
+        if (inputCount == 0) {
+            return reject(Code.BASIC_VERIFICATION_FAILED);
+        }
+        for (long i = 0; i < inputCount; i++) {
+            p += 36; // outpoint
+            long scriptLength = readVarInt(payload, p, end);
+            if (scriptLength < 0) {
+                return reject(Code.MALFORMED);
+            }
+            long sequencePosition = (long) p + varIntSize(payload, p) + scriptLength;
+            if (sequencePosition + 4 > end) {
+                return reject(Code.MALFORMED);
+            }
+            p = (int) sequencePosition;
+            if (readUint32(payload, p) != 0) {
+                return reject(Code.INVALID_SEQUENCE_NUMBER);
+            }
+            p += 4;
+        }
+
+        long outputCount = readVarInt(payload, p, end);
+        if (outputCount < 0) {
+            return reject(Code.MALFORMED);
+        }
+        if (outputCount != 1) {
+            return reject(outputCount == 0 ? Code.BASIC_VERIFICATION_FAILED : Code.WRONG_NUMBER_OF_OUTPUTS);
+        }
+        p += varIntSize(payload, p);
+        if (p + 8 > end) {
+            return reject(Code.MALFORMED);
+        }
+        if (readUint32(payload, p) != 0 || readUint32(payload, p + 4) != 0) {
+            return reject(Code.INVALID_OUTPUT_VALUE);
+        }
+        p += 8;
+        long scriptLength = readVarInt(payload, p, end);
+        if (scriptLength < 0) {
+            return reject(Code.MALFORMED);
+        }
+        if (scriptLength != POP_SCRIPT_LENGTH) {
+            return reject(Code.INVALID_SCRIPT_LENGTH);
+        }
+        p += varIntSize(payload, p);
+        int script = p;
+        p += POP_SCRIPT_LENGTH;
+        if (p + 4 != end) {
+            return reject(Code.MALFORMED);
+        }
+        if (readUint32(payload, p) != POP_LOCK_TIME) {
+            return reject(Code.INVALID_LOCK_TIME);
+        }
+        if (payload.get(script) != (byte) ScriptOpCodes.OP_RETURN) {
+            return reject(Code.WRONG_OPCODE);
+        }
+        if (payload.get(script + 1) != 1 || payload.get(script + 2) != 0) {
+            return reject(Code.WRONG_VERSION);
+        }
+        int noncePosition = script + 35;
+        if (expectedNonce != null) {
+            if (expectedNonce.length != NONCE_LENGTH) {
+                return reject(Code.WRONG_NONCE);
+            }
+            for (int i = 0; i < NONCE_LENGTH; i++) {
+                if (payload.get(noncePosition + i) != expectedNonce[i]) {
+                    return reject(Code.WRONG_NONCE);
+                }
+            }
+        }
+
+        byte[] txid = new byte[32];
+        byte[] nonce = new byte[NONCE_LENGTH];
+        for (int i = 0; i < 32; i++) {
+            txid[i] = payload.get(script + 3 + i);
+        }
+        for (int i = 0; i < NONCE_LENGTH; i++) {
+            nonce[i] = payload.get(noncePosition + i);
+        }
+        return new Result(null, Sha256Hash.wrap(txid), nonce);
+    }
+
+    private static Result reject(Code code) {
+        return REJECTIONS.get(code);
+    }
+
+    /**
+     * @return the value of the bitcoin variable length integer at position, or -1 if it doesn't fit before end or
+     * doesn't fit in a positive long.
+     */
+    private static long readVarInt(ByteBuffer buffer, int position, int end) {
+        if (position < 0 || position >= end) {
+            return -1;
+        }
+        int first = buffer.get(position) & 0xff;
+        int size = first < 0xfd ? 0 : first == 0xfd ? 2 : first == 0xfe ? 4 : 8;
+        if ((long) position + 1 + size > end) {
+            return -1;
+        }
+        if (size == 0) {
+            return first;
+        }
+        long value = 0;
+        for (int i = size; i > 0; i--) {
+            value = (value << 8) | (buffer.get(position + i) & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * @return the number of bytes of the variable length integer at position, which must have been read successfully.
+     */
+    private static int varIntSize(ByteBuffer buffer, int position) {
+        int first = buffer.get(position) & 0xff;
+        return first < 0xfd ? 1 : first == 0xfd ? 3 : first == 0xfe ? 5 : 9;
+    }
+
+    private static long readUint32(ByteBuffer buffer, int position) {
+        return (buffer.get(position) & 0xffL) | (buffer.get(position + 1) & 0xffL) << 8
+                | (buffer.get(position + 2) & 0xffL) << 16 | (buffer.get(position + 3) & 0xffL) << 24;
+    }
+}
@@ -0,0 +1,13 @@
+package se.rosenbaum.jpop.validate;
+
+/**
+ * Thrown by the validatePop methods of {@link PopValidator} when a PoP could not be validated at all, for example because a store or the journal failed. Unlike {@link InvalidPopException}, it says nothing about
+ * the PoP itself, so the same PoP may be valid when retried.
+ */
+public class PopValidationException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public PopValidationException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,265 @@
+package se.rosenbaum.jpop.validate;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.rosenbaum.jpop.Pop;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs the validation of a {@link PopValidator} in three stages, each with its own threads:
+ * <ol>
+ *     <li>check: parsing and the checks that only need the pop itself, step 1 to 4</li>
+ *     <li>lookup: fetching the proven transaction and the input transactions from the TransactionStore</li>
+ *     <li>verify: checking the signatures, step 6</li>
+ * </ol>
+ * Slow store lookups can then only occupy the lookup threads, and never keep the verify threads from using the
+ * processors, or the other way around.
+ * <p>
+ * Each stage has a bounded queue. When a stage's queue is full, the stage before it waits until there is room, so a
+ * slow stage eventually fills the check queue. Pops submitted when the check queue is full are rejected at once:
+ * the returned stage completes exceptionally with a RejectedExecutionException. Memory use is thereby bounded by the
+ * queue capacities.
+ * <p>
+ * If the PopValidator has an AdmissionController, pops beyond its limit are completed with
+ * {@link ValidationResult.Code#OVERLOADED} without being queued. The time waiting in the check queue counts as
+ * queueing latency.
+ * <p>
+ * The returned stages are completed on the pipeline threads. Dependent actions that do more than a little work
+ * should be run with one of the async methods of CompletionStage, to not hold up the pipeline.
+ */
+public class PopValidationPipeline {
+    private final Logger logger = LoggerFactory.getLogger(PopValidationPipeline.class);
+    private final NetworkParameters params;
+    private final PopValidator popValidator;
+    private final ThreadPoolExecutor checkExecutor;
+    private final ThreadPoolExecutor lookupExecutor;
+    private final ThreadPoolExecutor verifyExecutor;
+    private final LongAdder rejectedCount = new LongAdder();
+
+    /**
+     * Creates a pipeline with one check thread, 16 lookup threads, one verify thread per processor and queues of
+     * 1024 pops.
+     */
+    public PopValidationPipeline(NetworkParameters params, PopValidator popValidator) {
+        this(params, popValidator, 1, 16, Runtime.getRuntime().availableProcessors(), 1024);
+    }
+
+    /**
+     * @param params the network of the pops, used to parse raw pops.
+     * @param popValidator the validator whose checks are run.
+     * @param checkThreads the number of threads parsing and checking pops.
+     * @param lookupThreads the number of threads waiting on the TransactionStore.
+     * @param verifyThreads the number of threads verifying signatures.
+     * @param queueCapacity the number of pops each stage can hold waiting for a thread.
+     */
+    public PopValidationPipeline(NetworkParameters params, PopValidator popValidator, int checkThreads,
+                                 int lookupThreads, int verifyThreads, int queueCapacity) {
+        this.params = params;
+        this.popValidator = popValidator;
+        this.checkExecutor = stage("check", checkThreads, queueCapacity, new ThreadPoolExecutor.AbortPolicy());
+        this.lookupExecutor = stage("lookup", lookupThreads, queueCapacity, WAIT_FOR_ROOM);
+        this.verifyExecutor = stage("verify", verifyThreads, queueCapacity, WAIT_FOR_ROOM);
+    }
+
+    /**
+     * Validates a pop, the same way as {@link PopValidator#validate(Pop, byte[])}.
+     * @param pop The pop to validate
+     * @param nonce The requested nonce to be checked against the nonce in the PoP
+     * @return the result of the validation. Failures in the store are reported as {@link ValidationResult.Code#ERROR}.
+     * Completes exceptionally with a RejectedExecutionException if the pipeline is full or shut down.
+     */
+    public CompletionStage<ValidationResult> submit(final Pop pop, final byte[] nonce) {
+        final CompletableFuture<ValidationResult> result = new CompletableFuture<ValidationResult>();
+        submitCheck(result, new Runnable() {
+            public void run() {
+                check(pop, nonce, result);
+            }
+        });
+        return result.thenApply(validated -> popValidator.recorded(pop, validated));
+    }
+
+    /**
+     * Parses and validates a raw pop. Malformed pops are rejected without being parsed, see {@link PopPrefilter}.
+     * @param payload the raw pop as received
+     * @param nonce The requested nonce to be checked against the nonce in the PoP
+     * @return the result of the validation, as for {@link #submit(Pop, byte[])}.
+     */
+    public CompletionStage<ValidationResult> submit(final byte[] payload, final byte[] nonce) {
+        final CompletableFuture<ValidationResult> result = new CompletableFuture<ValidationResult>();
+        final AtomicReference<Pop> parsed = new AtomicReference<Pop>();
+        submitCheck(result, new Runnable() {
+            public void run() {
+                PopPrefilter.Result prefilterResult = PopPrefilter.check(payload, nonce);
+                if (!prefilterResult.isAccepted()) {
+                    result.complete(prefilterResult.getRejection());
+                    return;
+                }
+                Pop pop;
+                try {
+                    pop = new Pop(params, payload);
+                } catch (ProtocolException e) {
+                    result.complete(ValidationResult.invalid(ValidationResult.Code.MALFORMED));
+                    return;
+                }
+                parsed.set(pop);
+                check(pop, nonce, result);
+            }
+        });
+        return result.thenApply(validated -> parsed.get() != null ? popValidator.recorded(parsed.get(), validated)
+                : popValidator.recorded(payload, validated));
+    }
+
+    /**
+     * @return the number of pops rejected because the pipeline was full.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    /**
+     * @return the number of pops waiting for a thread in the check, lookup and verify stages.
+     */
+    public int[] getQueueSizes() {
+        return new int[] {checkExecutor.getQueue().size(), lookupExecutor.getQueue().size(),
+                verifyExecutor.getQueue().size()};
+    }
+
+    /**
+     * Stops accepting pops and waits for the submitted ones to complete, one stage at a time.
+     */
+    public void shutdown() throws InterruptedException {
+        for (ThreadPoolExecutor executor : new ThreadPoolExecutor[] {checkExecutor, lookupExecutor, verifyExecutor}) {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void submitCheck(CompletableFuture<ValidationResult> result, final Runnable check) {
+        Runnable task = check;
+        AdmissionController admissionController = popValidator.getAdmissionController();
+        if (admissionController != null) {
+            final AdmissionController.Permit permit = admissionController.tryAcquire();
+            if (permit == null) {
+                result.complete(ValidationResult.invalid(ValidationResult.Code.OVERLOADED));
+                return;
+            }
+            result.whenComplete((validationResult, e) -> permit.release());
+            task = () -> {
+                permit.serviceStarted();
+                check.run();
+            };
+        }
+        try {
+            checkExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            rejectedCount.increment();
+            result.completeExceptionally(e);
+        }
+    }
+
+    private void check(final Pop pop, final byte[] nonce, final CompletableFuture<ValidationResult> result) {
+        try {
+            ValidationResult rejection = popValidator.checkPop(pop, nonce);
+            if (rejection != null) {
+                result.complete(rejection);
+                return;
+            }
+            lookupExecutor.execute(new Runnable() {
+                public void run() {
+                    lookup(pop, result);
+                }
+            });
+        } catch (RuntimeException e) {
+            fail(result, e);
+        }
+    }
+
+    private void lookup(final Pop pop, final CompletableFuture<ValidationResult> result) {
+        try {
+            final Transaction provenTransaction = popValidator.lookupProvenTransaction(pop);
+            if (provenTransaction == null) {
+                result.complete(ValidationResult.invalid(ValidationResult.Code.UNKNOWN_TRANSACTION));
+                return;
+            }
+            ValidationResult rejection = popValidator.checkInputs(pop, provenTransaction);
+            if (rejection != null) {
+                result.complete(rejection);
+                return;
+            }
+            final Map<Sha256Hash, Transaction> inputTransactions =
+                    popValidator.lookupInputTransactions(pop, provenTransaction);
+            verifyExecutor.execute(new Runnable() {
+                public void run() {
+                    verify(pop, provenTransaction, inputTransactions, result);
+                }
+            });
+        } catch (RuntimeException e) {
+            fail(result, e);
+        }
+    }
+
+    private void verify(Pop pop, Transaction provenTransaction, Map<Sha256Hash, Transaction> inputTransactions,
+                        CompletableFuture<ValidationResult> result) {
+        try {
+            result.complete(popValidator.verify(pop, provenTransaction, inputTransactions));
+        } catch (RuntimeException e) {
+            fail(result, e);
+        }
+    }
+
+    private void fail(CompletableFuture<ValidationResult> result, RuntimeException e) {
+        logger.debug("Unexpected failure while validating pop", e);
+        result.complete(ValidationResult.error(e));
+    }
+
+    /**
+     * Makes the submitting thread wait for room in the queue, which pushes back on the stage before.
+     */
+    private static final RejectedExecutionHandler WAIT_FOR_ROOM = new RejectedExecutionHandler() {
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Pipeline is shut down");
+            }
+            try {
+                executor.getQueue().put(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for room", e);
+            }
+        }
+    };
+
+    private static ThreadPoolExecutor stage(final String name, int threads, int queueCapacity,
+                                            RejectedExecutionHandler handler) {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "pop-" + name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), threadFactory, handler);
+        // All threads must be running for tasks put straight into the queue to be picked up.
+        executor.prestartAllCoreThreads();
+        return executor;
+    }
+}
@@ -1,27 +1,66 @@
 package se.rosenbaum.jpop.validate;
 
 import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
 import org.bitcoinj.core.TransactionOutput;
 import org.bitcoinj.core.VerificationException;
 
+import org.bitcoinj.script.Script;
 import org.bitcoinj.script.ScriptOpCodes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import se.rosenbaum.jpop.Pop;
+import se.rosenbaum.jpop.PopRequest;
+import se.rosenbaum.jpop.validate.ValidationResult.Code;
+import se.rosenbaum.jpop.validate.ValidationResult.Step;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * This class validates a PoP according to BIP120 (as in section "Validating a PoP" of https://github.com/bitcoin/bips/blob/master/bip-0120.mediawiki)
+ * <p>
+ * Validation never modifies the transactions from the TransactionStore, and never connects the inputs of the pop.
+ * The outputs spent by the pop are looked up into state private to each validation instead. A configured PopValidator
+ * may therefore be shared by any number of threads, and the store may hand out the same transaction objects to all
+ * of them, as long as the TransactionStore itself is thread safe. The setters are not meant to be called while
+ * validations are running, and each Pop object should only be validated by one thread at a time.
  */
 public class PopValidator {
-    private static final long LOCK_TIME = 499999999;
+    static final long LOCK_TIME = 499999999;
     Logger logger = LoggerFactory.getLogger(PopValidator.class);
     TransactionStore transactionStore;
+    AsyncTransactionStore asyncTransactionStore;
+    private Executor batchExecutor = ForkJoinPool.commonPool();
+    private SignatureCache signatureCache;
+    private Executor inputVerificationExecutor;
+    private int parallelInputThreshold;
+    private OutputStore outputStore;
+    private NonceRegistry nonceRegistry;
+    private ReplayFilter replayFilter;
+    private AdmissionController admissionController;
+    private ValidationMetrics metrics = ValidationMetrics.NOOP;
+    private ValidationJournal journal = ValidationJournal.NOOP;
 
     /**
      *
@@ -29,8 +68,182 @@ public class PopValidator {
      *                         the proven transaction, second it's the input transactions of the proven transaction. All
      *                         these transactions must be available through the transactionStore.
      */
-    public PopValidator(TransactionStore transactionStore) {
+    public PopValidator(final TransactionStore transactionStore) {
         this.transactionStore = transactionStore;
+        this.asyncTransactionStore = new AsyncTransactionStore() {
+            public CompletableFuture<Transaction> getTransaction(Sha256Hash txid) {
+                CompletableFuture<Transaction> future = new CompletableFuture<Transaction>();
+                try {
+                    future.complete(transactionStore.getTransaction(txid));
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+                return future;
+            }
+        };
+    }
+
+    /**
+     * Creates a validator for use with {@link #validateAsync(Pop, byte[])}. The blocking methods, like
+     * {@link #validatePop(Pop, byte[])}, work too, but will block the calling thread while waiting for the lookups.
+     * @param asyncTransactionStore The store to look up the proven transaction and its input transactions in.
+     */
+    public PopValidator(final AsyncTransactionStore asyncTransactionStore) {
+        this.asyncTransactionStore = asyncTransactionStore;
+        this.transactionStore = new TransactionStore() {
+            public Transaction getTransaction(Sha256Hash txid) {
+                return asyncTransactionStore.getTransaction(txid).join();
+            }
+
+            @Override
+            public Map<Sha256Hash, Transaction> getTransactions(Collection<Sha256Hash> txids) {
+                Map<Sha256Hash, CompletableFuture<Transaction>> lookups = new HashMap<Sha256Hash, CompletableFuture<Transaction>>();
+                for (Sha256Hash txid : txids) {
+                    lookups.put(txid, asyncTransactionStore.getTransaction(txid));
+                }
+                Map<Sha256Hash, Transaction> transactions = new HashMap<Sha256Hash, Transaction>();
+                for (Map.Entry<Sha256Hash, CompletableFuture<Transaction>> lookup : lookups.entrySet()) {
+                    Transaction transaction = lookup.getValue().join();
+                    if (transaction != null) {
+                        transactions.put(lookup.getKey(), transaction);
+                    }
+                }
+                return transactions;
+            }
+        };
+    }
+
+    /**
+     * Sets the executor that {@link #validateAll(List, List)} fans its work out on. Defaults to the common
+     * ForkJoinPool. Use a dedicated pool if batch validation should not compete with other work in the JVM.
+     * <p>
+     * {@link #validateAsync(Pop, byte[])} runs its signature verification on this executor too.
+     * @param batchExecutor the executor to run batch validations on. Must not be null.
+     */
+    public void setBatchExecutor(Executor batchExecutor) {
+        if (batchExecutor == null) {
+            throw new NullPointerException("Executor must not be null");
+        }
+        this.batchExecutor = batchExecutor;
+    }
+
+    /**
+     * Sets a cache of already verified input scripts. Resubmissions of the same signed PoP will then skip the script
+     * execution for inputs that have been verified before. The same cache may be shared between several validators.
+     * @param signatureCache the cache to use, or null to always execute the scripts, which is the default.
+     */
+    public void setSignatureCache(SignatureCache signatureCache) {
+        this.signatureCache = signatureCache;
+    }
+
+    /**
+     * Makes the validator take the outputs spent by the PoP from an OutputStore, instead of looking up the whole input
+     * transactions in the TransactionStore. The TransactionStore is then only used for the proven transaction.
+     * <p>
+     * {@link #validateAsync(Pop, byte[])} makes its OutputStore lookups on the batch executor, so the OutputStore
+     * should be local and fast, like {@link InMemoryOutputStore}.
+     * @param outputStore the store to take spent outputs from, or null to take them from the input transactions in
+     *                    the TransactionStore, which is the default.
+     */
+    public void setOutputStore(OutputStore outputStore) {
+        this.outputStore = outputStore;
+    }
+
+    /**
+     * Sets the registry of outstanding PopRequests that {@link #validatePop(Pop)} and {@link #validate(Pop)} check
+     * nonces against.
+     */
+    public void setNonceRegistry(NonceRegistry nonceRegistry) {
+        this.nonceRegistry = nonceRegistry;
+    }
+
+    /**
+     * Makes the validator reject pops that have already been accepted, or that reuse the nonce of an accepted pop.
+     * Every valid pop is recorded in the filter. Without a {@link ReplayCheck} on the filter, a small fraction of
+     * legitimate pops is rejected as replays, see
+     * {@link ReplayFilter#ReplayFilter(long, java.util.concurrent.TimeUnit, int, long)}.
+     */
+    public void setReplayFilter(ReplayFilter replayFilter) {
+        this.replayFilter = replayFilter;
+    }
+
+    /**
+     * Makes the validator shed pops beyond the limit of the AdmissionController, reporting them as
+     * {@link Code#OVERLOADED} without validating them.
+     */
+    public void setAdmissionController(AdmissionController admissionController) {
+        this.admissionController = admissionController;
+    }
+
+    AdmissionController getAdmissionController() {
+        return admissionController;
+    }
+
+    /**
+     * Sets where to report step latencies, outcomes and input counts. By default nothing is recorded.
+     */
+    public void setValidationMetrics(ValidationMetrics metrics) {
+        this.metrics = metrics == null ? ValidationMetrics.NOOP : metrics;
+    }
+
+    ValidationMetrics getValidationMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets where to write every validated pop and its result, for example a {@link FileValidationJournal}. By default
+     * nothing is written.
+     */
+    public void setValidationJournal(ValidationJournal journal) {
+        this.journal = journal == null ? ValidationJournal.NOOP : journal;
+    }
+
+    /**
+     * Makes the validator verify the input scripts of large PoPs concurrently. PoPs with at least parallelInputThreshold
+     * inputs will have their scripts verified on the given executor, with the calling thread taking part. As soon as
+     * one input fails, no more inputs are started. Smaller PoPs are verified on the calling thread only.
+     * <p>
+     * The executor is typically a CPU sized pool shared by all validations in the application. A PoP uses at most as
+     * many of its threads as a ForkJoinPool or ThreadPoolExecutor can run, or as there are processors for other
+     * executors.
+     * @param inputVerificationExecutor the executor to verify inputs on, or null to always verify on the calling
+     *                                  thread, which is the default.
+     * @param parallelInputThreshold the minimum number of inputs for a PoP to be verified in parallel.
+     */
+    public void setInputVerificationExecutor(Executor inputVerificationExecutor, int parallelInputThreshold) {
+        if (parallelInputThreshold < 2) {
+            throw new IllegalArgumentException("Threshold must be at least 2: " + parallelInputThreshold);
+        }
+        this.inputVerificationExecutor = inputVerificationExecutor;
+        this.parallelInputThreshold = parallelInputThreshold;
+    }
+
+    /**
+     * Validates a batch of PoPs concurrently on the batch executor, see {@link #setBatchExecutor(Executor)}. Each PoP
+     * is validated exactly as with {@link #validatePop(Pop, byte[])}, but an invalid PoP does not abort the batch.
+     * Instead every PoP gets its own ValidationResult.
+     * <p>
+     * The TransactionStore must be safe to use from several threads at once when calling this method.
+     * @param pops The pops to validate
+     * @param nonces The requested nonces. nonces.get(i) is checked against pops.get(i).
+     * @return one result per pop, in the same order as the pops.
+     * @throws IllegalArgumentException if pops and nonces are of different sizes.
+     */
+    public List<ValidationResult> validateAll(List<Pop> pops, List<byte[]> nonces) {
+        if (pops.size() != nonces.size()) {
+            throw new IllegalArgumentException("Got " + pops.size() + " pops but " + nonces.size() + " nonces");
+        }
+        List<CompletableFuture<ValidationResult>> futures = new ArrayList<CompletableFuture<ValidationResult>>(pops.size());
+        for (int i = 0; i < pops.size(); i++) {
+            final Pop pop = pops.get(i);
+            final byte[] nonce = nonces.get(i);
+            futures.add(CompletableFuture.supplyAsync(() -> validateQuietly(pop, nonce), batchExecutor));
+        }
+        List<ValidationResult> results = new ArrayList<ValidationResult>(futures.size());
+        for (CompletableFuture<ValidationResult> future : futures) {
+            results.add(future.join());
+        }
+        return results;
     }
 
     /**
@@ -42,79 +255,491 @@ public class PopValidator {
      * @param nonce The requested nonce to be checked against the nonce in the PoP
      * @return the transaction that the pop proves.
      * @throws InvalidPopException If the pop is invalid.
+     * @throws PopValidationException If the pop could not be validated, see {@link Code#ERROR}.
      */
     public Transaction validatePop(Pop pop, byte[] nonce) throws InvalidPopException {
+        ValidationResult result = validate(pop, nonce);
+        throwIfInvalid(result);
+        return result.getProvenTransaction();
+    }
+
+    /**
+     * Performs the same checks as {@link #validatePop(Pop, byte[])}, but reports a rejected PoP through the returned
+     * ValidationResult instead of throwing an exception. This is cheaper when many PoPs are expected to be invalid.
+     * @param pop The pop to validate
+     * @param nonce The requested nonce to be checked against the nonce in the PoP
+     * @return the result of the validation. Never null.
+     */
+    public ValidationResult validate(Pop pop, byte[] nonce) {
+        if (admissionController == null) {
+            return recorded(pop, validateAdmitted(pop, nonce));
+        }
+        AdmissionController.Permit permit = admissionController.tryAcquire();
+        if (permit == null) {
+            return recorded(pop, ValidationResult.invalid(Code.OVERLOADED));
+        }
+        try {
+            return recorded(pop, validateAdmitted(pop, nonce));
+        } finally {
+            permit.release();
+        }
+    }
+
+    private ValidationResult validateAdmitted(Pop pop, byte[] nonce) {
+        ValidationResult result = checkPop(pop, nonce);
+        if (result != null) {
+            return result;
+        }
+
+        Transaction provenTransaction = lookupProvenTransaction(pop);
+        if (provenTransaction == null) {
+            return ValidationResult.invalid(Code.UNKNOWN_TRANSACTION);
+        }
+
+        // 5 Check inputs
+        // 6 Check signatures
+        return checkInputsAndSignatures(pop, provenTransaction);
+    }
+
+    /**
+     * Validates a pop against the outstanding requests in the NonceRegistry, see
+     * {@link #setNonceRegistry(NonceRegistry)}. The nonce of the pop must belong to a registered request, and if the
+     * request has a txid, the pop must prove that transaction. If the pop is valid, its nonce is consumed so it can't
+     * be used again. Of several valid pops with the same nonce validated concurrently, only one is accepted.
+     * @param pop The pop to validate
+     * @return the transaction that the pop proves.
+     * @throws InvalidPopException If the pop is invalid.
+     * @throws PopValidationException If the pop could not be validated, see {@link Code#ERROR}.
+     * @throws IllegalStateException if there is no NonceRegistry.
+     */
+    public Transaction validatePop(Pop pop) throws InvalidPopException {
+        ValidationResult result = validate(pop);
+        throwIfInvalid(result);
+        return result.getProvenTransaction();
+    }
+
+    /**
+     * Performs the same checks as {@link #validatePop(Pop)}, but reports a rejected PoP through the returned
+     * ValidationResult instead of throwing an exception. A valid result carries the PopRequest of the nonce.
+     * @param pop The pop to validate
+     * @return the result of the validation. Never null.
+     * @throws IllegalStateException if there is no NonceRegistry.
+     */
+    public ValidationResult validate(Pop pop) {
+        if (nonceRegistry == null) {
+            throw new IllegalStateException("No NonceRegistry set");
+        }
+        if (admissionController == null) {
+            return validateAdmitted(pop);
+        }
+        AdmissionController.Permit permit = admissionController.tryAcquire();
+        if (permit == null) {
+            return recorded(pop, ValidationResult.invalid(Code.OVERLOADED));
+        }
+        try {
+            return validateAdmitted(pop);
+        } finally {
+            permit.release();
+        }
+    }
+
+    /**
+     * Performs {@link #validate(Pop)} for a pop already admitted by the AdmissionController, if any.
+     */
+    ValidationResult validateAdmitted(Pop pop) {
+        if (nonceRegistry == null) {
+            throw new IllegalStateException("No NonceRegistry set");
+        }
+        ValidationResult result = validateWithNonceRegistry(pop);
+        if (!result.isValid()) {
+            return recorded(pop, result);
+        }
+        // The nonce is only used up once the pop is accepted and journaled, so junk pops can't burn it and a pop that
+        // can't be journaled may be submitted again.
+        byte[] nonce = popNonce(pop);
+        if (nonceRegistry.reserve(nonce) == null) {
+            // Expired or used by another pop in the meantime.
+            return recorded(pop, ValidationResult.invalid(Code.UNKNOWN_NONCE));
+        }
+        return recorded(accept(pop, result, nonce));
+    }
+
+    /**
+     * @return the rejection, or a valid result carrying the PopRequest of the nonce, which is left in the registry.
+     */
+    private ValidationResult validateWithNonceRegistry(Pop pop) {
+        ValidationResult result = checkStructure(pop);
+        if (result != null) {
+            return result;
+        }
+
+        // 4 Check nonce
+        long start = startTimer();
+        PopRequest popRequest = nonceRegistry.get(popNonce(pop));
+        stopTimer(Step.NONCE, start);
+        if (popRequest == null) {
+            return ValidationResult.invalid(Code.UNKNOWN_NONCE);
+        }
+        Sha256Hash txid = provenTxid(pop);
+        if (popRequest.getTxid() != null && !popRequest.getTxid().equals(txid)) {
+            return ValidationResult.invalid(Code.UNEXPECTED_TRANSACTION);
+        }
+
+        Transaction provenTransaction = lookupProvenTransaction(pop);
+        if (provenTransaction == null) {
+            return ValidationResult.invalid(Code.UNKNOWN_TRANSACTION);
+        }
+
+        // 5 Check inputs
+        // 6 Check signatures
+        result = checkInputsAndSignatures(pop, provenTransaction);
+        return result.isValid() ? ValidationResult.valid(provenTransaction, popRequest) : result;
+    }
+
+    /**
+     * Performs the same checks as {@link #validate(Pop, byte[])}, but without blocking on any lookups. As soon as the
+     * proven transaction is known, all its input transactions are requested concurrently from the
+     * AsyncTransactionStore. When they have arrived the signatures are verified on the batch executor, see
+     * {@link #setBatchExecutor(Executor)}. No thread is blocked while waiting for the store.
+     * <p>
+     * If this validator was created with a blocking TransactionStore, the lookups will be made on the calling thread.
+     * @param pop The pop to validate
+     * @param nonce The requested nonce to be checked against the nonce in the PoP
+     * @return a future result of the validation. The future never completes exceptionally, failures in the store
+     * are reported as {@link Code#ERROR}.
+     */
+    public CompletableFuture<ValidationResult> validateAsync(final Pop pop, byte[] nonce) {
+        if (admissionController == null) {
+            return validateAsyncAdmitted(pop, nonce).thenApply(validated -> recorded(pop, validated));
+        }
+        final AdmissionController.Permit permit = admissionController.tryAcquire();
+        if (permit == null) {
+            return CompletableFuture.completedFuture(recorded(pop, ValidationResult.invalid(Code.OVERLOADED)));
+        }
+        return validateAsyncAdmitted(pop, nonce).whenComplete((result, e) -> permit.release())
+                .thenApply(validated -> recorded(pop, validated));
+    }
+
+    private CompletableFuture<ValidationResult> validateAsyncAdmitted(final Pop pop, byte[] nonce) {
+        try {
+            ValidationResult result = checkPop(pop, nonce);
+            if (result != null) {
+                return CompletableFuture.completedFuture(result);
+            }
+            final long start = startTimer();
+            return asyncTransactionStore.getTransaction(provenTxid(pop))
+                    .thenCompose(provenTransaction -> {
+                        stopTimer(Step.PROVEN_TRANSACTION, start);
+                        return lookupInputsAndVerify(pop, provenTransaction);
+                    })
+                    .exceptionally(this::asyncError);
+        } catch (RuntimeException e) {
+            return CompletableFuture.completedFuture(asyncError(e));
+        }
+    }
+
+    private CompletableFuture<ValidationResult> lookupInputsAndVerify(final Pop pop, final Transaction provenTransaction) {
+        if (provenTransaction == null) {
+            return CompletableFuture.completedFuture(ValidationResult.invalid(Code.UNKNOWN_TRANSACTION));
+        }
+        ValidationResult result = checkInputs(pop, provenTransaction);
+        if (result != null) {
+            return CompletableFuture.completedFuture(result);
+        }
+        if (outputStore != null) {
+            return CompletableFuture.supplyAsync(
+                    () -> verify(pop, provenTransaction, Collections.<Sha256Hash, Transaction>emptyMap()), batchExecutor);
+        }
+        final long start = startTimer();
+        final Map<Sha256Hash, CompletableFuture<Transaction>> lookups = new HashMap<Sha256Hash, CompletableFuture<Transaction>>();
+        for (Sha256Hash hash : inputTransactionIds(pop)) {
+            lookups.put(hash, asyncTransactionStore.getTransaction(hash));
+        }
+        return CompletableFuture.allOf(lookups.values().toArray(new CompletableFuture<?>[lookups.size()]))
+                .thenApplyAsync(ignored -> {
+                    stopTimer(Step.INPUTS, start);
+                    Map<Sha256Hash, Transaction> inputTransactions = new HashMap<Sha256Hash, Transaction>();
+                    for (Map.Entry<Sha256Hash, CompletableFuture<Transaction>> lookup : lookups.entrySet()) {
+                        // All lookups are done, so this doesn't block.
+                        inputTransactions.put(lookup.getKey(), lookup.getValue().join());
+                    }
+                    return verify(pop, provenTransaction, inputTransactions);
+                }, batchExecutor);
+    }
+
+    /**
+     * Settles the final verdict on a validated pop and writes it to the ValidationJournal, exactly once. A valid pop
+     * is rejected if the ReplayFilter, if any, takes it for a replay. The pop is only recorded in the ReplayFilter,
+     * and its reserved nonce only consumed, once it has been journaled. If the journal fails, the pop is reported as
+     * {@link Code#ERROR} and both are left as they were, so the pop may be submitted again.
+     * @param result the outcome of the checks, valid or not.
+     * @param reservedNonce the nonce of the pop, reserved in the NonceRegistry, or null if none is reserved.
+     * @return the final result.
+     */
+    private ValidationResult accept(Pop pop, ValidationResult result, byte[] reservedNonce) {
+        byte[] replayNonce = null;
+        if (result.isValid() && replayFilter != null) {
+            replayNonce = popNonce(pop);
+            if (!replayFilter.reserve(pop.getHash(), replayNonce)) {
+                replayNonce = null;
+                result = ValidationResult.invalid(Code.REPLAYED);
+            }
+        }
+        boolean journaled = false;
+        try {
+            journal.validated(pop, result);
+            journaled = true;
+        } catch (RuntimeException e) {
+            logger.warn("Failed to journal pop", e);
+            result = ValidationResult.error(e);
+        } finally {
+            if (replayNonce != null) {
+                if (journaled) {
+                    replayFilter.record(pop.getHash(), replayNonce);
+                } else {
+                    replayFilter.release(pop.getHash(), replayNonce);
+                }
+            }
+            if (reservedNonce != null) {
+                if (journaled) {
+                    nonceRegistry.commit(reservedNonce);
+                } else {
+                    nonceRegistry.release(reservedNonce);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void throwIfInvalid(ValidationResult result) throws InvalidPopException {
+        if (result.getCode() == Code.ERROR) {
+            throw new PopValidationException(result.getMessage(), result.getCause());
+        }
+        if (!result.isValid()) {
+            throw result.toException();
+        }
+    }
+
+    private static byte[] popNonce(Pop pop) {
+        return Arrays.copyOfRange(pop.getOutput(0).getScriptBytes(), 35, 41);
+    }
+
+    private ValidationResult asyncError(Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        logger.debug("Unexpected failure while validating pop", cause);
+        return ValidationResult.error(cause);
+    }
+
+    /**
+     * Performs step 1 to 4 of the validation, which only need the pop itself.
+     * @return null if the pop passes, otherwise the rejection.
+     */
+    ValidationResult checkPop(Pop pop, byte[] nonce) {
+        ValidationResult result = checkStructure(pop);
+        if (result != null) {
+            return result;
+        }
+
+        // 4 Check nonce
+        long start = startTimer();
+        result = checkNonce(pop.getOutput(0).getScriptBytes(), nonce);
+        stopTimer(Step.NONCE, start);
+        return result;
+    }
+
+    /**
+     * Performs step 1 to 3 of the validation.
+     * @return null if the pop passes, otherwise the rejection.
+     */
+    private ValidationResult checkStructure(Pop pop) {
         // 1 Basic checks
         if (pop == null) {
-            throw new InvalidPopException("Pop is null");
+            return ValidationResult.invalid(Code.NULL_POP);
         }
+        long start = startTimer();
         try {
             pop.verify();
         } catch (VerificationException e) {
-            throw new InvalidPopException("Basic verification failed.", e);
+            return ValidationResult.invalid(Code.BASIC_VERIFICATION_FAILED, e);
+        } finally {
+            start = stopTimer(Step.BASIC, start);
         }
 
         // 2 Check lock_time
-        checkLockTime(pop);
+        ValidationResult result = checkLockTime(pop);
+        start = stopTimer(Step.LOCK_TIME, start);
+        if (result != null) {
+            return result;
+        }
 
         // 3 Check the "PoP output"
-        byte[] data = checkOutput(pop);
-
-        // 4 Check nonce
-        checkNonce(data, nonce);
+        result = checkOutput(pop);
+        stopTimer(Step.OUTPUT, start);
+        return result;
+    }
 
+    /**
+     * @param pop a pop that has passed {@link #checkStructure(Pop)}
+     * @return the txid in the pop output.
+     */
+    private Sha256Hash provenTxid(Pop pop) {
         byte[] txidBytes = new byte[32];
-        System.arraycopy(data, 3, txidBytes, 0, 32);
-        Sha256Hash txid = new Sha256Hash(txidBytes);
-        Transaction provenTransaction = getTransaction(txid);
-
-        // 5 Check inputs
-        // 6 Check signatures
-        checkInputsAndSignatures(pop, provenTransaction);
-
-        // No exceptions, means PoP valid.
-        return provenTransaction;
+        System.arraycopy(pop.getOutput(0).getScriptBytes(), 3, txidBytes, 0, 32);
+        return Sha256Hash.wrap(txidBytes);
     }
 
-    private void checkLockTime(Pop pop) throws InvalidPopException {
-        if (pop.getLockTime() != LOCK_TIME) {
-            throw new InvalidPopException("Invalid lock_time. Expected " + LOCK_TIME);
+    private ValidationResult validateQuietly(Pop pop, byte[] nonce) {
+        try {
+            return validate(pop, nonce);
+        } catch (RuntimeException e) {
+            logger.debug("Unexpected failure while validating pop", e);
+            return recorded(pop, ValidationResult.error(e));
         }
     }
 
-    private Transaction getTransaction(Sha256Hash txid) throws InvalidPopException {
-        Transaction localTransaction = transactionStore.getTransaction(txid);
-        if (localTransaction == null) {
-            throw new InvalidPopException("Unknown transaction");
+    /**
+     * @return null if the lock_time is ok, otherwise the rejection.
+     */
+    private ValidationResult checkLockTime(Pop pop) {
+        if (pop.getLockTime() != LOCK_TIME) {
+            return ValidationResult.invalid(Code.INVALID_LOCK_TIME);
         }
-        return localTransaction;
+        return null;
     }
 
     /**
      * The last 6 bytes of the pop output is the nonce
      * @param data the full 41 bytes pop output script
      * @param popRequestNonce The requested nonce to be checked against the nonce in the PoP
-     * @throws InvalidPopException
+     * @return null if the nonce matches, otherwise the rejection.
      */
-    private void checkNonce(byte[] data, byte[] popRequestNonce) throws InvalidPopException {
-        byte[] nonceBytes = new byte[6];
-        System.arraycopy(data, 35, nonceBytes, 0, 6);
-
-        if (!Arrays.equals(nonceBytes, popRequestNonce)) {
-            throw new InvalidPopException("Wrong nonce");
+    private ValidationResult checkNonce(byte[] data, byte[] popRequestNonce) {
+        if (popRequestNonce == null || popRequestNonce.length != 6) {
+            return ValidationResult.invalid(Code.WRONG_NONCE);
+        }
+        for (int i = 0; i < 6; i++) {
+            if (data[35 + i] != popRequestNonce[i]) {
+                return ValidationResult.invalid(Code.WRONG_NONCE);
+            }
         }
+        return null;
     }
 
     /**
      * This implements step 5 and 6 of the validation process. Inputs of the PoP must match the inputs of the proven
      * transaction and the sequence numbers must all be 0. Finally the scripts are executed on all inputs. All
      * scripts must return true for the pop to be valid.
+     * @return the result of the validation.
+     */
+    private ValidationResult checkInputsAndSignatures(Pop pop, Transaction provenTransaction) {
+        ValidationResult result = checkInputs(pop, provenTransaction);
+        if (result != null) {
+            return result;
+        }
+        return verify(pop, provenTransaction, lookupInputTransactions(pop, provenTransaction));
+    }
+
+    /**
+     * @return the transaction proven by a pop that has passed {@link #checkPop(Pop, byte[])}, or null if unknown.
+     */
+    Transaction lookupProvenTransaction(Pop pop) {
+        long start = startTimer();
+        Transaction provenTransaction = transactionStore.getTransaction(provenTxid(pop));
+        stopTimer(Step.PROVEN_TRANSACTION, start);
+        return provenTransaction;
+    }
+
+    /**
+     * Fetches the input transactions needed to verify the signatures of a pop whose inputs have passed
+     * {@link #checkInputs(Pop, Transaction)}. With an OutputStore nothing is fetched, the outputs are resolved while
+     * verifying.
+     */
+    Map<Sha256Hash, Transaction> lookupInputTransactions(Pop pop, Transaction provenTransaction) {
+        if (outputStore != null) {
+            return Collections.emptyMap();
+        }
+        long start = startTimer();
+        Map<Sha256Hash, Transaction> inputTransactions = transactionStore.getTransactions(inputTransactionIds(pop));
+        stopTimer(Step.INPUTS, start);
+        return inputTransactions;
+    }
+
+    /**
+     * Step 6, using input transactions from {@link #lookupInputTransactions(Pop, Transaction)}.
+     */
+    ValidationResult verify(Pop pop, Transaction provenTransaction, Map<Sha256Hash, Transaction> inputTransactions) {
+        metrics.inputCount(pop.getInputs().size());
+        long start = startTimer();
+        ValidationResult result = outputStore != null
+                ? verifyWithOutputStore(pop, provenTransaction)
+                : verifyWithInputTransactions(pop, provenTransaction, inputTransactions);
+        stopTimer(Step.SIGNATURES, start);
+        return result;
+    }
+
+    /**
+     * Reports the outcome of a validation to the ValidationMetrics.
+     */
+    ValidationResult recorded(ValidationResult result) {
+        metrics.validated(result.getCode());
+        return result;
+    }
+
+    /**
+     * Settles the final verdict on a validated pop and journals it, see {@link #accept(Pop, ValidationResult, byte[])},
+     * then reports the outcome to the ValidationMetrics.
+     * @param pop the validated pop, or null if there is none to journal.
+     * @return the final result, an error if the pop couldn't be journaled.
+     */
+    ValidationResult recorded(Pop pop, ValidationResult result) {
+        return recorded(pop != null ? accept(pop, result, null) : result);
+    }
+
+    /**
+     * Writes a raw pop that was rejected without being parsed to the ValidationJournal, then reports the outcome to
+     * the ValidationMetrics.
+     * @param payload the raw pop as received.
+     * @return result, or an error if the pop couldn't be journaled.
      */
-    private void checkInputsAndSignatures(Pop pop, Transaction provenTransaction) throws InvalidPopException {
+    ValidationResult recorded(byte[] payload, ValidationResult result) {
+        try {
+            journal.rejected(payload, result);
+        } catch (RuntimeException e) {
+            logger.warn("Failed to journal pop", e);
+            result = ValidationResult.error(e);
+        }
+        return recorded(result);
+    }
+
+    /**
+     * @return the start time of a step, or 0 if there are no metrics to report it to.
+     */
+    private long startTimer() {
+        return metrics == ValidationMetrics.NOOP ? 0 : System.nanoTime();
+    }
+
+    /**
+     * Reports the time since start for step.
+     * @return the current time, as start of the next step.
+     */
+    private long stopTimer(Step step, long start) {
+        if (metrics == ValidationMetrics.NOOP) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        metrics.stepCompleted(step, now - start);
+        return now;
+    }
+
+    /**
+     * Step 5. Inputs of the PoP must match the inputs of the proven transaction and the sequence numbers must all be 0.
+     * @return null if the inputs are ok, otherwise the rejection.
+     */
+    ValidationResult checkInputs(Pop pop, Transaction provenTransaction) {
         List<TransactionInput> popInputs = pop.getInputs();
         List<TransactionInput> blockchainTxInputs = provenTransaction.getInputs();
         if (popInputs.size() != blockchainTxInputs.size()) {
-            throw new InvalidPopException("Wrong number of inputs");
+            return ValidationResult.invalid(Code.WRONG_NUMBER_OF_INPUTS);
         }
 
         for (int i = 0; i < blockchainTxInputs.size(); i++) {
@@ -123,70 +748,256 @@ public class PopValidator {
             TransactionInput popInput = popInputs.get(i);
             TransactionInput bcInput = blockchainTxInputs.get(i);
             if (!popInput.getOutpoint().equals(bcInput.getOutpoint())) {
-                throw new InvalidPopException("Mismatching inputs");
+                return ValidationResult.invalid(Code.MISMATCHING_INPUTS);
             }
             // Also check the sequence number of the pop input.
             if (popInput.getSequenceNumber() != 0L) {
-                throw new InvalidPopException("Invalide sequence number. Must be 0.");
+                return ValidationResult.invalid(Code.INVALID_SEQUENCE_NUMBER);
             }
         }
+        return null;
+    }
 
+    /**
+     * @return the distinct txids of the transactions spent by the pop.
+     */
+    private Set<Sha256Hash> inputTransactionIds(Pop pop) {
+        Set<Sha256Hash> hashes = new LinkedHashSet<Sha256Hash>();
+        for (TransactionInput popInput : pop.getInputs()) {
+            hashes.add(popInput.getOutpoint().getHash());
+        }
+        return hashes;
+    }
 
-        for (int i = 0; i < blockchainTxInputs.size(); i++) {
-            TransactionInput popInput = popInputs.get(i);
-            TransactionInput txInput = blockchainTxInputs.get(i);
-            // Check signature
-            if (txInput.getConnectedOutput() == null || popInput.getConnectedOutput() == null) {
-                // connect the input to the right transaction:
-                Sha256Hash hash = txInput.getOutpoint().getHash();
-                Transaction inputTx = transactionStore.getTransaction(hash);
-
-                if (inputTx == null) {
-                    String message = "Could not find input tx: " + hash;
-                    logger.debug(message);
-                    throw new InvalidPopException(message);
+    /**
+     * Takes the outputs spent by the pop from the input transactions, then runs the scripts of the pop (step 6).
+     * @param inputTransactions the looked up input transactions. Transactions that were not found are missing.
+     * @return the result of the validation.
+     */
+    private ValidationResult verifyWithInputTransactions(Pop pop, Transaction provenTransaction,
+                                                         Map<Sha256Hash, Transaction> inputTransactions) {
+        List<TransactionInput> popInputs = pop.getInputs();
+        TransactionOutput[] spentOutputs = new TransactionOutput[popInputs.size()];
+        for (int i = 0; i < spentOutputs.length; i++) {
+            TransactionOutPoint outpoint = popInputs.get(i).getOutpoint();
+            Transaction inputTx = inputTransactions.get(outpoint.getHash());
+            if (inputTx == null || outpoint.getIndex() >= inputTx.getOutputs().size()) {
+                logger.debug("Could not find input tx: {}", outpoint.getHash());
+                return ValidationResult.invalid(Code.UNKNOWN_INPUT_TRANSACTION, outpoint.getHash());
+            }
+            spentOutputs[i] = inputTx.getOutputs().get((int) outpoint.getIndex());
+        }
+        return verifySignatures(pop, provenTransaction, spentOutputs);
+    }
+
+    /**
+     * Looks up the outputs spent by the pop in the OutputStore, then runs the scripts of the pop (step 6).
+     * @return the result of the validation.
+     */
+    private ValidationResult verifyWithOutputStore(Pop pop, Transaction provenTransaction) {
+        List<TransactionInput> popInputs = pop.getInputs();
+        TransactionOutput[] spentOutputs = new TransactionOutput[popInputs.size()];
+        for (int i = 0; i < spentOutputs.length; i++) {
+            TransactionOutPoint outpoint = popInputs.get(i).getOutpoint();
+            spentOutputs[i] = outputStore.getOutput(outpoint);
+            if (spentOutputs[i] == null) {
+                logger.debug("Could not find output: {}", outpoint);
+                return ValidationResult.invalid(Code.UNKNOWN_INPUT_TRANSACTION, outpoint.getHash());
+            }
+        }
+        return verifySignatures(pop, provenTransaction, spentOutputs);
+    }
+
+    /**
+     * Step 6. Runs the scripts of the pop inputs against the outputs they spend.
+     * @param spentOutputs spentOutputs[i] is the output spent by input i of the pop.
+     * @return the result of the validation.
+     */
+    private ValidationResult verifySignatures(Pop pop, Transaction provenTransaction, TransactionOutput[] spentOutputs) {
+        List<TransactionInput> popInputs = pop.getInputs();
+        Sha256Hash popHash = signatureCache != null ? pop.getHash() : null;
+        InputScripts inputScripts = new InputScripts(pop);
+        ValidationResult result = null;
+        if (inputVerificationExecutor != null && popInputs.size() >= parallelInputThreshold) {
+            result = verifyInputsInParallel(pop, spentOutputs, popHash, inputScripts);
+        } else {
+            ScriptTransaction scriptTransaction = new ScriptTransaction(pop);
+            for (int i = 0; i < popInputs.size() && result == null; i++) {
+                result = verifyInput(popInputs.get(i).getOutpoint(), i, spentOutputs[i], popHash,
+                        inputScripts, scriptTransaction);
+            }
+        }
+        // No rejections, means PoP valid.
+        return result != null ? result : ValidationResult.valid(provenTransaction);
+    }
+
+    /**
+     * Runs the script of a single pop input.
+     * @param outpoint the outpoint of the input.
+     * @param spentOutput the output spent by the input.
+     * @param popHash the hash of the pop if there is a signature cache, otherwise null.
+     * @param inputScripts the parsed input scripts of the pop.
+     * @param scriptTransaction the pop to run other scripts against.
+     * @return null if the script verifies, otherwise the rejection.
+     */
+    private ValidationResult verifyInput(TransactionOutPoint outpoint, int index, TransactionOutput spentOutput,
+                                         Sha256Hash popHash, InputScripts inputScripts,
+                                         ScriptTransaction scriptTransaction) {
+        Sha256Hash cacheKey = null;
+        if (signatureCache != null) {
+            cacheKey = SignatureCache.key(popHash, index, outpoint, spentOutput.getScriptBytes());
+            if (signatureCache.contains(cacheKey)) {
+                return null;
+            }
+        }
+        try {
+            // Not popInput.verify(spentOutput), which caches the parsed script in the possibly shared output.
+            inputScripts.getScriptSig(index).correctlySpends(scriptTransaction.get(), index,
+                    new Script(spentOutput.getScriptBytes()));
+        } catch (VerificationException e) {
+            logger.debug("Failed to verify input", e);
+            return ValidationResult.invalid(Code.SIGNATURE_VERIFICATION_FAILED, e);
+        }
+        if (cacheKey != null) {
+            signatureCache.add(cacheKey);
+        }
+        return null;
+    }
+
+    /**
+     * Verifies the inputs on the input verification executor. The calling thread takes part in the work, so
+     * verification completes even if the executor is saturated. Workers skip the remaining inputs as soon as one input
+     * fails. An unexpected exception while verifying an input is reported as {@link Code#ERROR}.
+     * <p>
+     * The workers don't touch the pop itself. The input scripts are parsed, and the pop serialized, on the calling
+     * thread before the work is fanned out. Each worker runs scripts against its own copy of the pop, as the script
+     * interpreter may modify the transaction while computing signature hashes, and parsed scripts are only weakly
+     * held by the inputs, so reading them may re-parse and modify an input.
+     * @return null if all scripts verify, otherwise the first rejection.
+     */
+    private ValidationResult verifyInputsInParallel(Pop pop, final TransactionOutput[] spentOutputs,
+                                                    final Sha256Hash popHash,
+                                                    final InputScripts inputScripts) {
+        List<TransactionInput> popInputs = pop.getInputs();
+        final int inputCount = popInputs.size();
+        final TransactionOutPoint[] outpoints = new TransactionOutPoint[inputCount];
+        for (int i = 0; i < inputCount; i++) {
+            outpoints[i] = popInputs.get(i).getOutpoint();
+        }
+        final NetworkParameters params = pop.getParams();
+        final byte[] popBytes = pop.bitcoinSerialize();
+        final AtomicInteger nextIndex = new AtomicInteger();
+        final AtomicReference<ValidationResult> failure = new AtomicReference<ValidationResult>();
+        final CountDownLatch remaining = new CountDownLatch(inputCount);
+        Runnable worker = new Runnable() {
+            public void run() {
+                ScriptTransaction scriptTransaction = new ScriptTransaction(params, popBytes);
+                int i;
+                while ((i = nextIndex.getAndIncrement()) < inputCount) {
+                    try {
+                        // Once an input has failed, the remaining inputs don't matter anymore.
+                        if (failure.get() == null) {
+                            ValidationResult result = verifyInput(outpoints[i], i, spentOutputs[i], popHash,
+                                    inputScripts, scriptTransaction);
+                            if (result != null) {
+                                failure.compareAndSet(null, result);
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        logger.debug("Unexpected failure while verifying input", e);
+                        failure.compareAndSet(null, ValidationResult.error(e));
+                    } finally {
+                        remaining.countDown();
+                    }
                 }
-                txInput.connect(inputTx, TransactionInput.ConnectMode.ABORT_ON_CONFLICT);
-                popInput.connect(inputTx, TransactionInput.ConnectMode.ABORT_ON_CONFLICT);
             }
+        };
+        int helpers = Math.min(inputCount - 1, parallelism(inputVerificationExecutor));
+        for (int i = 0; i < helpers; i++) {
             try {
-                popInput.verify();
-            } catch (VerificationException e) {
-                logger.debug("Failed to verify input", e);
-                throw new InvalidPopException("Signature verification failed", e);
+                inputVerificationExecutor.execute(worker);
+            } catch (RejectedExecutionException e) {
+                break; // The calling thread will do the rest
             }
         }
+        worker.run();
+        try {
+            remaining.await();
+        } catch (InterruptedException e) {
+            failure.compareAndSet(null, ValidationResult.error(e));
+            Thread.currentThread().interrupt();
+        }
+        return failure.get();
+    }
+
+    /**
+     * @return the number of threads that executor can run tasks on, or the number of processors if that's unknown.
+     */
+    private static int parallelism(Executor executor) {
+        if (executor instanceof ForkJoinPool) {
+            return ((ForkJoinPool) executor).getParallelism();
+        } else if (executor instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor) executor).getMaximumPoolSize();
+        }
+        return Runtime.getRuntime().availableProcessors();
     }
 
     /**
      * The pop output must have the format "OP_RETURN <version 2 bytes> <38 bytes txid+nonce>"
      * @param pop
-     * @return
-     * @throws InvalidPopException
+     * @return null if the output is ok, otherwise the rejection.
      */
-    private byte[] checkOutput(Pop pop) throws InvalidPopException {
+    private ValidationResult checkOutput(Pop pop) {
         List<TransactionOutput> outputs = pop.getOutputs();
         if (outputs == null || outputs.size() != 1) {
-            throw new InvalidPopException("Wrong number of outputs. Expected 1.");
+            return ValidationResult.invalid(Code.WRONG_NUMBER_OF_OUTPUTS);
         }
         TransactionOutput output = outputs.get(0);
 
         if (!Coin.ZERO.equals(output.getValue())) {
-            throw new InvalidPopException("Invalid value of PoP output. Must be 0");
+            return ValidationResult.invalid(Code.INVALID_OUTPUT_VALUE);
         }
 
         byte[] scriptBytes = output.getScriptBytes();
         if (scriptBytes == null || scriptBytes.length != 41) {
-            throw new InvalidPopException("Invalid script length. Expected 41");
+            return ValidationResult.invalid(Code.INVALID_SCRIPT_LENGTH);
         }
         if (scriptBytes[0] != ScriptOpCodes.OP_RETURN) {
-            throw new InvalidPopException("Wrong opcode: " + scriptBytes[0]);
+            return ValidationResult.invalid(Code.WRONG_OPCODE, scriptBytes[0]);
         }
 
         if (scriptBytes[1] != 1 || scriptBytes[2] != 0) {
-            throw new InvalidPopException("Wrong version: " + scriptBytes[1] + " " + scriptBytes[2] + ". Expected 0x01 0x00");
+            return ValidationResult.invalid(Code.WRONG_VERSION, scriptBytes[1], scriptBytes[2]);
         }
 
-        return scriptBytes;
+        return null;
+    }
+
+    /**
+     * The transaction that a thread runs input scripts against, either the pop itself or a private copy of it that is
+     * parsed the first time a script needs it.
+     */
+    private static final class ScriptTransaction {
+        private final NetworkParameters params;
+        private final byte[] popBytes;
+        private Transaction transaction;
+
+        ScriptTransaction(Transaction pop) {
+            this.params = null;
+            this.popBytes = null;
+            this.transaction = pop;
+        }
+
+        ScriptTransaction(NetworkParameters params, byte[] popBytes) {
+            this.params = params;
+            this.popBytes = popBytes;
+        }
+
+        Transaction get() {
+            if (transaction == null) {
+                transaction = new Transaction(params, popBytes);
+            }
+            return transaction;
+        }
     }
 }
@@ -0,0 +1,16 @@
+package se.rosenbaum.jpop.validate;
+
+import org.bitcoinj.core.Sha256Hash;
+
+/**
+ * An exact, typically slower, record of accepted PoPs, for example a database table. A {@link ReplayFilter} only
+ * consults it when its in memory filters report a probable replay.
+ */
+public interface ReplayCheck {
+    /**
+     * @param popHash the hash of a pop
+     * @param nonce the nonce of the same pop
+     * @return true if a pop with popHash, or any pop with nonce, has already been accepted.
+     */
+    boolean isAccepted(Sha256Hash popHash, byte[] nonce);
+}
@@ -0,0 +1,294 @@
+package se.rosenbaum.jpop.validate;
+
+import org.bitcoinj.core.Sha256Hash;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers accepted PoPs for a period of time, so that replays can be rejected without asking a database. A pop is
+ * a replay if the exact same pop, or any other pop with the same nonce, has been accepted before.
+ * <p>
+ * Accepted pops are recorded in a ring of Bloom filters, one per time window. Both the pop hash and the nonce are
+ * added as keys. A lookup checks the filters of all live windows. When the oldest window falls out of the ring its
+ * filter is cleared and reused, so memory use is fixed. A pop is remembered for at least the retention time given
+ * to the constructor.
+ * <p>
+ * A Bloom filter never misses a recorded pop, but may report a pop as seen when it isn't. Most pops are decided
+ * without any false positive at all. On a probable hit the {@link ReplayCheck}, if any, makes the final decision.
+ * Without a ReplayCheck, probable hits are treated as replays, so a false positive rejects a legitimate pop as
+ * REPLAYED. Sending the same pop again doesn't help, it hits the same bits until they have rotated out. Use a
+ * ReplayCheck wherever such rejections are unacceptable. The estimated and observed false positive rates are
+ * available to tell if the filter is too small for the load.
+ * <p>
+ * Each pop sets 14 bits in the current window, so with 20 bits per accepted pop and window the false positive rate
+ * of a full window is around 1%.
+ */
+public class ReplayFilter {
+    private static final int HASHES = 7;
+    private static final long NONCE_SEED_1 = 0x9E3779B97F4A7C15L;
+    private static final long NONCE_SEED_2 = 0xC2B2AE3D27D4EB4FL;
+
+    private final Ticker ticker;
+    private final long windowNanos;
+    private final long[][] filters;
+    private final long[] filterTicks;
+    private final long[] setBits;
+    private final long bitsPerFilter;
+    private ReplayCheck replayCheck;
+    // Pops that are being accepted, but not yet recorded. Guarded by this.
+    private final Set<Sha256Hash> reservedHashes = new HashSet<Sha256Hash>();
+    private final Set<Long> reservedNonces = new HashSet<Long>();
+
+    private final LongAdder checkCount = new LongAdder();
+    private final LongAdder probableHitCount = new LongAdder();
+    private final LongAdder replayCount = new LongAdder();
+    private final LongAdder falsePositiveCount = new LongAdder();
+
+    /**
+     * @param retention the minimum time an accepted pop is remembered. Should be at least as long as a PopRequest is
+     * valid.
+     * @param unit the unit of retention.
+     * @param windows the number of filters to rotate. More windows give less memory wasted on expired pops, but a
+     * slower lookup. Must be at least 2.
+     * @param maxBytes the total memory used for all the filters. Unless a {@link ReplayCheck} is set, this decides
+     * how many legitimate pops are rejected as replays. With {@code n} pops accepted per window, each window gets
+     * {@code b = 8 * maxBytes / (windows * n)} bits per pop, and a new pop is rejected with probability about
+     * {@code 2 * (windows - 1) * (1 - e^(-14 / b))^7}. For example, 20 bits per pop and 4 windows reject about 5% of
+     * the legitimate pops, 40 bits per pop about 0.1%. {@link #getEstimatedFalsePositiveRate()} gives the current
+     * rate.
+     */
+    public ReplayFilter(long retention, TimeUnit unit, int windows, long maxBytes) {
+        this(retention, unit, windows, maxBytes, Ticker.SYSTEM);
+    }
+
+    ReplayFilter(long retention, TimeUnit unit, int windows, long maxBytes, Ticker ticker) {
+        if (retention <= 0) {
+            throw new IllegalArgumentException("Retention must be positive: " + retention);
+        }
+        if (windows < 2) {
+            throw new IllegalArgumentException("At least 2 windows are needed: " + windows);
+        }
+        long wordsPerFilter = maxBytes / 8 / windows;
+        if (wordsPerFilter < 1 || wordsPerFilter > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Unusable memory size: " + maxBytes);
+        }
+        // A pop recorded in a window is seen for windows - 1 whole windows after it.
+        long retentionNanos = unit.toNanos(retention);
+        this.windowNanos = Math.max((retentionNanos + windows - 2) / (windows - 1), 1);
+        this.ticker = ticker;
+        this.filters = new long[windows][(int) wordsPerFilter];
+        this.filterTicks = new long[windows];
+        this.setBits = new long[windows];
+        this.bitsPerFilter = wordsPerFilter * 64;
+        Arrays.fill(filterTicks, Long.MIN_VALUE);
+    }
+
+    /**
+     * Sets the exact check to consult on probable replays.
+     */
+    public void setReplayCheck(ReplayCheck replayCheck) {
+        this.replayCheck = replayCheck;
+    }
+
+    /**
+     * Records a pop as accepted, unless it is a replay. Of several threads accepting the same pop concurrently, only
+     * one will succeed, as long as none of them has to consult the ReplayCheck.
+     * @param popHash the hash of the pop
+     * @param nonce the nonce of the pop
+     * @return true if the pop was recorded, false if it is a replay.
+     */
+    public boolean accept(Sha256Hash popHash, byte[] nonce) {
+        if (!reserve(popHash, nonce)) {
+            return false;
+        }
+        record(popHash, nonce);
+        return true;
+    }
+
+    /**
+     * Reserves a pop that isn't a replay, without recording it as accepted yet. Until the reservation is ended with
+     * {@link #record(Sha256Hash, byte[])} or {@link #release(Sha256Hash, byte[])}, the same pop, or any pop with the
+     * same nonce, is rejected as a replay. This lets a validator decide if a pop is accepted before it's remembered.
+     * @return true if the pop was reserved, false if it is a replay.
+     */
+    boolean reserve(Sha256Hash popHash, byte[] nonce) {
+        checkCount.increment();
+        byte[] hashBytes = popHash.getBytes();
+        long hash1 = getLong(hashBytes, 0);
+        long hash2 = getLong(hashBytes, 8) | 1;
+        long nonceKey = NonceRegistry.toLong(nonce);
+        long nonce1 = mix(nonceKey ^ NONCE_SEED_1);
+        long nonce2 = mix(nonceKey ^ NONCE_SEED_2) | 1;
+        long now = currentTick();
+        synchronized (this) {
+            if (reservedHashes.contains(popHash) || reservedNonces.contains(nonceKey)) {
+                replayCount.increment();
+                return false;
+            }
+            if (!mightContain(hash1, hash2, now) && !mightContain(nonce1, nonce2, now)) {
+                reservedHashes.add(popHash);
+                reservedNonces.add(nonceKey);
+                return true;
+            }
+        }
+        probableHitCount.increment();
+        ReplayCheck check = replayCheck;
+        if (check == null || check.isAccepted(popHash, nonce)) {
+            replayCount.increment();
+            return false;
+        }
+        falsePositiveCount.increment();
+        synchronized (this) {
+            if (reservedHashes.contains(popHash) || reservedNonces.contains(nonceKey)) {
+                replayCount.increment();
+                return false;
+            }
+            reservedHashes.add(popHash);
+            reservedNonces.add(nonceKey);
+        }
+        return true;
+    }
+
+    /**
+     * Records a pop reserved with {@link #reserve(Sha256Hash, byte[])} as accepted.
+     */
+    void record(Sha256Hash popHash, byte[] nonce) {
+        byte[] hashBytes = popHash.getBytes();
+        long nonceKey = NonceRegistry.toLong(nonce);
+        long now = currentTick();
+        synchronized (this) {
+            put(getLong(hashBytes, 0), getLong(hashBytes, 8) | 1, now);
+            put(mix(nonceKey ^ NONCE_SEED_1), mix(nonceKey ^ NONCE_SEED_2) | 1, now);
+            reservedHashes.remove(popHash);
+            reservedNonces.remove(nonceKey);
+        }
+    }
+
+    /**
+     * Ends a reservation made with {@link #reserve(Sha256Hash, byte[])} without recording the pop.
+     */
+    synchronized void release(Sha256Hash popHash, byte[] nonce) {
+        reservedHashes.remove(popHash);
+        reservedNonces.remove(NonceRegistry.toLong(nonce));
+    }
+
+    /**
+     * @return the number of calls to {@link #accept(Sha256Hash, byte[])}.
+     */
+    public long getCheckCount() {
+        return checkCount.sum();
+    }
+
+    /**
+     * @return the number of pops that the filters reported as probable replays.
+     */
+    public long getProbableHitCount() {
+        return probableHitCount.sum();
+    }
+
+    /**
+     * @return the number of pops rejected as replays.
+     */
+    public long getReplayCount() {
+        return replayCount.sum();
+    }
+
+    /**
+     * @return the number of probable replays that the ReplayCheck found were not replays.
+     */
+    public long getFalsePositiveCount() {
+        return falsePositiveCount.sum();
+    }
+
+    /**
+     * @return the fraction of new pops that were probable hits, as decided by the ReplayCheck. Only meaningful if
+     * there is a ReplayCheck.
+     */
+    public double getObservedFalsePositiveRate() {
+        long newPops = getCheckCount() - getReplayCount();
+        return newPops == 0 ? 0 : (double) getFalsePositiveCount() / newPops;
+    }
+
+    /**
+     * @return the probability that a new pop is reported as a probable replay, estimated from how full the live
+     * filters are right now.
+     */
+    public synchronized double getEstimatedFalsePositiveRate() {
+        long now = currentTick();
+        double keyMiss = 1;
+        for (int i = 0; i < filters.length; i++) {
+            if (isLive(i, now)) {
+                keyMiss *= 1 - Math.pow((double) setBits[i] / bitsPerFilter, HASHES);
+            }
+        }
+        // Each pop is looked up by two keys
+        return 1 - keyMiss * keyMiss;
+    }
+
+    private boolean mightContain(long hash1, long hash2, long now) {
+        for (int i = 0; i < filters.length; i++) {
+            if (isLive(i, now) && mightContain(filters[i], hash1, hash2)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean mightContain(long[] filter, long hash1, long hash2) {
+        for (int i = 0; i < HASHES; i++) {
+            long bit = Math.floorMod(hash1 + i * hash2, bitsPerFilter);
+            if ((filter[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void put(long hash1, long hash2, long now) {
+        int current = (int) Math.floorMod(now, (long) filters.length);
+        long[] filter = filters[current];
+        if (filterTicks[current] != now) {
+            // Reuse the filter of a window that has fallen out of the ring
+            Arrays.fill(filter, 0);
+            filterTicks[current] = now;
+            setBits[current] = 0;
+        }
+        for (int i = 0; i < HASHES; i++) {
+            long bit = Math.floorMod(hash1 + i * hash2, bitsPerFilter);
+            long word = filter[(int) (bit >>> 6)];
+            if ((word & (1L << bit)) == 0) {
+                filter[(int) (bit >>> 6)] = word | (1L << bit);
+                setBits[current]++;
+            }
+        }
+    }
+
+    private boolean isLive(int filter, long now) {
+        return filterTicks[filter] != Long.MIN_VALUE && filterTicks[filter] > now - filters.length;
+    }
+
+    private long currentTick() {
+        return Math.floorDiv(ticker.nanoTime(), windowNanos);
+    }
+
+    private static long getLong(byte[] bytes, int offset) {
+        long result = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            result = (result << 8) | (bytes[i] & 0xff);
+        }
+        return result;
+    }
+
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
@@ -0,0 +1,95 @@
+package se.rosenbaum.jpop.validate;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.Utils;
+
+import java.security.MessageDigest;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, thread safe cache of input scripts that have already been verified successfully, much like the
+ * signature cache in Bitcoin Core. When a PopValidator has a SignatureCache, see
+ * {@link PopValidator#setSignatureCache(SignatureCache)}, it will skip script execution for inputs found in the cache.
+ * <p>
+ * An entry is keyed on the hash of the PoP, the input index, the spent outpoint and the spent scriptPubKey. The hash
+ * of the PoP commits to the signatures and to everything the signature hashes cover, so a hit means that the exact same
+ * input script has been verified against the exact same output before. Only successful verifications are cached.
+ * <p>
+ * When the cache is full the oldest entry is evicted to make room for the new one. The entries are kept in insertion
+ * order in a ring of slots, so both lookups and evictions take constant time.
+ */
+public class SignatureCache {
+    private final int maxEntries;
+    private final Set<Sha256Hash> entries;
+    // The entries in insertion order. The next entry goes into slot nextSlot % maxEntries, evicting the one there.
+    private final AtomicReferenceArray<Sha256Hash> slots;
+    private final AtomicLong nextSlot = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxEntries the maximum number of verified inputs to remember. Each entry takes roughly 100 bytes, and a
+     *                   slot of 4-8 bytes is allocated up front for every entry.
+     */
+    public SignatureCache(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+        this.entries = ConcurrentHashMap.newKeySet(Math.min(maxEntries, 1 << 16));
+        this.slots = new AtomicReferenceArray<Sha256Hash>(maxEntries);
+    }
+
+    static Sha256Hash key(Sha256Hash popHash, int inputIndex, TransactionOutPoint outPoint, byte[] scriptPubKey) {
+        MessageDigest digest = Sha256Hash.newDigest();
+        digest.update(popHash.getBytes());
+        byte[] buffer = new byte[4];
+        Utils.uint32ToByteArrayLE(inputIndex, buffer, 0);
+        digest.update(buffer);
+        digest.update(outPoint.getHash().getBytes());
+        Utils.uint32ToByteArrayLE(outPoint.getIndex(), buffer, 0);
+        digest.update(buffer);
+        digest.update(scriptPubKey);
+        return Sha256Hash.wrap(digest.digest());
+    }
+
+    boolean contains(Sha256Hash key) {
+        if (entries.contains(key)) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    void add(Sha256Hash key) {
+        if (!entries.add(key)) {
+            return; // Already cached, possibly by a concurrent verification of the same input
+        }
+        int slot = (int) (nextSlot.getAndIncrement() % maxEntries);
+        Sha256Hash evicted = slots.getAndSet(slot, key);
+        if (evicted != null) {
+            entries.remove(evicted);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+}
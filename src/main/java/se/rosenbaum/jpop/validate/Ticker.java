@@ -0,0 +1,14 @@
+package se.rosenbaum.jpop.validate;
+
+/**
+ * A source of nanosecond time, replaceable in tests.
+ */
+interface Ticker {
+    Ticker SYSTEM = new Ticker() {
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    long nanoTime();
+}
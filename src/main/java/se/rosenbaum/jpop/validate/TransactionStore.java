@@ -3,10 +3,32 @@ package se.rosenbaum.jpop.validate;
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.Transaction;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * This is an interface the must be implemented by the user of this library. When validating a pop a TransactionStore
  * is needed to fetch the proven transaction and all it's dependencies. It's up the the user how to get the transactions.
  */
 public interface TransactionStore {
     Transaction getTransaction(Sha256Hash txid);
+
+    /**
+     * Fetches several transactions at once. The validator uses this to get all input transactions of the proven
+     * transaction in a single call. The default implementation calls {@link #getTransaction(Sha256Hash)} once per
+     * txid; implementations backed by something that supports batch lookups should override it.
+     * @param txids the transactions to fetch.
+     * @return the found transactions keyed by txid. Unknown transactions are left out of the map.
+     */
+    default Map<Sha256Hash, Transaction> getTransactions(Collection<Sha256Hash> txids) {
+        Map<Sha256Hash, Transaction> transactions = new HashMap<Sha256Hash, Transaction>();
+        for (Sha256Hash txid : txids) {
+            Transaction transaction = getTransaction(txid);
+            if (transaction != null) {
+                transactions.put(txid, transaction);
+            }
+        }
+        return transactions;
+    }
 }
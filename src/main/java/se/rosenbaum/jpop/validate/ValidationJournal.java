@@ -0,0 +1,45 @@
+package se.rosenbaum.jpop.validate;
+
+import se.rosenbaum.jpop.Pop;
+
+/**
+ * Receives every validated pop together with its result, for example to keep an audit trail, see
+ * {@link PopValidator#setValidationJournal(ValidationJournal)}. The journal is called on the validating threads, often
+ * concurrently, before the result is returned, so it must be thread safe and should be fast.
+ * {@link FileValidationJournal} is an implementation that appends to memory mapped files.
+ * <p>
+ * Raw pops rejected before a Pop could be created, by the {@link PopPrefilter} or as malformed, are journaled with
+ * {@link #rejected(byte[], ValidationResult)}.
+ */
+public interface ValidationJournal {
+    /**
+     * Journals nothing. Used when no journal is set.
+     */
+    ValidationJournal NOOP = new ValidationJournal() {
+        public void validated(Pop pop, ValidationResult result) {
+        }
+
+        public void rejected(byte[] payload, ValidationResult result) {
+        }
+    };
+
+    /**
+     * Called once for every validated pop. If this throws, the pop is reported as {@link ValidationResult.Code#ERROR}
+     * instead of with result, so a pop is never accepted without being journaled.
+     * <p>
+     * The pop is journaled with its final result, once that is settled, but before its nonce is consumed and before
+     * it's recorded in the ReplayFilter. A pop that failed to journal can therefore be submitted again.
+     * @param pop the validated pop. Never null.
+     * @param result the outcome of the validation.
+     */
+    void validated(Pop pop, ValidationResult result);
+
+    /**
+     * Called once for every raw pop that was rejected without being parsed, as by {@link HttpPopReceiver} and
+     * {@link PopValidationPipeline#submit(byte[], byte[])}. If this throws, the pop is reported as
+     * {@link ValidationResult.Code#ERROR} instead of with result.
+     * @param payload the raw pop as received. Never null.
+     * @param result the rejection.
+     */
+    void rejected(byte[] payload, ValidationResult result);
+}
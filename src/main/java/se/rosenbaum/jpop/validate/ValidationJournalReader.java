@@ -0,0 +1,180 @@
+package se.rosenbaum.jpop.validate;
+
+import org.bitcoinj.core.Sha256Hash;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads the records of a {@link FileValidationJournal} in the order they were appended, segment by segment. The
+ * journal may be written to while it's read; reading stops after the last complete record.
+ * <pre>
+ * ValidationJournalReader reader = new ValidationJournalReader(directory);
+ * ValidationJournalReader.Record record;
+ * while ((record = reader.next()) != null) {
+ *     ...
+ * }
+ * </pre>
+ */
+public class ValidationJournalReader implements Closeable {
+    private final File[] segmentFiles;
+    private int segmentIndex = -1;
+    private ByteBuffer segment;
+    private int position;
+
+    /**
+     * @param directory the directory of the journal.
+     */
+    public ValidationJournalReader(File directory) {
+        this.segmentFiles = FileValidationJournal.segmentFiles(directory);
+    }
+
+    /**
+     * A validation, as journaled.
+     */
+    public static final class Record {
+        private final long timestamp;
+        private final byte[] popHash;
+        private final byte[] txid;
+        private final byte[] nonce;
+        private final ValidationResult.Code code;
+        private final byte[] popBytes;
+
+        private Record(long timestamp, byte[] popHash, byte[] txid, byte[] nonce, ValidationResult.Code code,
+                       byte[] popBytes) {
+            this.timestamp = timestamp;
+            this.popHash = popHash;
+            this.txid = txid;
+            this.nonce = nonce;
+            this.code = code;
+            this.popBytes = popBytes;
+        }
+
+        /**
+         * @return the time of the validation, in milliseconds since the epoch.
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public Sha256Hash getPopHash() {
+            return Sha256Hash.wrap(popHash);
+        }
+
+        /**
+         * @return the txid in the pop output, or all zeros if the pop output was malformed.
+         */
+        public Sha256Hash getTxid() {
+            return Sha256Hash.wrap(txid);
+        }
+
+        /**
+         * @return the nonce in the pop output, or all zeros if the pop output was malformed.
+         */
+        public byte[] getNonce() {
+            return nonce.clone();
+        }
+
+        public ValidationResult.Code getCode() {
+            return code;
+        }
+
+        /**
+         * @return the pop as serialized, to be parsed with new Pop(params, bytes), or the raw pop as received if it
+         * was rejected without being parsed.
+         */
+        public byte[] getPopBytes() {
+            return popBytes.clone();
+        }
+    }
+
+    /**
+     * @return the next record, or null if there are no more.
+     * @throws IOException if a segment can't be read or isn't a journal segment, or a record has an unknown result
+     * code.
+     */
+    public Record next() throws IOException {
+        while (true) {
+            if (segment == null && !nextSegment()) {
+                return null;
+            }
+            Record record = readRecord();
+            if (record != null) {
+                return record;
+            }
+            if (segmentIndex == segmentFiles.length - 1) {
+                // Possibly still being written
+                return null;
+            }
+            segment = null;
+        }
+    }
+
+    private boolean nextSegment() throws IOException {
+        if (segmentIndex + 1 >= segmentFiles.length) {
+            return false;
+        }
+        segmentIndex++;
+        File file = segmentFiles[segmentIndex];
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            randomAccessFile.close();
+        }
+        FileValidationJournal.checkHeader(segment, file);
+        position = FileValidationJournal.SEGMENT_HEADER_SIZE;
+        return true;
+    }
+
+    /**
+     * @return the record at position, or null if the segment has no more complete records.
+     */
+    private Record readRecord() throws IOException {
+        if (position + FileValidationJournal.RECORD_HEADER_SIZE > segment.capacity()) {
+            return null;
+        }
+        int length = segment.getInt(position);
+        if (length < FileValidationJournal.FIXED_BODY_SIZE
+                || length > segment.capacity() - position - FileValidationJournal.RECORD_HEADER_SIZE) {
+            return null;
+        }
+        byte[] body = new byte[length];
+        ByteBuffer view = segment.duplicate();
+        view.position(position + FileValidationJournal.RECORD_HEADER_SIZE);
+        view.get(body);
+        if ((int) FileValidationJournal.crc(body, 0, length) != segment.getInt(position + 4)) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        long timestamp = buffer.getLong();
+        byte[] popHash = new byte[32];
+        buffer.get(popHash);
+        byte[] txid = new byte[32];
+        buffer.get(txid);
+        byte[] nonce = new byte[6];
+        buffer.get(nonce);
+        byte[] codeName = new byte[buffer.get() & 0xFF];
+        buffer.get(codeName);
+        ValidationResult.Code code;
+        try {
+            code = ValidationResult.Code.valueOf(new String(codeName, StandardCharsets.US_ASCII));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unknown result code in " + segmentFiles[segmentIndex] + " at " + position, e);
+        }
+        byte[] popBytes = Arrays.copyOfRange(body, buffer.position(), length);
+        position += FileValidationJournal.RECORD_HEADER_SIZE + length;
+        return new Record(timestamp, popHash, txid, nonce, code, popBytes);
+    }
+
+    public void close() {
+        segment = null;
+    }
+}
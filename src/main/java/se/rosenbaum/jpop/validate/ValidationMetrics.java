@@ -0,0 +1,45 @@
+package se.rosenbaum.jpop.validate;
+
+import se.rosenbaum.jpop.validate.ValidationResult.Code;
+import se.rosenbaum.jpop.validate.ValidationResult.Step;
+
+/**
+ * Receives measurements from a {@link PopValidator}, see {@link PopValidator#setValidationMetrics(ValidationMetrics)}.
+ * Methods are called on the validating threads, often concurrently, and must be cheap and thread safe.
+ * {@link HistogramValidationMetrics} is an implementation that keeps lock-free histograms.
+ * <p>
+ * Steps are timed as follows: {@link Step#PROVEN_TRANSACTION} is the lookup of the proven transaction,
+ * {@link Step#INPUTS} the lookup of the input transactions and {@link Step#SIGNATURES} the script execution. A step
+ * that rejects the pop is timed too, steps that are never reached are not.
+ */
+public interface ValidationMetrics {
+    /**
+     * Records nothing. Used when no metrics are set.
+     */
+    ValidationMetrics NOOP = new ValidationMetrics() {
+        public void stepCompleted(Step step, long nanos) {
+        }
+
+        public void validated(Code code) {
+        }
+
+        public void inputCount(int inputs) {
+        }
+    };
+
+    /**
+     * @param step the validation step that was performed
+     * @param nanos the time the step took
+     */
+    void stepCompleted(Step step, long nanos);
+
+    /**
+     * Called once for every validated pop, with the outcome of the validation.
+     */
+    void validated(Code code);
+
+    /**
+     * Called with the number of inputs of every pop whose signatures are verified.
+     */
+    void inputCount(int inputs);
+}
@@ -0,0 +1,194 @@
+package se.rosenbaum.jpop.validate;
+
+import org.bitcoinj.core.Transaction;
+import se.rosenbaum.jpop.PopRequest;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * The outcome of validating a single PoP. A valid result carries the proven transaction, an invalid result carries
+ * a {@link Code} telling why the PoP was rejected and the {@link Step} of the validation that rejected it.
+ * Instances are immutable.
+ * <p>
+ * Rejections without any detail are preallocated singletons, so rejecting a PoP this way doesn't allocate anything.
+ * Rejections with detail only keep the raw values; the detail string is built the first time it's asked for.
+ */
+public class ValidationResult {
+
+    /**
+     * The steps of validation, as numbered in the "Validating a PoP" section of BIP120.
+     */
+    public enum Step {
+        BASIC, LOCK_TIME, OUTPUT, NONCE, PROVEN_TRANSACTION, INPUTS, SIGNATURES
+    }
+
+    public enum Code {
+        VALID(null, null, null),
+        NULL_POP(Step.BASIC, "Pop is null", null),
+        /** The raw pop is truncated, has trailing bytes or has impossible lengths. */
+        MALFORMED(Step.BASIC, "Malformed pop", null),
+        BASIC_VERIFICATION_FAILED(Step.BASIC, "Basic verification failed.", null),
+        INVALID_LOCK_TIME(Step.LOCK_TIME, "Invalid lock_time. Expected " + PopValidator.LOCK_TIME, null),
+        WRONG_NUMBER_OF_OUTPUTS(Step.OUTPUT, "Wrong number of outputs. Expected 1.", null),
+        INVALID_OUTPUT_VALUE(Step.OUTPUT, "Invalid value of PoP output. Must be 0", null),
+        INVALID_SCRIPT_LENGTH(Step.OUTPUT, "Invalid script length. Expected 41", null),
+        WRONG_OPCODE(Step.OUTPUT, "Wrong opcode", "Wrong opcode: %s"),
+        WRONG_VERSION(Step.OUTPUT, "Wrong version", "Wrong version: %s %s. Expected 0x01 0x00"),
+        WRONG_NONCE(Step.NONCE, "Wrong nonce", null),
+        /** The nonce is not in the NonceRegistry. It was never issued, has expired or has already been used. */
+        UNKNOWN_NONCE(Step.NONCE, "Unknown nonce", null),
+        /** The pop, or another pop with the same nonce, has already been accepted. See {@link ReplayFilter}. */
+        REPLAYED(Step.NONCE, "Pop has already been used", null),
+        /** The PopRequest registered for the nonce asks for a proof of another transaction. */
+        UNEXPECTED_TRANSACTION(Step.PROVEN_TRANSACTION, "Pop proves another transaction than requested", null),
+        UNKNOWN_TRANSACTION(Step.PROVEN_TRANSACTION, "Unknown transaction", null),
+        WRONG_NUMBER_OF_INPUTS(Step.INPUTS, "Wrong number of inputs", null),
+        MISMATCHING_INPUTS(Step.INPUTS, "Mismatching inputs", null),
+        INVALID_SEQUENCE_NUMBER(Step.INPUTS, "Invalide sequence number. Must be 0.", null),
+        UNKNOWN_INPUT_TRANSACTION(Step.INPUTS, "Could not find input tx", "Could not find input tx: %s"),
+        SIGNATURE_VERIFICATION_FAILED(Step.SIGNATURES, "Signature verification failed", null),
+        /** The validator is overloaded and didn't try to validate the pop. It may be submitted again later. */
+        OVERLOADED(null, "Overloaded, try again later", null),
+        /** Validation could not be completed, for example because the TransactionStore failed. */
+        ERROR(null, "Validation failed", "Validation failed: %s");
+
+        private final Step step;
+        private final String message;
+        private final String detailFormat;
+
+        Code(Step step, String message, String detailFormat) {
+            this.step = step;
+            this.message = message;
+            this.detailFormat = detailFormat;
+        }
+
+        /**
+         * @return the validation step that produces this code, or null for VALID, OVERLOADED and ERROR.
+         */
+        public Step getStep() {
+            return step;
+        }
+    }
+
+    private static final Map<Code, ValidationResult> INVALID_RESULTS = new EnumMap<Code, ValidationResult>(Code.class);
+
+    static {
+        for (Code code : Code.values()) {
+            if (code != Code.VALID) {
+                INVALID_RESULTS.put(code, new ValidationResult(code, null, null, null));
+            }
+        }
+    }
+
+    private final Code code;
+    private final Transaction provenTransaction;
+    private final PopRequest popRequest;
+    private final Object[] detailArgs;
+    private final Throwable cause;
+    private volatile String message;
+
+    private ValidationResult(Code code, Transaction provenTransaction, Object[] detailArgs, Throwable cause) {
+        this(code, provenTransaction, null, detailArgs, cause);
+    }
+
+    private ValidationResult(Code code, Transaction provenTransaction, PopRequest popRequest, Object[] detailArgs,
+                             Throwable cause) {
+        this.code = code;
+        this.provenTransaction = provenTransaction;
+        this.popRequest = popRequest;
+        this.detailArgs = detailArgs;
+        this.cause = cause;
+    }
+
+    static ValidationResult valid(Transaction provenTransaction) {
+        return new ValidationResult(Code.VALID, provenTransaction, null, null);
+    }
+
+    static ValidationResult valid(Transaction provenTransaction, PopRequest popRequest) {
+        return new ValidationResult(Code.VALID, provenTransaction, popRequest, null, null);
+    }
+
+    /**
+     * @return the shared, detail-less result for code.
+     */
+    static ValidationResult invalid(Code code) {
+        return INVALID_RESULTS.get(code);
+    }
+
+    static ValidationResult invalid(Code code, Object... detailArgs) {
+        return new ValidationResult(code, null, detailArgs, null);
+    }
+
+    static ValidationResult invalid(Code code, Throwable cause) {
+        return new ValidationResult(code, null, null, cause);
+    }
+
+    static ValidationResult error(Throwable cause) {
+        return new ValidationResult(Code.ERROR, null, new Object[] {cause.getMessage()}, cause);
+    }
+
+    public boolean isValid() {
+        return code == Code.VALID;
+    }
+
+    public Code getCode() {
+        return code;
+    }
+
+    /**
+     * @return the step that rejected the PoP, or null if the PoP is valid or validation failed with ERROR.
+     */
+    public Step getStep() {
+        return code.getStep();
+    }
+
+    /**
+     * @return the transaction that the PoP proves, or null if the PoP is invalid.
+     */
+    public Transaction getProvenTransaction() {
+        return provenTransaction;
+    }
+
+    /**
+     * @return the PopRequest that the PoP answers, if it was validated against a {@link NonceRegistry}. Null otherwise.
+     */
+    public PopRequest getPopRequest() {
+        return popRequest;
+    }
+
+    /**
+     * @return the underlying exception, if the rejection was caused by one. Null otherwise.
+     */
+    public Throwable getCause() {
+        return cause;
+    }
+
+    /**
+     * @return the reason why the PoP is invalid, or null if the PoP is valid.
+     */
+    public String getMessage() {
+        String result = message;
+        if (result == null && code.message != null) {
+            result = detailArgs == null ? code.message : String.format(code.detailFormat, detailArgs);
+            message = result;
+        }
+        return result;
+    }
+
+    /**
+     * @return an InvalidPopException carrying the message and cause of this result.
+     * @throws IllegalStateException if this result is valid.
+     */
+    public InvalidPopException toException() {
+        if (isValid()) {
+            throw new IllegalStateException("Result is valid");
+        }
+        return new InvalidPopException(getMessage(), cause);
+    }
+
+    @Override
+    public String toString() {
+        return isValid() ? "valid" : code + ": " + getMessage();
+    }
+}
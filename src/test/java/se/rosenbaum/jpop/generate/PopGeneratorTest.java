@@ -5,8 +5,10 @@ import org.bitcoinj.core.Coin;
 import org.bitcoinj.core.ECKey;
 import org.bitcoinj.core.InsufficientMoneyException;
 import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
 import org.bitcoinj.testing.FakeTxBuilder;
 import org.junit.Before;
+import org.spongycastle.crypto.params.KeyParameter;
 import org.junit.Test;
 import se.rosenbaum.jpop.Pop;
 import se.rosenbaum.jpop.PopTestWithWallet;
@@ -14,7 +16,19 @@ import se.rosenbaum.jpop.validate.PopValidator;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class PopGeneratorTest extends PopTestWithWallet {
     PopGenerator sut;
@@ -84,6 +98,119 @@ public class PopGeneratorTest extends PopTestWithWallet {
         createPop(paymentToProve);
     }
 
+    @Test
+    public void testCreatePopSameAsFromRawTransaction() throws Exception {
+        List<Transaction> fundingTransactions = createFundingTransaction(1, 2);
+        Transaction paymentToProve = createPaymentToProve(fundingTransactions, Coin.ZERO, 3);
+        Pop expected = new Pop(params, paymentToProve.bitcoinSerialize(), nonce);
+
+        Pop pop = sut.createPop(paymentToProve, nonce);
+
+        assertArrayEquals(expected.bitcoinSerialize(), pop.bitcoinSerialize());
+        for (int i = 0; i < pop.getInputs().size(); i++) {
+            assertSame(paymentToProve.getInput(i).getConnectedOutput(), pop.getInput(i).getConnectedOutput());
+        }
+    }
+
+    @Test
+    public void testCreatePopOtherVersion() throws Exception, PopSigningException {
+        List<Transaction> fundingTransactions = createFundingTransaction(1, 2);
+        Transaction payment = createPaymentToProve(fundingTransactions, Coin.ZERO, 3);
+        byte[] bytes = payment.bitcoinSerialize();
+        bytes[0] = 2;
+        Transaction paymentToProve = new Transaction(params, bytes);
+        for (int i = 0; i < paymentToProve.getInputs().size(); i++) {
+            Transaction inputTransaction = payment.getInput(i).getConnectedOutput().getParentTransaction();
+            paymentToProve.getInput(i).connect(inputTransaction, TransactionInput.ConnectMode.ABORT_ON_CONFLICT);
+        }
+        assertFalse(Pop.canCopyInputsOf(paymentToProve));
+
+        Pop pop = createPop(paymentToProve);
+
+        assertEquals(2, pop.getVersion());
+        for (TransactionInput input : pop.getInputs()) {
+            input.verify();
+        }
+    }
+
+    @Test
+    public void testSignPopInParallel() throws Exception, PopSigningException {
+        Transaction paymentToProve = createPaymentToProve(createFundingTransaction(1, 2, 3, 4, 5, 6, 7, 8, 9, 10),
+                Coin.ZERO, 50);
+        Pop expected = createPop(paymentToProve);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            sut.setSigningExecutor(executor, 2);
+            Pop pop = createPop(paymentToProve);
+
+            // Signatures are deterministic, so the pop must be exactly as signed by the wallet.
+            assertArrayEquals(expected.bitcoinSerialize(), pop.bitcoinSerialize());
+            popValidator.validatePop(pop, nonce);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSignPopInParallelEncryptedWallet() throws Exception, PopSigningException {
+        Transaction paymentToProve = createPaymentToProve(createFundingTransaction(1, 2, 3), Coin.ZERO, 5);
+        payerWallet.encrypt("password");
+        KeyParameter decryptionKey = payerWallet.getKeyCrypter().deriveKey("password");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            sut.setSigningExecutor(executor, 2);
+            Pop pop = sut.createPop(paymentToProve, nonce);
+            try {
+                sut.signPop(pop, payerWallet, null);
+                fail("Signed without decryption key");
+            } catch (PopSigningException e) {
+                assertTrue(e.isBadDecryptionKey());
+            }
+            sut.signPop(pop, payerWallet, decryptionKey);
+            popValidator.validatePop(pop, nonce);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testCreatePops() throws Exception, PopSigningException {
+        List<Transaction> payments = new ArrayList<Transaction>();
+        List<byte[]> nonces = new ArrayList<byte[]>();
+        for (int i = 0; i < 4; i++) {
+            payments.add(createPaymentToProve(createFundingTransaction(1, 2), Coin.ZERO, 3));
+            nonces.add(nonce);
+        }
+        payments.get(1).getInput(1).disconnect();
+        nonces.set(2, b(1, 2, 3));
+        payments.set(3, null);
+
+        List<PopGenerationResult> results = sut.createPops(payments, nonces);
+
+        assertEquals(4, results.size());
+        assertTrue(results.get(0).isSuccess());
+        assertNull(results.get(0).getException());
+        Pop pop = results.get(0).getPop();
+        sut.signPop(pop, payerWallet, null);
+        popValidator.validatePop(pop, nonce);
+        for (int i = 1; i < 4; i++) {
+            assertFalse(results.get(i).isSuccess());
+            assertNull(results.get(i).getPop());
+            assertNotNull(results.get(i).getException());
+        }
+    }
+
+    @Test
+    public void testCreatePopsEmpty() {
+        assertTrue(sut.createPops(new ArrayList<Transaction>(), new ArrayList<byte[]>()).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreatePopsSizeMismatch() throws Exception {
+        Transaction payment = createPaymentToProve(createFundingTransaction(1, 2), Coin.ZERO, 3);
+        sut.createPops(Collections.singletonList(payment), new ArrayList<byte[]>());
+    }
+
     private Pop createPop(Transaction paymentToProve) throws PopGenerationException, PopSigningException {
         Pop pop = sut.createPop(paymentToProve, nonce);
         sut.signPop(pop, payerWallet, null);
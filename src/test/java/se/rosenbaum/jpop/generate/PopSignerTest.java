@@ -0,0 +1,88 @@
+package se.rosenbaum.jpop.generate;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Transaction;
+import org.junit.Before;
+import org.junit.Test;
+import se.rosenbaum.jpop.Pop;
+import se.rosenbaum.jpop.PopTestWithWallet;
+import se.rosenbaum.jpop.validate.PopValidator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class PopSignerTest extends PopTestWithWallet {
+    private PopGenerator popGenerator;
+    private PopValidator popValidator;
+    private byte[] nonce = b(1, 2, 3, 4, 5, 6);
+    private Transaction paymentToProve;
+
+    @Before
+    public void setup() throws Exception {
+        super.setup();
+        popGenerator = new PopGenerator();
+        popValidator = new PopValidator(new FakeWalletTransactionStore());
+        paymentToProve = createPaymentToProve(createFundingTransaction(1, 2, 3), Coin.ZERO, 5);
+    }
+
+    @Test
+    public void testWalletPopSigner() throws Exception {
+        Pop pop = popGenerator.createPop(paymentToProve, nonce);
+        popGenerator.signPop(pop, new WalletPopSigner(payerWallet, null));
+        popValidator.validatePop(pop, nonce);
+    }
+
+    @Test
+    public void testKeyMapPopSigner() throws Exception {
+        Pop expected = popGenerator.createPop(paymentToProve, nonce);
+        new WalletPopSigner(payerWallet, null).signPop(expected);
+
+        Pop pop = popGenerator.createPop(paymentToProve, nonce);
+        popGenerator.signPop(pop, new KeyMapPopSigner(payerWallet.getIssuedReceiveKeys()));
+
+        assertArrayEquals(expected.bitcoinSerialize(), pop.bitcoinSerialize());
+        popValidator.validatePop(pop, nonce);
+    }
+
+    @Test
+    public void testKeyMapPopSignerConcurrently() throws Exception {
+        final PopSigner signer = new KeyMapPopSigner(payerWallet.getIssuedReceiveKeys());
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Pop>> futures = new ArrayList<Future<Pop>>();
+            for (int i = 0; i < 50; i++) {
+                futures.add(executor.submit(new Callable<Pop>() {
+                    public Pop call() throws Exception {
+                        Pop pop = popGenerator.createPop(paymentToProve, nonce);
+                        signer.signPop(pop);
+                        return pop;
+                    }
+                }));
+            }
+            for (Future<Pop> future : futures) {
+                popValidator.validatePop(future.get(), nonce);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = PopSigningException.class)
+    public void testKeyMapPopSignerMissingKey() throws Exception {
+        Pop pop = popGenerator.createPop(paymentToProve, nonce);
+        new KeyMapPopSigner(Collections.singletonList(new ECKey())).signPop(pop);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testKeyMapPopSignerPublicKeyOnly() {
+        new KeyMapPopSigner(Collections.singletonList(ECKey.fromPublicOnly(new ECKey().getPubKey())));
+    }
+}
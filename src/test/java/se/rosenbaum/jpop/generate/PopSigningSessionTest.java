@@ -0,0 +1,123 @@
+package se.rosenbaum.jpop.generate;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Transaction;
+import org.junit.Before;
+import org.junit.Test;
+import org.spongycastle.crypto.params.KeyParameter;
+import se.rosenbaum.jpop.Pop;
+import se.rosenbaum.jpop.PopTestWithWallet;
+import se.rosenbaum.jpop.validate.PopValidator;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PopSigningSessionTest extends PopTestWithWallet {
+    private PopGenerator popGenerator;
+    private PopValidator popValidator;
+    private byte[] nonce = b(1, 2, 3, 4, 5, 6);
+    private Transaction paymentToProve;
+    private KeyParameter decryptionKey;
+
+    @Before
+    public void setup() throws Exception {
+        super.setup();
+        popGenerator = new PopGenerator();
+        popValidator = new PopValidator(new FakeWalletTransactionStore());
+        paymentToProve = createPaymentToProve(createFundingTransaction(1, 2), Coin.ZERO, 3);
+        payerWallet.encrypt("password");
+        decryptionKey = payerWallet.getKeyCrypter().deriveKey("password");
+    }
+
+    @Test
+    public void testSignSeveralPops() throws Exception {
+        Pop expected = popGenerator.createPop(paymentToProve, nonce);
+        popGenerator.signPop(expected, payerWallet, decryptionKey);
+        PopSigningSession session = popGenerator.openSigningSession(payerWallet, decryptionKey, 1, TimeUnit.MINUTES, 100);
+        try {
+            for (int i = 0; i < 3; i++) {
+                Pop pop = popGenerator.createPop(paymentToProve, nonce);
+                session.signPop(pop);
+                assertArrayEquals(expected.bitcoinSerialize(), pop.bitcoinSerialize());
+                popValidator.validatePop(pop, nonce);
+            }
+            assertTrue(session.isOpen());
+        } finally {
+            session.close();
+        }
+        assertFalse(session.isOpen());
+    }
+
+    @Test
+    public void testSignInParallel() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            popGenerator.setSigningExecutor(executor, 2);
+            PopSigningSession session = popGenerator.openSigningSession(payerWallet, decryptionKey, 1, TimeUnit.MINUTES,
+                    100);
+            Pop pop = popGenerator.createPop(paymentToProve, nonce);
+            session.signPop(pop);
+            session.close();
+            popValidator.validatePop(pop, nonce);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testMissingDecryptionKey() throws Exception {
+        try {
+            popGenerator.openSigningSession(payerWallet, null, 1, TimeUnit.MINUTES, 100);
+            fail("Opened without decryption key");
+        } catch (PopSigningException e) {
+            assertTrue(e.isBadDecryptionKey());
+        }
+    }
+
+    @Test
+    public void testWrongDecryptionKey() throws Exception {
+        try {
+            popGenerator.openSigningSession(payerWallet, payerWallet.getKeyCrypter().deriveKey("wrong"), 1,
+                    TimeUnit.MINUTES, 100);
+            fail("Opened with wrong decryption key");
+        } catch (PopSigningException e) {
+            assertTrue(e.isBadDecryptionKey());
+        }
+    }
+
+    @Test
+    public void testMaxSignatures() throws Exception {
+        PopSigningSession session = popGenerator.openSigningSession(payerWallet, decryptionKey, 1, TimeUnit.MINUTES, 3);
+        session.signPop(popGenerator.createPop(paymentToProve, nonce)); // Two inputs
+        assertTrue(session.isOpen());
+        try {
+            session.signPop(popGenerator.createPop(paymentToProve, nonce));
+            fail("Signed more than allowed");
+        } catch (PopSigningException e) {
+            assertFalse(e.isBadDecryptionKey());
+        }
+        assertFalse(session.isOpen());
+    }
+
+    @Test(expected = PopSigningException.class)
+    public void testExpired() throws Exception {
+        PopSigningSession session = popGenerator.openSigningSession(payerWallet, decryptionKey, 1,
+                TimeUnit.NANOSECONDS, 100);
+        Thread.sleep(1);
+        assertFalse(session.isOpen());
+        session.signPop(popGenerator.createPop(paymentToProve, nonce));
+    }
+
+    @Test(expected = PopSigningException.class)
+    public void testClosed() throws Exception {
+        PopSigningSession session = popGenerator.openSigningSession(payerWallet, decryptionKey, 1, TimeUnit.MINUTES, 100);
+        session.close();
+        session.signPop(popGenerator.createPop(paymentToProve, nonce));
+    }
+}
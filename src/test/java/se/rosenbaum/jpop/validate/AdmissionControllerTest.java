@@ -0,0 +1,90 @@
+package se.rosenbaum.jpop.validate;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AdmissionControllerTest {
+    private long now;
+    private AdmissionController sut;
+
+    @Before
+    public void setup() {
+        sut = new AdmissionController(100, TimeUnit.MILLISECONDS, 10, 20, new Ticker() {
+            public long nanoTime() {
+                return now;
+            }
+        });
+    }
+
+    @Test
+    public void testShedsAtLimit() {
+        List<AdmissionController.Permit> permits = acquire(10);
+        assertNull(sut.tryAcquire());
+        assertEquals(1, sut.getOverloadedCount());
+        assertEquals(10, sut.getInFlight());
+
+        permits.get(0).release();
+        permits.get(0).release(); // Releasing twice has no effect
+        assertEquals(9, sut.getInFlight());
+        assertNotNull(sut.tryAcquire());
+        assertEquals(11, sut.getAdmittedCount());
+    }
+
+    @Test
+    public void testIncreaseWhenFast() {
+        for (int round = 0; round < 50; round++) {
+            for (AdmissionController.Permit permit : acquire(sut.getLimit())) {
+                now += TimeUnit.MILLISECONDS.toNanos(1);
+                permit.release();
+            }
+        }
+        assertEquals(20, sut.getLimit());
+    }
+
+    @Test
+    public void testDecreaseWhenSlow() {
+        List<AdmissionController.Permit> permits = acquire(10);
+        now += TimeUnit.MILLISECONDS.toNanos(200);
+        for (AdmissionController.Permit permit : permits) {
+            permit.release();
+        }
+        // Only one decrease per target latency
+        assertEquals(9, sut.getLimit());
+
+        for (int i = 0; i < 20; i++) {
+            AdmissionController.Permit permit = sut.tryAcquire();
+            now += TimeUnit.MILLISECONDS.toNanos(200);
+            permit.release();
+        }
+        assertEquals(1, sut.getLimit());
+    }
+
+    @Test
+    public void testLatencies() {
+        AdmissionController.Permit permit = sut.tryAcquire();
+        now += TimeUnit.MILLISECONDS.toNanos(40);
+        permit.serviceStarted();
+        now += TimeUnit.MILLISECONDS.toNanos(20);
+        permit.release();
+        assertEquals(2, sut.getAverageQueueLatency(TimeUnit.MILLISECONDS));
+        assertEquals(1, sut.getAverageServiceLatency(TimeUnit.MILLISECONDS));
+        assertTrue(sut.getLimit() >= 10);
+    }
+
+    private List<AdmissionController.Permit> acquire(int count) {
+        List<AdmissionController.Permit> permits = new ArrayList<AdmissionController.Permit>();
+        for (int i = 0; i < count; i++) {
+            permits.add(sut.tryAcquire());
+        }
+        return permits;
+    }
+}
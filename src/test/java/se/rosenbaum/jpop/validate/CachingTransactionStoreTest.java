@@ -0,0 +1,156 @@
+package se.rosenbaum.jpop.validate;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CachingTransactionStoreTest {
+    private NetworkParameters params = UnitTestParams.get();
+    private CountingTransactionStore backend;
+    private Transaction tx1;
+    private Transaction tx2;
+    private Transaction tx3;
+
+    @Before
+    public void setup() {
+        backend = new CountingTransactionStore();
+        tx1 = backend.add(1);
+        tx2 = backend.add(2);
+        tx3 = backend.add(3);
+    }
+
+    @Test
+    public void testHitAndMiss() {
+        CachingTransactionStore sut = new CachingTransactionStore(backend, 100000);
+        assertSame(tx1, sut.getTransaction(tx1.getHash()));
+        assertSame(tx1, sut.getTransaction(tx1.getHash()));
+        assertEquals(1, backend.lookups);
+        assertEquals(1, sut.getHitCount());
+        assertEquals(1, sut.getMissCount());
+        assertEquals(0.5, sut.getHitRatio(), 0.0);
+        assertEquals(1, sut.getLoadCount());
+        assertEquals(tx1.getMessageSize(), sut.getWeightedSize());
+    }
+
+    @Test
+    public void testUnknownNotCached() {
+        CachingTransactionStore sut = new CachingTransactionStore(backend, 100000);
+        Sha256Hash unknown = Sha256Hash.of(new byte[] {1});
+        assertNull(sut.getTransaction(unknown));
+        assertNull(sut.getTransaction(unknown));
+        assertEquals(2, backend.lookups);
+        assertEquals(0, sut.size());
+    }
+
+    @Test
+    public void testBoundedBySize() {
+        // Room for two transactions only
+        CachingTransactionStore sut = new CachingTransactionStore(backend, tx1.getMessageSize() * 2 + 10);
+        sut.getTransaction(tx1.getHash());
+        sut.getTransaction(tx2.getHash());
+        assertEquals(2, sut.size());
+
+        // tx3 is not more popular than tx1, so it's not admitted.
+        sut.getTransaction(tx3.getHash());
+        assertEquals(2, sut.size());
+        assertEquals(1, sut.getRejectionCount());
+
+        // Now it's asked for more often than tx1 and replaces it.
+        sut.getTransaction(tx3.getHash());
+        assertEquals(2, sut.size());
+        assertEquals(1, sut.getEvictionCount());
+        assertTrue(sut.getWeightedSize() <= tx1.getMessageSize() * 2 + 10);
+        int lookups = backend.lookups;
+        sut.getTransaction(tx3.getHash());
+        sut.getTransaction(tx2.getHash());
+        assertEquals(lookups, backend.lookups);
+    }
+
+    @Test
+    public void testGetTransactions() {
+        CachingTransactionStore sut = new CachingTransactionStore(backend, 100000);
+        sut.getTransaction(tx1.getHash());
+        Sha256Hash unknown = Sha256Hash.of(new byte[] {1});
+        Map<Sha256Hash, Transaction> result = sut.getTransactions(Arrays.asList(tx1.getHash(), tx2.getHash(), unknown));
+        assertEquals(2, result.size());
+        assertSame(tx2, result.get(tx2.getHash()));
+        assertEquals(1, backend.multiGets);
+        assertEquals(3, sut.getMissCount());
+        assertEquals(1, sut.getHitCount());
+
+        result = sut.getTransactions(Arrays.asList(tx1.getHash(), tx2.getHash()));
+        assertEquals(2, result.size());
+        assertEquals(1, backend.multiGets);
+    }
+
+    @Test
+    public void testTtl() throws Exception {
+        CachingTransactionStore sut = new CachingTransactionStore(backend, 100000, 1, TimeUnit.MILLISECONDS);
+        sut.getTransaction(tx1.getHash());
+        Thread.sleep(5);
+        sut.getTransaction(tx1.getHash());
+        assertEquals(2, backend.lookups);
+        assertEquals(1, sut.getEvictionCount());
+    }
+
+    private class CountingTransactionStore implements TransactionStore {
+        private Map<Sha256Hash, Transaction> transactions = new HashMap<Sha256Hash, Transaction>();
+        private int lookups;
+        private int multiGets;
+
+        Transaction add(int value) {
+            Transaction tx = FakeTxBuilder.createFakeTx(params, Coin.valueOf(value, 0), new ECKey().toAddress(params));
+            transactions.put(tx.getHash(), tx);
+            return tx;
+        }
+
+        public Transaction getTransaction(Sha256Hash txid) {
+            lookups++;
+            return transactions.get(txid);
+        }
+
+        @Override
+        public Map<Sha256Hash, Transaction> getTransactions(Collection<Sha256Hash> txids) {
+            multiGets++;
+            Map<Sha256Hash, Transaction> result = new HashMap<Sha256Hash, Transaction>();
+            for (Sha256Hash txid : txids) {
+                if (transactions.containsKey(txid)) {
+                    result.put(txid, transactions.get(txid));
+                }
+            }
+            return result;
+        }
+    }
+
+    @Test
+    public void testSketchResistsChosenTxids() {
+        CachingTransactionStore.FrequencySketch sketch = new CachingTransactionStore.FrequencySketch(1 << 16);
+        byte[] victim = new byte[32];
+        for (int i = 0; i < 20; i++) {
+            // Same as the victim except for the last byte
+            byte[] attacker = victim.clone();
+            attacker[31] = (byte) (i + 1);
+            for (int j = 0; j < 10; j++) {
+                sketch.increment(Sha256Hash.wrap(attacker));
+            }
+        }
+        assertTrue(sketch.frequency(Sha256Hash.wrap(victim)) < 10);
+    }
+}
@@ -0,0 +1,176 @@
+package se.rosenbaum.jpop.validate;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.rosenbaum.jpop.Pop;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FileValidationJournalTest {
+    private static final byte[] NONCE = {1, 2, 3, 4, 5, 6};
+    private NetworkParameters params = UnitTestParams.get();
+    private File directory;
+    private FileValidationJournal sut;
+
+    @Before
+    public void setup() throws Exception {
+        directory = Files.createTempDirectory("jpop-journal").toFile();
+        // Small segments to exercise segment rolling
+        sut = open(FileValidationJournal.SyncPolicy.NONE);
+    }
+
+    @After
+    public void tearDown() {
+        sut.close();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testAppendAndRead() throws Exception {
+        List<Pop> pops = new ArrayList<Pop>();
+        for (int i = 0; i < 50; i++) {
+            Pop pop = createPop(i);
+            pops.add(pop);
+            sut.validated(pop, i % 2 == 0 ? ValidationResult.valid(null)
+                    : ValidationResult.invalid(ValidationResult.Code.WRONG_NONCE));
+        }
+        sut.close();
+        assertTrue(FileValidationJournal.segmentFiles(directory).length > 1);
+
+        ValidationJournalReader reader = new ValidationJournalReader(directory);
+        for (int i = 0; i < 50; i++) {
+            ValidationJournalReader.Record record = reader.next();
+            Pop pop = pops.get(i);
+            assertEquals(pop.getHash(), record.getPopHash());
+            assertEquals(i % 2 == 0 ? ValidationResult.Code.VALID : ValidationResult.Code.WRONG_NONCE,
+                    record.getCode());
+            assertEquals(pop, new Pop(params, record.getPopBytes()));
+            assertArrayEquals(NONCE, record.getNonce());
+            assertTrue(record.getTimestamp() > 0);
+        }
+        assertNull(reader.next());
+        reader.close();
+    }
+
+    @Test
+    public void testRejected() throws Exception {
+        byte[] payload = {1, 2, 3};
+        sut.rejected(payload, ValidationResult.invalid(ValidationResult.Code.MALFORMED));
+        List<ValidationJournalReader.Record> records = readAll();
+        assertEquals(1, records.size());
+        ValidationJournalReader.Record record = records.get(0);
+        assertEquals(ValidationResult.Code.MALFORMED, record.getCode());
+        assertArrayEquals(payload, record.getPopBytes());
+        assertEquals(Sha256Hash.wrapReversed(Sha256Hash.hashTwice(payload)), record.getPopHash());
+        assertEquals(Sha256Hash.ZERO_HASH, record.getTxid());
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        sut.validated(createPop(1), ValidationResult.valid(null));
+        sut.close();
+        sut = open(FileValidationJournal.SyncPolicy.ALWAYS);
+        sut.validated(createPop(2), ValidationResult.valid(null));
+        assertEquals(2, readAll().size());
+    }
+
+    @Test
+    public void testTornRecordIsKept() throws Exception {
+        sut.validated(createPop(1), ValidationResult.valid(null));
+        sut.validated(createPop(2), ValidationResult.valid(null));
+        sut.close();
+        File segment = FileValidationJournal.segmentFiles(directory)[0];
+        int secondRecord = FileValidationJournal.SEGMENT_HEADER_SIZE
+                + FileValidationJournal.record(0, createPop(1), ValidationResult.valid(null)).length;
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.seek(secondRecord + 20);
+        file.write(0xFF); // Torn write in the second record
+        file.close();
+
+        sut = open(FileValidationJournal.SyncPolicy.NONE);
+        Pop pop = createPop(3);
+        sut.validated(pop, ValidationResult.valid(null));
+        assertEquals(2, FileValidationJournal.segmentFiles(directory).length);
+        List<ValidationJournalReader.Record> records = readAll();
+        assertEquals(2, records.size());
+        assertEquals(pop.getHash(), records.get(1).getPopHash());
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        sut.close();
+        sut = open(FileValidationJournal.SyncPolicy.ALWAYS);
+        final Pop pop = createPop(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < 200; i++) {
+                futures.add(executor.submit(new Runnable() {
+                    public void run() {
+                        sut.validated(pop, ValidationResult.valid(null));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(200, sut.getAppendedCount());
+        assertTrue(sut.getSyncCount() >= 1 && sut.getSyncCount() <= 200);
+        assertEquals(200, readAll().size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testClosed() throws Exception {
+        sut.close();
+        sut.validated(createPop(1), ValidationResult.valid(null));
+    }
+
+    private FileValidationJournal open(FileValidationJournal.SyncPolicy syncPolicy) throws Exception {
+        return new FileValidationJournal(directory, 2048, syncPolicy, 1, TimeUnit.SECONDS);
+    }
+
+    private List<ValidationJournalReader.Record> readAll() throws Exception {
+        List<ValidationJournalReader.Record> records = new ArrayList<ValidationJournalReader.Record>();
+        ValidationJournalReader reader = new ValidationJournalReader(directory);
+        ValidationJournalReader.Record record;
+        while ((record = reader.next()) != null) {
+            records.add(record);
+        }
+        reader.close();
+        return records;
+    }
+
+    private Pop createPop(int index) {
+        Transaction payment = new Transaction(params);
+        payment.addInput(new TransactionInput(params, payment, new byte[] {(byte) index}));
+        payment.addOutput(Coin.COIN, new ECKey().toAddress(params));
+        return new Pop(params, payment.bitcoinSerialize(), NONCE);
+    }
+}
@@ -0,0 +1,53 @@
+package se.rosenbaum.jpop.validate;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramValidationMetricsTest {
+
+    @Test
+    public void testBuckets() {
+        for (long value : new long[]{0, 1, 3, 4, 5, 7, 8, 9, 100, 1000000, Long.MAX_VALUE / 3, Long.MAX_VALUE}) {
+            int bucket = HistogramValidationMetrics.Histogram.bucket(value);
+            assertTrue(value <= HistogramValidationMetrics.Histogram.upperBound(bucket));
+            if (bucket > 0) {
+                assertTrue(value > HistogramValidationMetrics.Histogram.upperBound(bucket - 1));
+            }
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        HistogramValidationMetrics.Histogram histogram = new HistogramValidationMetrics.Histogram();
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500500, histogram.getSum());
+        assertEquals(500.5, histogram.getMean(), 0);
+        long median = histogram.getValueAtPercentile(50);
+        assertTrue(median >= 500 && median <= 500 * 1.25);
+        long max = histogram.getValueAtPercentile(100);
+        assertTrue(max >= 1000 && max <= 1000 * 1.25);
+        assertEquals(1, histogram.getValueAtPercentile(0));
+    }
+
+    @Test
+    public void testCounters() {
+        HistogramValidationMetrics sut = new HistogramValidationMetrics();
+        sut.validated(ValidationResult.Code.VALID);
+        sut.validated(ValidationResult.Code.VALID);
+        sut.validated(ValidationResult.Code.WRONG_NONCE);
+        sut.stepCompleted(ValidationResult.Step.SIGNATURES, 1000);
+        sut.inputCount(3);
+        assertEquals(2, sut.getCount(ValidationResult.Code.VALID));
+        assertEquals(1, sut.getCount(ValidationResult.Code.WRONG_NONCE));
+        assertEquals(0, sut.getCount(ValidationResult.Code.ERROR));
+        assertEquals(1000, sut.getStepLatencies(ValidationResult.Step.SIGNATURES).getSum());
+        assertEquals(3, sut.getInputCounts().getValueAtPercentile(50));
+        assertTrue(sut.toString().contains("SIGNATURES: n=1"));
+    }
+}
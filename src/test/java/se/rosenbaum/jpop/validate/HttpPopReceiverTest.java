@@ -0,0 +1,218 @@
+package se.rosenbaum.jpop.validate;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.Wallet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.rosenbaum.jpop.Pop;
+import se.rosenbaum.jpop.PopRequest;
+import se.rosenbaum.jpop.PopRequestURI;
+import se.rosenbaum.jpop.PopTestWithWallet;
+import se.rosenbaum.jpop.generate.HttpPopSender;
+import se.rosenbaum.jpop.generate.PopSender;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HttpPopReceiverTest extends PopTestWithWallet {
+    private NonceRegistry nonceRegistry;
+    private PopValidator popValidator;
+    private HttpPopReceiver sut;
+
+    @Before
+    public void setup() throws Exception {
+        super.setup();
+        nonceRegistry = new NonceRegistry(10, TimeUnit.MINUTES);
+        popValidator = new PopValidator(new FakeWalletTransactionStore());
+        popValidator.setNonceRegistry(nonceRegistry);
+        sut = new HttpPopReceiver(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), params, popValidator);
+        sut.setMaxPopSize(1000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sut.close();
+    }
+
+    @Test
+    public void testSendPop() throws Exception {
+        final AtomicInteger accepted = new AtomicInteger();
+        sut.setListener(new HttpPopReceiver.Listener() {
+            public void popAccepted(Pop pop, ValidationResult result) {
+                accepted.incrementAndGet();
+            }
+        });
+        sut.start();
+        List<Transaction> funding = createFundingTransaction(1);
+        Transaction paymentToProve = createPaymentToProve(funding, Coin.ZERO, 1);
+        PopRequest popRequest = new PopRequest();
+        byte[] nonce = nonceRegistry.issueNonce(popRequest);
+        popRequest.setDestination("http://localhost:" + sut.getPort() + "/pop");
+        Pop pop = new Pop(params, paymentToProve.bitcoinSerialize(), nonce);
+        pop.getInput(0).connect(funding.get(0), TransactionInput.ConnectMode.ABORT_ON_CONFLICT);
+        payerWallet.signTransaction(Wallet.SendRequest.forTx(pop));
+
+        HttpPopSender sender = new HttpPopSender(new PopRequestURI(popRequest));
+        sender.sendPop(pop);
+        assertEquals(PopSender.Result.OK, sender.getResult());
+        assertEquals(1, accepted.get());
+
+        sender = new HttpPopSender(new PopRequestURI(popRequest));
+        sender.sendPop(pop);
+        assertEquals(PopSender.Result.INVALID_POP, sender.getResult());
+        assertEquals("Unknown nonce", sender.errorMessage());
+        assertEquals(1, accepted.get());
+    }
+
+    @Test
+    public void testOverloaded() throws Exception {
+        AdmissionController admissionController = new AdmissionController(1, TimeUnit.SECONDS, 1, 1);
+        popValidator.setAdmissionController(admissionController);
+        sut.start();
+        PopRequest popRequest = new PopRequest();
+        nonceRegistry.issueNonce(popRequest);
+        popRequest.setDestination("http://localhost:" + sut.getPort() + "/pop");
+        Pop pop = new Pop(params, createPaymentToProve(createFundingTransaction(1), Coin.ZERO, 1).bitcoinSerialize(),
+                popRequest.getNonce());
+
+        AdmissionController.Permit permit = admissionController.tryAcquire();
+        HttpPopSender sender = new HttpPopSender(new PopRequestURI(popRequest));
+        sender.sendPop(pop);
+        assertEquals(PopSender.Result.OVERLOADED, sender.getResult());
+        permit.release();
+
+        sender = new HttpPopSender(new PopRequestURI(popRequest));
+        sender.sendPop(pop);
+        assertEquals(PopSender.Result.INVALID_POP, sender.getResult());
+        assertEquals(0, admissionController.getInFlight());
+    }
+
+    @Test
+    public void testMalformedPop() throws Exception {
+        final List<byte[]> journaled = new CopyOnWriteArrayList<byte[]>();
+        popValidator.setValidationJournal(new ValidationJournal() {
+            public void validated(Pop pop, ValidationResult result) {
+                throw new AssertionError("Not parsed");
+            }
+
+            public void rejected(byte[] payload, ValidationResult result) {
+                journaled.add(payload);
+            }
+        });
+        sut.start();
+        String response = exchange(post(new byte[]{1, 2, 3}));
+        assertTrue(response.startsWith("HTTP/1.1 200"));
+        assertTrue(response.endsWith("\r\n\r\ninvalid\nMalformed pop"));
+        assertEquals(1, journaled.size());
+        assertArrayEquals(new byte[]{1, 2, 3}, journaled.get(0));
+    }
+
+    @Test
+    public void testTooLarge() throws Exception {
+        sut.start();
+        String header = "POST / HTTP/1.1\r\nContent-Length: 1001\r\n\r\n";
+        assertTrue(exchange(header.getBytes(StandardCharsets.US_ASCII)).startsWith("HTTP/1.1 413"));
+    }
+
+    @Test
+    public void testWrongMethod() throws Exception {
+        sut.start();
+        assertTrue(exchange("GET / HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII)).startsWith("HTTP/1.1 405"));
+    }
+
+    @Test
+    public void testNoContentLength() throws Exception {
+        sut.start();
+        String header = "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n";
+        assertTrue(exchange(header.getBytes(StandardCharsets.US_ASCII)).startsWith("HTTP/1.1 411"));
+    }
+
+    @Test
+    public void testManySlowClients() throws Exception {
+        sut.start();
+        byte[] request = post(new byte[]{1, 2, 3});
+        List<Socket> sockets = new ArrayList<Socket>();
+        try {
+            // All clients are connected at once, each sending its request in two parts.
+            for (int i = 0; i < 500; i++) {
+                Socket socket = new Socket(InetAddress.getLoopbackAddress(), sut.getPort());
+                socket.setSoTimeout(10000);
+                socket.getOutputStream().write(request, 0, 20);
+                sockets.add(socket);
+            }
+            for (Socket socket : sockets) {
+                socket.getOutputStream().write(request, 20, request.length - 20);
+            }
+            for (Socket socket : sockets) {
+                assertTrue(readFully(socket.getInputStream()).endsWith("invalid\nMalformed pop"));
+            }
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    @Test
+    public void testIdleTimeout() throws Exception {
+        sut.setIdleTimeout(100, TimeUnit.MILLISECONDS);
+        sut.start();
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), sut.getPort());
+        try {
+            socket.setSoTimeout(10000);
+            socket.getOutputStream().write("POST / HTTP/1.1\r\n".getBytes(StandardCharsets.US_ASCII));
+            assertEquals(-1, socket.getInputStream().read());
+        } finally {
+            socket.close();
+        }
+    }
+
+    private byte[] post(byte[] body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(("POST /pop HTTP/1.1\r\nHost: localhost\r\nContent-Type: application/bitcoin-pop\r\n"
+                + "Content-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(body);
+        return out.toByteArray();
+    }
+
+    private String exchange(byte[] request) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), sut.getPort());
+        try {
+            socket.setSoTimeout(10000);
+            OutputStream out = socket.getOutputStream();
+            out.write(request);
+            out.flush();
+            return readFully(socket.getInputStream());
+        } finally {
+            socket.close();
+        }
+    }
+
+    private String readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,85 @@
+package se.rosenbaum.jpop.validate;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class InMemoryOutputStoreTest {
+    private NetworkParameters params = UnitTestParams.get();
+    private InMemoryOutputStore sut = new InMemoryOutputStore(params, 4);
+
+    @Test
+    public void testPutAndGet() {
+        List<Transaction> transactions = new ArrayList<Transaction>();
+        for (int i = 0; i < 100; i++) {
+            Transaction tx = FakeTxBuilder.createFakeTx(params, Coin.valueOf(i + 1, 0), new ECKey().toAddress(params));
+            transactions.add(tx);
+            sut.putOutputs(tx);
+        }
+        assertEquals(200, sut.size());
+        for (Transaction tx : transactions) {
+            for (TransactionOutput expected : tx.getOutputs()) {
+                TransactionOutput output = sut.getOutput(new TransactionOutPoint(params, expected.getIndex(), tx.getHash()));
+                assertEquals(expected.getValue(), output.getValue());
+                assertArrayEquals(expected.getScriptBytes(), output.getScriptBytes());
+            }
+        }
+        Transaction tx = transactions.get(0);
+        assertNull(sut.getOutput(new TransactionOutPoint(params, 2, tx.getHash())));
+        assertNull(sut.getOutput(new TransactionOutPoint(params, 0, Sha256Hash.of(new byte[] {1}))));
+    }
+
+    @Test
+    public void testReplace() {
+        Transaction tx = FakeTxBuilder.createFakeTx(params, Coin.COIN, new ECKey().toAddress(params));
+        TransactionOutPoint outPoint = new TransactionOutPoint(params, 0, tx.getHash());
+        sut.putOutput(outPoint, tx.getOutput(0));
+        sut.putOutput(outPoint, tx.getOutput(1));
+        assertEquals(1, sut.size());
+        assertEquals(tx.getOutput(1).getValue(), sut.getOutput(outPoint).getValue());
+    }
+
+    @Test
+    public void testReplaceInPlace() {
+        Transaction tx = FakeTxBuilder.createFakeTx(params, Coin.COIN, new ECKey().toAddress(params));
+        TransactionOutPoint outPoint = new TransactionOutPoint(params, 0, tx.getHash());
+        sut.putOutput(outPoint, tx.getOutput(0));
+        TransactionOutput shorter = new TransactionOutput(params, null, Coin.CENT, new byte[] {0x51});
+        sut.putOutput(outPoint, shorter);
+        TransactionOutput output = sut.getOutput(outPoint);
+        assertEquals(Coin.CENT, output.getValue());
+        assertArrayEquals(new byte[] {0x51}, output.getScriptBytes());
+    }
+
+    @Test
+    public void testRepeatedReplaceIsBounded() {
+        Transaction tx = FakeTxBuilder.createFakeTx(params, Coin.COIN, new ECKey().toAddress(params));
+        TransactionOutPoint outPoint = new TransactionOutPoint(params, 0, tx.getHash());
+        TransactionOutPoint other = new TransactionOutPoint(params, 1, tx.getHash());
+        sut.putOutput(other, tx.getOutput(1));
+        for (int i = 1; i <= 10000; i++) {
+            // Most scripts are one byte longer than the last, so they do not fit in the old slot.
+            sut.putOutput(outPoint, new TransactionOutput(params, null, Coin.valueOf(i), new byte[i % 1000 + 1]));
+        }
+        assertEquals(2, sut.size());
+        assertTrue(sut.scriptCapacity() < 16 * 1024);
+        assertEquals(Coin.valueOf(10000), sut.getOutput(outPoint).getValue());
+        assertEquals(1, sut.getOutput(outPoint).getScriptBytes().length);
+        assertArrayEquals(tx.getOutput(1).getScriptBytes(), sut.getOutput(other).getScriptBytes());
+    }
+}
@@ -0,0 +1,154 @@
+package se.rosenbaum.jpop.validate;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MappedTransactionStoreTest {
+    private NetworkParameters params = UnitTestParams.get();
+    private File directory;
+    private MappedTransactionStore sut;
+
+    @Before
+    public void setup() throws Exception {
+        directory = Files.createTempDirectory("jpop-store").toFile();
+        // Small segments and index to exercise segment rolling and index growth
+        sut = new MappedTransactionStore(params, directory, 1024, 4);
+    }
+
+    @After
+    public void tearDown() {
+        sut.close();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testPutAndGet() throws Exception {
+        Transaction tx = createTransaction(1);
+        assertTrue(sut.putTransaction(tx));
+        assertFalse(sut.putTransaction(tx));
+        assertEquals(1, sut.size());
+        assertEquals(tx, sut.getTransaction(tx.getHash()));
+        ByteBuffer raw = sut.getRawTransaction(tx.getHash());
+        byte[] bytes = new byte[raw.remaining()];
+        raw.get(bytes);
+        assertArrayEquals(tx.bitcoinSerialize(), bytes);
+        assertNull(sut.getTransaction(Sha256Hash.of(new byte[] {1})));
+    }
+
+    @Test
+    public void testManyTransactionsAndReopen() throws Exception {
+        List<Transaction> transactions = new ArrayList<Transaction>();
+        for (int i = 0; i < 50; i++) {
+            Transaction tx = createTransaction(i + 1);
+            transactions.add(tx);
+            sut.putTransaction(tx);
+        }
+        assertTrue(directory.listFiles().length > 2);
+        for (Transaction tx : transactions) {
+            assertEquals(tx.getHash(), sut.getTransaction(tx.getHash()).getHash());
+        }
+
+        sut.close();
+        sut = new MappedTransactionStore(params, directory);
+        assertEquals(50, sut.size());
+        for (Transaction tx : transactions) {
+            assertEquals(tx.getHash(), sut.getTransaction(tx.getHash()).getHash());
+        }
+        Transaction tx = createTransaction(51);
+        assertTrue(sut.putTransaction(tx));
+        assertEquals(tx.getHash(), sut.getTransaction(tx.getHash()).getHash());
+    }
+
+    @Test
+    public void testSlotLeftByCrash() throws Exception {
+        Transaction tx1 = createTransaction(1);
+        Transaction tx2 = createTransaction(2);
+        sut.putTransaction(tx1);
+        sut.putTransaction(tx2);
+        sut.close();
+        // As if the slot of tx2 reached the disk, but not the header with the new write position
+        RandomAccessFile indexFile = new RandomAccessFile(new File(directory, "index.dat"), "rw");
+        try {
+            indexFile.seek(28);
+            indexFile.writeInt(4 + tx1.bitcoinSerialize().length);
+        } finally {
+            indexFile.close();
+        }
+
+        sut = new MappedTransactionStore(params, directory);
+        assertEquals(tx1.getHash(), sut.getTransaction(tx1.getHash()).getHash());
+        assertNull(sut.getTransaction(tx2.getHash()));
+        assertTrue(sut.putTransaction(tx2));
+        assertEquals(tx2.getHash(), sut.getTransaction(tx2.getHash()).getHash());
+        assertEquals(2, sut.size());
+    }
+
+    @Test
+    public void testProbingSeedIsKept() throws Exception {
+        long seed = readSeed(directory);
+        File otherDirectory = Files.createTempDirectory("jpop-store").toFile();
+        try {
+            new MappedTransactionStore(params, otherDirectory, 1024, 4).close();
+            assertFalse(seed == readSeed(otherDirectory));
+        } finally {
+            for (File file : otherDirectory.listFiles()) {
+                file.delete();
+            }
+            otherDirectory.delete();
+        }
+
+        Transaction tx = createTransaction(1);
+        sut.putTransaction(tx);
+        sut.close();
+        sut = new MappedTransactionStore(params, directory);
+        assertEquals(seed, readSeed(directory));
+        assertEquals(tx.getHash(), sut.getTransaction(tx.getHash()).getHash());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTransactionTooLarge() throws Exception {
+        Transaction tx = createTransaction(1);
+        for (int i = 0; i < 40; i++) {
+            tx.addOutput(Coin.CENT, new ECKey().toAddress(params));
+        }
+        sut.putTransaction(tx);
+    }
+
+    private static long readSeed(File directory) throws Exception {
+        RandomAccessFile indexFile = new RandomAccessFile(new File(directory, "index.dat"), "r");
+        try {
+            indexFile.seek(32);
+            return indexFile.readLong();
+        } finally {
+            indexFile.close();
+        }
+    }
+
+    private Transaction createTransaction(int value) {
+        return FakeTxBuilder.createFakeTx(params, Coin.valueOf(value, 0), new ECKey().toAddress(params));
+    }
+}
@@ -0,0 +1,130 @@
+package se.rosenbaum.jpop.validate;
+
+import org.junit.Before;
+import org.junit.Test;
+import se.rosenbaum.jpop.PopRequest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class NonceRegistryTest {
+    private long now;
+    private NonceRegistry sut;
+
+    @Before
+    public void setup() {
+        now = -TimeUnit.HOURS.toNanos(1); // System.nanoTime() may be negative
+        sut = new NonceRegistry(60, TimeUnit.SECONDS, new Ticker() {
+            public long nanoTime() {
+                return now;
+            }
+        });
+    }
+
+    @Test
+    public void testIssueGetConsume() {
+        PopRequest request = new PopRequest();
+        byte[] nonce = sut.issueNonce(request);
+        assertEquals(6, nonce.length);
+        assertArrayEquals(nonce, request.getNonce());
+        assertSame(request, sut.get(nonce));
+        assertSame(request, sut.get(nonce.clone()));
+        assertEquals(1, sut.size());
+
+        assertSame(request, sut.consume(nonce));
+        assertNull(sut.get(nonce));
+        assertNull(sut.consume(nonce));
+        assertEquals(0, sut.size());
+    }
+
+    @Test
+    public void testReserve() {
+        PopRequest request = new PopRequest();
+        byte[] nonce = sut.issueNonce(request);
+        assertSame(request, sut.reserve(nonce));
+        assertNull(sut.reserve(nonce));
+        assertNull(sut.consume(nonce));
+        sut.release(nonce);
+        assertSame(request, sut.reserve(nonce));
+        sut.commit(nonce);
+        assertNull(sut.get(nonce));
+        assertEquals(0, sut.size());
+    }
+
+    @Test
+    public void testInvalidNonce() {
+        assertNull(sut.get(null));
+        assertNull(sut.get(new byte[5]));
+        assertNull(sut.get(new byte[6]));
+        assertNull(sut.consume(new byte[]{1, 2, 3, 4, 5, 6}));
+    }
+
+    @Test
+    public void testExpiry() {
+        PopRequest request = new PopRequest();
+        byte[] nonce = sut.issueNonce(request);
+        now += TimeUnit.SECONDS.toNanos(59);
+        assertSame(request, sut.get(nonce));
+
+        now += TimeUnit.SECONDS.toNanos(2);
+        assertNull(sut.get(nonce));
+        assertNull(sut.consume(nonce));
+    }
+
+    @Test
+    public void testExpireRemovesEntries() {
+        for (int i = 0; i < 100; i++) {
+            sut.issueNonce(new PopRequest());
+        }
+        now += TimeUnit.SECONDS.toNanos(30);
+        byte[] late = sut.issueNonce(new PopRequest());
+        assertEquals(101, sut.size());
+
+        now += TimeUnit.SECONDS.toNanos(31);
+        sut.expire();
+        assertEquals(1, sut.size());
+        assertNotNull(sut.get(late));
+
+        // Jump far beyond the validity period
+        now += TimeUnit.HOURS.toNanos(5);
+        sut.expire();
+        assertEquals(0, sut.size());
+    }
+
+    @Test
+    public void testManyEntries() {
+        List<byte[]> nonces = new ArrayList<byte[]>();
+        List<PopRequest> requests = new ArrayList<PopRequest>();
+        for (int i = 0; i < 20000; i++) {
+            PopRequest request = new PopRequest();
+            requests.add(request);
+            nonces.add(sut.issueNonce(request));
+        }
+        assertEquals(20000, sut.size());
+
+        // Remove every third to exercise deletion within probe sequences
+        for (int i = 0; i < nonces.size(); i += 3) {
+            assertSame(requests.get(i), sut.consume(nonces.get(i)));
+        }
+        for (int i = 0; i < nonces.size(); i++) {
+            if (i % 3 == 0) {
+                assertNull(sut.get(nonces.get(i)));
+            } else {
+                assertSame(requests.get(i), sut.get(nonces.get(i)));
+            }
+        }
+    }
+
+    @Test
+    public void testToLong() {
+        assertEquals(0x010203040506L, NonceRegistry.toLong(new byte[]{1, 2, 3, 4, 5, 6}));
+        assertEquals(0xffffffffffffL, NonceRegistry.toLong(PopValidatorTest.MAX_NONCE));
+    }
+}
@@ -0,0 +1,89 @@
+package se.rosenbaum.jpop.validate;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.Wallet;
+import org.junit.Before;
+import org.junit.Test;
+import se.rosenbaum.jpop.Pop;
+import se.rosenbaum.jpop.PopTestWithWallet;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PopPrefilterTest extends PopTestWithWallet {
+    private byte[] nonce = b(1, 2, 3, 4, 5, 6);
+    private Transaction paymentToProve;
+    private Pop pop;
+
+    @Before
+    public void setup() throws Exception {
+        super.setup();
+        List<Transaction> fundingTransactions = createFundingTransaction(1, 2);
+        paymentToProve = createPaymentToProve(fundingTransactions, Coin.ZERO, 3);
+        pop = new Pop(params, paymentToProve.bitcoinSerialize(), nonce);
+        payerWallet.signTransaction(Wallet.SendRequest.forTx(pop));
+    }
+
+    @Test
+    public void testAccepted() {
+        PopPrefilter.Result result = PopPrefilter.check(pop.bitcoinSerialize(), nonce);
+        assertTrue(result.isAccepted());
+        assertEquals(paymentToProve.getHash(), result.getProvenTxid());
+        assertArrayEquals(nonce, result.getNonce());
+    }
+
+    @Test
+    public void testAcceptedWithoutNonceCheckInLargerBuffer() {
+        byte[] bytes = pop.bitcoinSerialize();
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 20);
+        buffer.position(10);
+        buffer.put(bytes);
+        buffer.position(10);
+        buffer.limit(10 + bytes.length);
+        PopPrefilter.Result result = PopPrefilter.check(buffer, null);
+        assertTrue(result.isAccepted());
+        assertEquals(10, buffer.position());
+    }
+
+    @Test
+    public void testRejections() {
+        byte[] bytes = pop.bitcoinSerialize();
+        assertCode(ValidationResult.Code.WRONG_NONCE, PopPrefilter.check(bytes, b(1, 2, 3, 4, 5, 7)));
+        assertCode(ValidationResult.Code.MALFORMED, PopPrefilter.check(Arrays.copyOf(bytes, bytes.length - 1), nonce));
+        assertCode(ValidationResult.Code.MALFORMED, PopPrefilter.check(Arrays.copyOf(bytes, bytes.length + 1), nonce));
+        assertCode(ValidationResult.Code.MALFORMED, PopPrefilter.check(new byte[0], nonce));
+
+        Pop modified = new Pop(params, bytes);
+        modified.setLockTime(0);
+        assertCode(ValidationResult.Code.INVALID_LOCK_TIME, PopPrefilter.check(modified.bitcoinSerialize(), nonce));
+
+        modified = new Pop(params, bytes);
+        modified.getInput(1).setSequenceNumber(1);
+        assertCode(ValidationResult.Code.INVALID_SEQUENCE_NUMBER, PopPrefilter.check(modified.bitcoinSerialize(), nonce));
+
+        modified = new Pop(params, bytes);
+        modified.getOutput(0).setValue(Coin.SATOSHI);
+        assertCode(ValidationResult.Code.INVALID_OUTPUT_VALUE, PopPrefilter.check(modified.bitcoinSerialize(), nonce));
+
+        modified = new Pop(params, bytes);
+        modified.addOutput(Coin.ZERO, wallet.currentReceiveAddress());
+        assertCode(ValidationResult.Code.WRONG_NUMBER_OF_OUTPUTS, PopPrefilter.check(modified.bitcoinSerialize(), nonce));
+    }
+
+    @Test
+    public void testRejectionsArePreallocated() {
+        byte[] bytes = pop.bitcoinSerialize();
+        assertSame(PopPrefilter.check(bytes, b(0, 0, 0, 0, 0, 0)), PopPrefilter.check(bytes, b(0, 0, 0, 0, 0, 1)));
+    }
+
+    private void assertCode(ValidationResult.Code expected, PopPrefilter.Result result) {
+        assertEquals(expected, result.getRejection().getCode());
+    }
+}
@@ -0,0 +1,125 @@
+package se.rosenbaum.jpop.validate;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.Wallet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.rosenbaum.jpop.Pop;
+import se.rosenbaum.jpop.PopTestWithWallet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PopValidationPipelineTest extends PopTestWithWallet {
+    private final byte[] nonce = b(1, 2, 3, 4, 5, 6);
+    private final CountDownLatch storeOpen = new CountDownLatch(1);
+    private Pop pop;
+    private PopValidationPipeline sut;
+
+    @Before
+    public void setup() throws Exception {
+        super.setup();
+        List<Transaction> funding = createFundingTransaction(1);
+        Transaction paymentToProve = createPaymentToProve(funding, Coin.ZERO, 1);
+        pop = new Pop(params, paymentToProve.bitcoinSerialize(), nonce);
+        pop.getInput(0).connect(funding.get(0), TransactionInput.ConnectMode.ABORT_ON_CONFLICT);
+        payerWallet.signTransaction(Wallet.SendRequest.forTx(pop));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        storeOpen.countDown();
+        sut.shutdown();
+    }
+
+    @Test
+    public void testValidate() throws Exception {
+        sut = new PopValidationPipeline(params, new PopValidator(new FakeWalletTransactionStore()));
+        storeOpen.countDown();
+        assertTrue(sut.submit(pop, nonce).toCompletableFuture().get().isValid());
+        assertTrue(sut.submit(pop.bitcoinSerialize(), nonce).toCompletableFuture().get().isValid());
+        assertEquals(ValidationResult.Code.WRONG_NONCE,
+                sut.submit(pop, b(1, 2, 3, 4, 5, 7)).toCompletableFuture().get().getCode());
+        assertEquals(ValidationResult.Code.MALFORMED,
+                sut.submit(new byte[]{1, 2, 3}, nonce).toCompletableFuture().get().getCode());
+    }
+
+    @Test
+    public void testMalformedPopIsJournaled() throws Exception {
+        final List<ValidationResult.Code> journaled = new CopyOnWriteArrayList<ValidationResult.Code>();
+        PopValidator popValidator = new PopValidator(new FakeWalletTransactionStore());
+        popValidator.setValidationJournal(new ValidationJournal() {
+            public void validated(Pop pop, ValidationResult result) {
+                journaled.add(result.getCode());
+            }
+
+            public void rejected(byte[] payload, ValidationResult result) {
+                journaled.add(result.getCode());
+            }
+        });
+        sut = new PopValidationPipeline(params, popValidator);
+        storeOpen.countDown();
+        sut.submit(new byte[]{1, 2, 3}, nonce).toCompletableFuture().get();
+        assertTrue(sut.submit(pop.bitcoinSerialize(), nonce).toCompletableFuture().get().isValid());
+        assertEquals(2, journaled.size());
+        assertEquals(ValidationResult.Code.MALFORMED, journaled.get(0));
+        assertEquals(ValidationResult.Code.VALID, journaled.get(1));
+    }
+
+    @Test
+    public void testUnknownTransaction() throws Exception {
+        sut = new PopValidationPipeline(params, new PopValidator(new TransactionStore() {
+            public Transaction getTransaction(Sha256Hash txid) {
+                return null;
+            }
+        }));
+        assertEquals(ValidationResult.Code.UNKNOWN_TRANSACTION,
+                sut.submit(pop, nonce).toCompletableFuture().get().getCode());
+    }
+
+    @Test
+    public void testRejectsWhenFull() throws Exception {
+        final FakeWalletTransactionStore store = new FakeWalletTransactionStore();
+        sut = new PopValidationPipeline(params, new PopValidator(new TransactionStore() {
+            public Transaction getTransaction(Sha256Hash txid) {
+                try {
+                    storeOpen.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return store.getTransaction(txid);
+            }
+        }), 1, 1, 1, 1);
+
+        // With the store blocked, at most 4 pops fit: one in each of the check and lookup threads and queues.
+        List<CompletableFuture<ValidationResult>> results = new ArrayList<CompletableFuture<ValidationResult>>();
+        for (int i = 0; i < 10; i++) {
+            results.add(sut.submit(pop, nonce).toCompletableFuture());
+        }
+        assertTrue(sut.getRejectedCount() >= 6);
+
+        storeOpen.countDown();
+        int valid = 0;
+        for (CompletableFuture<ValidationResult> result : results) {
+            try {
+                assertTrue(result.get().isValid());
+                valid++;
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+        }
+        assertEquals(10 - sut.getRejectedCount(), valid);
+    }
+}
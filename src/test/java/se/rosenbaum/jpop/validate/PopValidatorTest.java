@@ -1,28 +1,50 @@
 package se.rosenbaum.jpop.validate;
 
 import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
 import org.bitcoinj.core.InsufficientMoneyException;
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
 import org.bitcoinj.core.TransactionOutput;
 import org.bitcoinj.core.Utils;
+import org.bitcoinj.core.VarInt;
+import org.bitcoinj.crypto.TransactionSignature;
 import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
 import org.bitcoinj.script.ScriptChunk;
 import org.bitcoinj.script.ScriptOpCodes;
 import org.junit.Before;
 import org.junit.Test;
 import se.rosenbaum.jpop.Pop;
+import se.rosenbaum.jpop.PopRequest;
 import se.rosenbaum.jpop.PopTestWithWallet;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.bitcoinj.core.Wallet.SendRequest;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class PopValidatorTest extends PopTestWithWallet {
     public static final byte[] MAX_NONCE = bLength(6, 0xFF);
@@ -174,6 +196,604 @@ public class PopValidatorTest extends PopTestWithWallet {
         validatePop(pop);
     }
 
+    @Test
+    public void testValidateAll() throws Exception {
+        List<Pop> pops = new ArrayList<Pop>();
+        List<byte[]> nonces = new ArrayList<byte[]>();
+        for (int i = 0; i < 4; i++) {
+            Pop pop = getPop(1, Coin.ZERO, 1);
+            signPop(pop);
+            pops.add(pop);
+            nonces.add(b(0, 0, 0, 0, 0, 19));
+        }
+        pops.get(1).setLockTime(0);
+        nonces.set(2, b(0, 0, 0, 0, 0, 18));
+        pops.add(null);
+        nonces.add(b(0, 0, 0, 0, 0, 19));
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            sut.setBatchExecutor(executor);
+            List<ValidationResult> results = sut.validateAll(pops, nonces);
+            assertEquals(5, results.size());
+            assertTrue(results.get(0).isValid());
+            assertNull(results.get(0).getMessage());
+            assertEquals(ValidationResult.Code.INVALID_LOCK_TIME, results.get(1).getCode());
+            assertNull(results.get(1).getProvenTransaction());
+            assertFalse(results.get(2).isValid());
+            assertEquals(ValidationResult.Code.WRONG_NONCE, results.get(2).getCode());
+            assertTrue(results.get(3).isValid());
+            assertEquals(pops.get(3).getInput(0).getOutpoint().getHash(),
+                    results.get(3).getProvenTransaction().getInput(0).getOutpoint().getHash());
+            assertFalse(results.get(4).isValid());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testValidateResultCodes() throws Exception {
+        Pop pop = getPop(1, Coin.ZERO, 1);
+        signPop(pop);
+        ValidationResult result = sut.validate(pop, b(0, 0, 0, 0, 0, 19));
+        assertTrue(result.isValid());
+        assertEquals(ValidationResult.Code.VALID, result.getCode());
+
+        result = sut.validate(pop, b(0, 0, 0, 0, 0, 18));
+        assertEquals(ValidationResult.Code.WRONG_NONCE, result.getCode());
+        assertEquals(ValidationResult.Step.NONCE, result.getStep());
+        assertSame(result, sut.validate(pop, b(0, 0, 0, 0, 0, 17)));
+
+        result = sut.validate(null, null);
+        assertEquals(ValidationResult.Code.NULL_POP, result.getCode());
+        assertEquals("Pop is null", result.getMessage());
+    }
+
+    @Test
+    public void testValidateResultDetail() throws Exception {
+        Pop pop = getPop(1, Coin.ZERO, 1);
+        pop.getOutput(0).getScriptBytes()[2] = 7;
+        signPop(pop);
+        ValidationResult result = sut.validate(pop, b(0, 0, 0, 0, 0, 19));
+        assertEquals(ValidationResult.Code.WRONG_VERSION, result.getCode());
+        assertEquals(ValidationResult.Step.OUTPUT, result.getStep());
+        assertEquals("Wrong version: 1 7. Expected 0x01 0x00", result.getMessage());
+        assertEquals(result.getMessage(), result.toException().getMessage());
+    }
+
+    @Test
+    public void testSignatureCache() throws Exception {
+        SignatureCache cache = new SignatureCache(10);
+        sut.setSignatureCache(cache);
+        Pop pop = getPop(new int[]{1, 2}, Coin.ZERO, 3);
+        signPop(pop);
+        validatePop(pop);
+        assertEquals(0, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(2, cache.size());
+
+        validatePop(pop);
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testSignatureCacheDoesNotHideChangedSignature() throws Exception {
+        SignatureCache cache = new SignatureCache(10);
+        sut.setSignatureCache(cache);
+        Pop pop = getPop(1, Coin.ZERO, 1);
+        signPop(pop);
+        validatePop(pop);
+
+        Pop tampered = new Pop(params, pop.bitcoinSerialize());
+        List<ScriptChunk> chunks = tampered.getInput(0).getScriptSig().getChunks();
+        byte[] signature = chunks.get(0).data.clone();
+        signature[20]++; // Mess up the signature
+        tampered.getInput(0).setScriptSig(new Script(Script.createInputScript(signature, chunks.get(1).data)));
+        assertEquals(ValidationResult.Code.SIGNATURE_VERIFICATION_FAILED,
+                sut.validate(tampered, b(0, 0, 0, 0, 0, 19)).getCode());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testMalformedScriptSig() throws Exception {
+        Pop pop = getPop(1, Coin.ZERO, 1);
+        // A push of more data than there is in the script
+        byte[] popBytes = withScriptSig(pop, b(0x4c, 0xff));
+        Pop malformed = new Pop(params, popBytes);
+        assertEquals(ValidationResult.Code.SIGNATURE_VERIFICATION_FAILED,
+                sut.validate(malformed, b(0, 0, 0, 0, 0, 19)).getCode());
+        try {
+            sut.validatePop(new Pop(params, popBytes), b(0, 0, 0, 0, 0, 19));
+            fail("Expected InvalidPopException");
+        } catch (InvalidPopException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testSignatureCacheEviction() throws Exception {
+        SignatureCache cache = new SignatureCache(2);
+        sut.setSignatureCache(cache);
+        for (int i = 0; i < 3; i++) {
+            Pop pop = getPop(1, Coin.ZERO, 1);
+            signPop(pop);
+            validatePop(pop);
+        }
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testParallelInputVerification() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            sut.setInputVerificationExecutor(executor, 2);
+            Pop pop = getPop(new int[]{1, 2, 3, 4, 5}, Coin.ZERO, 15);
+            signPop(pop);
+            validatePop(pop);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testParallelInputVerificationBadSignature() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            sut.setInputVerificationExecutor(executor, 2);
+            Pop pop = getPop(new int[]{1, 2, 3, 4, 5}, Coin.ZERO, 15);
+            signPop(pop);
+            // Set the tampered script, the parsed scriptSig is only weakly referenced by the input
+            List<ScriptChunk> chunks = pop.getInput(3).getScriptSig().getChunks();
+            byte[] signature = chunks.get(0).data.clone();
+            signature[20]++; // Mess up the signature
+            pop.getInput(3).setScriptSig(new Script(Script.createInputScript(signature, chunks.get(1).data)));
+            ValidationResult result = sut.validate(pop, b(0, 0, 0, 0, 0, 19));
+            assertEquals(ValidationResult.Code.SIGNATURE_VERIFICATION_FAILED, result.getCode());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testParallelInputVerificationUnexpectedFailure() throws Exception {
+        Pop pop = getPop(new int[]{1, 2, 3, 4, 5}, Coin.ZERO, 15);
+        signPop(pop);
+        final InMemoryOutputStore outputStore = new InMemoryOutputStore(params);
+        for (Transaction transaction : payerWallet.getTransactions(false)) {
+            outputStore.putOutputs(transaction);
+        }
+        final Thread caller = Thread.currentThread();
+        final CountDownLatch helperFailed = new CountDownLatch(1);
+        sut.setOutputStore(new OutputStore() {
+            public TransactionOutput getOutput(TransactionOutPoint outPoint) {
+                final TransactionOutput output = outputStore.getOutput(outPoint);
+                return new TransactionOutput(params, null, output.getValue(), output.getScriptBytes()) {
+                    @Override
+                    public byte[] getScriptBytes() {
+                        if (Thread.currentThread() != caller) {
+                            helperFailed.countDown();
+                            throw new IllegalStateException("Unexpected");
+                        }
+                        try {
+                            // Let a helper fail before the calling thread is done
+                            helperFailed.await(10, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            throw new RuntimeException(e);
+                        }
+                        return output.getScriptBytes();
+                    }
+                };
+            }
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            sut.setInputVerificationExecutor(executor, 2);
+            ValidationResult result = sut.validate(pop, b(0, 0, 0, 0, 0, 19));
+            assertEquals(ValidationResult.Code.ERROR, result.getCode());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testValidateAsync() throws Exception {
+        final ExecutorService ioExecutor = Executors.newFixedThreadPool(2);
+        try {
+            final TransactionStore store = new FakeWalletTransactionStore();
+            sut = new PopValidator(new AsyncTransactionStore() {
+                public CompletableFuture<Transaction> getTransaction(final Sha256Hash txid) {
+                    return CompletableFuture.supplyAsync(() -> store.getTransaction(txid), ioExecutor);
+                }
+            });
+            Pop pop = getPop(new int[]{1, 2}, Coin.ZERO, 3);
+            signPop(pop);
+            ValidationResult result = sut.validateAsync(pop, b(0, 0, 0, 0, 0, 19)).get();
+            assertTrue(result.isValid());
+
+            result = sut.validateAsync(pop, b(0, 0, 0, 0, 0, 18)).get();
+            assertEquals(ValidationResult.Code.WRONG_NONCE, result.getCode());
+
+            // The blocking methods work too
+            validatePop(pop);
+        } finally {
+            ioExecutor.shutdown();
+        }
+    }
+
+    @Test
+    public void testValidateAsyncUnknownTransaction() throws Exception {
+        Pop pop = getPop(1, Coin.ZERO, 1);
+        pop.clearOutputs();
+        pop.addOutput(createPopOutput(Sha256Hash.create(b(1)), 19));
+        signPop(pop);
+        ValidationResult result = sut.validateAsync(pop, b(0, 0, 0, 0, 0, 19)).get();
+        assertEquals(ValidationResult.Code.UNKNOWN_TRANSACTION, result.getCode());
+    }
+
+    @Test
+    public void testValidateAsyncStoreFailure() throws Exception {
+        sut = new PopValidator(new AsyncTransactionStore() {
+            public CompletableFuture<Transaction> getTransaction(Sha256Hash txid) {
+                CompletableFuture<Transaction> future = new CompletableFuture<Transaction>();
+                future.completeExceptionally(new IllegalStateException("Backend down"));
+                return future;
+            }
+        });
+        Pop pop = getPop(1, Coin.ZERO, 1);
+        signPop(pop);
+        ValidationResult result = sut.validateAsync(pop, b(0, 0, 0, 0, 0, 19)).get();
+        assertEquals(ValidationResult.Code.ERROR, result.getCode());
+        assertEquals("Validation failed: Backend down", result.getMessage());
+    }
+
+    @Test
+    public void testInputTransactionsFetchedInOneCall() throws Exception {
+        final List<Collection<Sha256Hash>> multiGets = new ArrayList<Collection<Sha256Hash>>();
+        sut = new PopValidator(new FakeWalletTransactionStore() {
+            @Override
+            public Map<Sha256Hash, Transaction> getTransactions(Collection<Sha256Hash> txids) {
+                multiGets.add(new ArrayList<Sha256Hash>(txids));
+                return super.getTransactions(txids);
+            }
+        });
+        Pop pop = getPop(new int[]{1, 2}, Coin.ZERO, 3);
+        signPop(pop);
+        // A freshly received pop has no connected inputs
+        Pop receivedPop = new Pop(params, pop.bitcoinSerialize());
+        validatePop(receivedPop);
+        assertEquals(1, multiGets.size());
+        assertEquals(2, multiGets.get(0).size());
+    }
+
+    @Test
+    public void testValidateWithOutputStore() throws Exception {
+        Pop pop = getPop(new int[]{1, 2}, Coin.ZERO, 3);
+        signPop(pop);
+        InMemoryOutputStore outputStore = new InMemoryOutputStore(params);
+        for (Transaction transaction : payerWallet.getTransactions(false)) {
+            outputStore.putOutputs(transaction);
+        }
+        sut.setOutputStore(outputStore);
+
+        Pop receivedPop = new Pop(params, pop.bitcoinSerialize());
+        validatePop(receivedPop);
+        assertNull(receivedPop.getInput(0).getConnectedOutput());
+        assertTrue(sut.validateAsync(receivedPop, b(0, 0, 0, 0, 0, 19)).get().isValid());
+
+        sut.setOutputStore(new InMemoryOutputStore(params));
+        ValidationResult result = sut.validate(receivedPop, b(0, 0, 0, 0, 0, 19));
+        assertEquals(ValidationResult.Code.UNKNOWN_INPUT_TRANSACTION, result.getCode());
+    }
+
+    @Test
+    public void testParallelInputVerificationMixedScripts() throws Exception {
+        // The script interpreter computes the signature hash of pay-to-pubkey and SIGHASH_NONE inputs by temporarily
+        // blanking the scripts of all inputs of the transaction.
+        final Map<Sha256Hash, Transaction> transactions = new HashMap<Sha256Hash, Transaction>();
+        List<ECKey> keys = new ArrayList<ECKey>();
+        List<TransactionOutput> spentOutputs = new ArrayList<TransactionOutput>();
+        Transaction payment = new Transaction(params);
+        for (int i = 0; i < 30; i++) {
+            ECKey key = new ECKey();
+            keys.add(key);
+            Transaction funding = new Transaction(params);
+            funding.addInput(new TransactionInput(params, funding, new byte[] {(byte) i}));
+            if (i % 3 == 0) {
+                funding.addOutput(new TransactionOutput(params, funding, Coin.COIN, key));
+            } else {
+                funding.addOutput(Coin.COIN, key.toAddress(params));
+            }
+            transactions.put(funding.getHash(), funding);
+            spentOutputs.add(funding.getOutput(0));
+            payment.addInput(funding.getOutput(0));
+        }
+        payment.addOutput(Coin.COIN, new ECKey().toAddress(params));
+        transactions.put(payment.getHash(), payment);
+        Pop pop = new Pop(params, payment.bitcoinSerialize(), b(0, 0, 0, 0, 0, 19));
+        for (int i = 0; i < keys.size(); i++) {
+            Transaction.SigHash sigHash = i % 3 == 1 ? Transaction.SigHash.NONE : Transaction.SigHash.ALL;
+            TransactionSignature signature = pop.calculateSignature(i, keys.get(i),
+                    spentOutputs.get(i).getScriptPubKey(), sigHash, false);
+            pop.getInput(i).setScriptSig(i % 3 == 0
+                    ? ScriptBuilder.createInputScript(signature)
+                    : ScriptBuilder.createInputScript(signature, keys.get(i)));
+        }
+        sut = new PopValidator(new TransactionStore() {
+            public Transaction getTransaction(Sha256Hash txid) {
+                return transactions.get(txid);
+            }
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            sut.setInputVerificationExecutor(executor, 2);
+            byte[] popBytes = pop.bitcoinSerialize();
+            for (int i = 0; i < 20; i++) {
+                ValidationResult result = sut.validate(new Pop(params, popBytes), b(0, 0, 0, 0, 0, 19));
+                assertTrue(result.getMessage(), result.isValid());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testConcurrentValidationLeavesStoreUntouched() throws Exception {
+        Pop pop = getPop(new int[]{1, 2, 3}, Coin.ZERO, 6);
+        signPop(pop);
+        // Unconnected copies, shared by all validations
+        final Map<Sha256Hash, Transaction> transactions = new HashMap<Sha256Hash, Transaction>();
+        for (Transaction transaction : payerWallet.getTransactions(false)) {
+            transactions.put(transaction.getHash(), new Transaction(params, transaction.bitcoinSerialize()));
+        }
+        sut = new PopValidator(new TransactionStore() {
+            public Transaction getTransaction(Sha256Hash txid) {
+                return transactions.get(txid);
+            }
+        });
+        final byte[] popBytes = pop.bitcoinSerialize();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<ValidationResult>> results = new ArrayList<Future<ValidationResult>>();
+            for (int i = 0; i < 200; i++) {
+                results.add(executor.submit(new Callable<ValidationResult>() {
+                    public ValidationResult call() {
+                        return sut.validate(new Pop(params, popBytes), b(0, 0, 0, 0, 0, 19));
+                    }
+                }));
+            }
+            for (Future<ValidationResult> result : results) {
+                assertTrue(result.get().isValid());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        for (Transaction transaction : transactions.values()) {
+            for (TransactionInput input : transaction.getInputs()) {
+                assertNull(input.getConnectedOutput());
+            }
+            for (TransactionOutput output : transaction.getOutputs()) {
+                assertNull(output.getSpentBy());
+            }
+        }
+        Pop receivedPop = new Pop(params, popBytes);
+        validatePop(receivedPop);
+        assertNull(receivedPop.getInput(0).getConnectedOutput());
+    }
+
+    @Test
+    public void testValidateWithNonceRegistry() throws Exception {
+        NonceRegistry nonceRegistry = new NonceRegistry(10, TimeUnit.MINUTES);
+        sut.setNonceRegistry(nonceRegistry);
+        Pop pop = getPop(1, Coin.ZERO, 1);
+        PopRequest popRequest = new PopRequest();
+        popRequest.setTxid(provenTxid(pop));
+        byte[] nonce = nonceRegistry.issueNonce(popRequest);
+        System.arraycopy(nonce, 0, pop.getOutput(0).getScriptBytes(), 35, 6);
+        signPop(pop);
+
+        ValidationResult result = sut.validate(pop);
+        assertTrue(result.isValid());
+        assertSame(popRequest, result.getPopRequest());
+        assertEquals(0, nonceRegistry.size());
+
+        // The nonce can only be used once
+        assertEquals(ValidationResult.Code.UNKNOWN_NONCE, sut.validate(pop).getCode());
+    }
+
+    @Test
+    public void testValidateWithNonceRegistryUnknownNonce() throws Exception {
+        NonceRegistry nonceRegistry = new NonceRegistry(10, TimeUnit.MINUTES);
+        sut.setNonceRegistry(nonceRegistry);
+        Pop pop = getPop(1, Coin.ZERO, 1);
+        signPop(pop);
+        assertEquals(ValidationResult.Code.UNKNOWN_NONCE, sut.validate(pop).getCode());
+    }
+
+    @Test
+    public void testValidateWithNonceRegistryUnexpectedTransaction() throws Exception {
+        NonceRegistry nonceRegistry = new NonceRegistry(10, TimeUnit.MINUTES);
+        sut.setNonceRegistry(nonceRegistry);
+        Pop pop = getPop(1, Coin.ZERO, 1);
+        PopRequest popRequest = new PopRequest();
+        popRequest.setTxid(Sha256Hash.ZERO_HASH);
+        byte[] nonce = nonceRegistry.issueNonce(popRequest);
+        System.arraycopy(nonce, 0, pop.getOutput(0).getScriptBytes(), 35, 6);
+        signPop(pop);
+
+        assertEquals(ValidationResult.Code.UNEXPECTED_TRANSACTION, sut.validate(pop).getCode());
+        assertEquals(1, nonceRegistry.size());
+    }
+
+    @Test
+    public void testValidateWithNonceRegistryInvalidPopKeepsNonce() throws Exception {
+        NonceRegistry nonceRegistry = new NonceRegistry(10, TimeUnit.MINUTES);
+        sut.setNonceRegistry(nonceRegistry);
+        Pop pop = getPop(1, Coin.ZERO, 1);
+        byte[] nonce = nonceRegistry.issueNonce(new PopRequest());
+        System.arraycopy(nonce, 0, pop.getOutput(0).getScriptBytes(), 35, 6);
+        signPop(pop);
+        Pop badPop = new Pop(params, pop.bitcoinSerialize());
+        badPop.getInput(0).setSequenceNumber(1);
+
+        assertFalse(sut.validate(badPop).isValid());
+        assertTrue(sut.validate(pop).isValid());
+    }
+
+    @Test
+    public void testReplayFilter() throws Exception {
+        sut.setReplayFilter(new ReplayFilter(10, TimeUnit.MINUTES, 4, 64 * 1024));
+        Pop pop = getPop(1, Coin.ZERO, 1);
+        signPop(pop);
+        byte[] nonce = b(0, 0, 0, 0, 0, 19);
+        assertTrue(sut.validate(pop, nonce).isValid());
+        assertEquals(ValidationResult.Code.REPLAYED, sut.validate(pop, nonce).getCode());
+        assertEquals(ValidationResult.Code.REPLAYED, sut.validateAsync(pop, nonce).get().getCode());
+    }
+
+    @Test
+    public void testOverloaded() throws Exception {
+        AdmissionController admissionController = new AdmissionController(1, TimeUnit.SECONDS, 1, 1);
+        sut.setAdmissionController(admissionController);
+        Pop pop = getPop(1, Coin.ZERO, 1);
+        signPop(pop);
+        byte[] nonce = b(0, 0, 0, 0, 0, 19);
+        assertTrue(sut.validate(pop, nonce).isValid());
+
+        AdmissionController.Permit permit = admissionController.tryAcquire();
+        assertEquals(ValidationResult.Code.OVERLOADED, sut.validate(pop, nonce).getCode());
+        assertEquals(ValidationResult.Code.OVERLOADED, sut.validateAsync(pop, nonce).get().getCode());
+        permit.release();
+        assertTrue(sut.validateAsync(pop, nonce).get().isValid());
+        assertEquals(0, admissionController.getInFlight());
+    }
+
+    @Test
+    public void testValidationMetrics() throws Exception {
+        HistogramValidationMetrics metrics = new HistogramValidationMetrics();
+        sut.setValidationMetrics(metrics);
+        Pop pop = getPop(new int[]{1, 2}, Coin.ZERO, 3);
+        signPop(pop);
+        assertTrue(sut.validate(pop, b(0, 0, 0, 0, 0, 19)).isValid());
+        assertEquals(ValidationResult.Code.WRONG_NONCE, sut.validate(pop, b(0, 0, 0, 0, 0, 18)).getCode());
+        assertTrue(sut.validateAsync(pop, b(0, 0, 0, 0, 0, 19)).get().isValid());
+
+        assertEquals(2, metrics.getCount(ValidationResult.Code.VALID));
+        assertEquals(1, metrics.getCount(ValidationResult.Code.WRONG_NONCE));
+        for (ValidationResult.Step step : ValidationResult.Step.values()) {
+            long expected = step.compareTo(ValidationResult.Step.NONCE) <= 0 ? 3 : 2;
+            assertEquals(step.toString(), expected, metrics.getStepLatencies(step).getCount());
+        }
+        assertEquals(2, metrics.getInputCounts().getCount());
+        assertEquals(2, metrics.getInputCounts().getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testValidationJournal() throws Exception {
+        final List<ValidationResult.Code> journaled = new ArrayList<ValidationResult.Code>();
+        sut.setValidationJournal(new ValidationJournal() {
+            public void validated(Pop pop, ValidationResult result) {
+                journaled.add(result.getCode());
+            }
+
+            public void rejected(byte[] payload, ValidationResult result) {
+                journaled.add(result.getCode());
+            }
+        });
+        Pop pop = getPop(1, Coin.ZERO, 1);
+        signPop(pop);
+        assertTrue(sut.validate(pop, b(0, 0, 0, 0, 0, 19)).isValid());
+        assertEquals(ValidationResult.Code.WRONG_NONCE, sut.validate(pop, b(0, 0, 0, 0, 0, 18)).getCode());
+        assertTrue(sut.validateAsync(pop, b(0, 0, 0, 0, 0, 19)).get().isValid());
+        sut.validate(null, b(0, 0, 0, 0, 0, 19));
+        assertEquals(3, journaled.size());
+        assertEquals(ValidationResult.Code.WRONG_NONCE, journaled.get(1));
+
+        // A pop that can't be journaled is not accepted
+        sut.setValidationJournal(new ValidationJournal() {
+            public void validated(Pop pop, ValidationResult result) {
+                throw new IllegalStateException("Disk full");
+            }
+
+            public void rejected(byte[] payload, ValidationResult result) {
+                throw new IllegalStateException("Disk full");
+            }
+        });
+        assertEquals(ValidationResult.Code.ERROR, sut.validate(pop, b(0, 0, 0, 0, 0, 19)).getCode());
+        try {
+            sut.validatePop(pop, b(0, 0, 0, 0, 0, 19));
+            fail("Expected PopValidationException");
+        } catch (PopValidationException e) {
+            assertEquals("Disk full", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testValidationJournalFailureCanBeRetried() throws Exception {
+        NonceRegistry nonceRegistry = new NonceRegistry(10, TimeUnit.MINUTES);
+        sut.setNonceRegistry(nonceRegistry);
+        sut.setReplayFilter(new ReplayFilter(10, TimeUnit.MINUTES, 4, 64 * 1024));
+        final List<ValidationResult.Code> journaled = new ArrayList<ValidationResult.Code>();
+        final AtomicBoolean fail = new AtomicBoolean(true);
+        sut.setValidationJournal(new ValidationJournal() {
+            public void validated(Pop pop, ValidationResult result) {
+                if (fail.getAndSet(false)) {
+                    throw new IllegalStateException("Disk full");
+                }
+                journaled.add(result.getCode());
+            }
+
+            public void rejected(byte[] payload, ValidationResult result) {
+                journaled.add(result.getCode());
+            }
+        });
+        Pop pop = getPop(1, Coin.ZERO, 1);
+        byte[] nonce = nonceRegistry.issueNonce(new PopRequest());
+        System.arraycopy(nonce, 0, pop.getOutput(0).getScriptBytes(), 35, 6);
+        signPop(pop);
+
+        // The failed pop keeps its nonce and isn't remembered as accepted
+        assertEquals(ValidationResult.Code.ERROR, sut.validate(pop).getCode());
+        assertEquals(1, nonceRegistry.size());
+        assertTrue(journaled.isEmpty());
+
+        assertTrue(sut.validate(pop).isValid());
+        assertEquals(0, nonceRegistry.size());
+        assertEquals(1, journaled.size());
+        assertEquals(ValidationResult.Code.VALID, journaled.get(0));
+
+        // The same goes for pops validated against a given nonce
+        fail.set(true);
+        Pop other = getPop(1, Coin.ZERO, 1);
+        signPop(other);
+        assertEquals(ValidationResult.Code.ERROR, sut.validate(other, b(0, 0, 0, 0, 0, 19)).getCode());
+        assertTrue(sut.validate(other, b(0, 0, 0, 0, 0, 19)).isValid());
+        assertEquals(ValidationResult.Code.REPLAYED, sut.validate(other, b(0, 0, 0, 0, 0, 19)).getCode());
+
+        // Every pop is journaled once, with its final result
+        assertEquals(3, journaled.size());
+        assertEquals(ValidationResult.Code.VALID, journaled.get(1));
+        assertEquals(ValidationResult.Code.REPLAYED, journaled.get(2));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testValidateWithoutNonceRegistry() throws Exception {
+        sut.validate(getPop(1, Coin.ZERO, 1));
+    }
+
+    private Sha256Hash provenTxid(Pop pop) {
+        byte[] txid = new byte[32];
+        System.arraycopy(pop.getOutput(0).getScriptBytes(), 3, txid, 0, 32);
+        return new Sha256Hash(txid);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testValidateAllSizeMismatch() throws Exception {
+        List<Pop> pops = new ArrayList<Pop>();
+        pops.add(getPop(1, Coin.ZERO, 1));
+        sut.validateAll(pops, new ArrayList<byte[]>());
+    }
+
     private Pop getPop(int[] fundingValue, Coin fee, int... outputValues) throws InsufficientMoneyException, IOException {
         List<Transaction> fundingTransactions = createFundingTransaction(fundingValue);
         Transaction paymentToProve = createPaymentToProve(fundingTransactions, fee, outputValues);
@@ -343,6 +963,23 @@ public class PopValidatorTest extends PopTestWithWallet {
         }
     }
 
+    /**
+     * @return the serialized single input pop with scriptSig as the raw script of its input.
+     */
+    private byte[] withScriptSig(Pop pop, byte[] scriptSig) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Utils.uint32ToByteStreamLE(pop.getVersion(), out);
+        out.write(new VarInt(1).encode());
+        out.write(pop.getInput(0).getOutpoint().bitcoinSerialize());
+        out.write(new VarInt(scriptSig.length).encode());
+        out.write(scriptSig);
+        Utils.uint32ToByteStreamLE(pop.getInput(0).getSequenceNumber(), out);
+        out.write(new VarInt(1).encode());
+        out.write(pop.getOutput(0).bitcoinSerialize());
+        Utils.uint32ToByteStreamLE(pop.getLockTime(), out);
+        return out.toByteArray();
+    }
+
     private void signPop(Pop pop) {
         payerWallet.signTransaction(SendRequest.forTx(pop));
     }
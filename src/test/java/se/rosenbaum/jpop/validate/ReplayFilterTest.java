@@ -0,0 +1,125 @@
+package se.rosenbaum.jpop.validate;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReplayFilterTest {
+    private long now;
+    private ReplayFilter sut;
+
+    @Before
+    public void setup() {
+        now = -TimeUnit.HOURS.toNanos(1);
+        sut = newFilter(1024 * 1024);
+    }
+
+    @Test
+    public void testRejectsSamePop() {
+        assertTrue(sut.accept(hash(1), nonce(1)));
+        assertFalse(sut.accept(hash(1), nonce(1)));
+        assertEquals(2, sut.getCheckCount());
+        assertEquals(1, sut.getReplayCount());
+    }
+
+    @Test
+    public void testRejectsSameNonce() {
+        assertTrue(sut.accept(hash(1), nonce(1)));
+        assertFalse(sut.accept(hash(2), nonce(1)));
+    }
+
+    @Test
+    public void testRejectsSamePopHash() {
+        assertTrue(sut.accept(hash(1), nonce(1)));
+        assertFalse(sut.accept(hash(1), nonce(2)));
+    }
+
+    @Test
+    public void testReserve() {
+        assertTrue(sut.reserve(hash(1), nonce(1)));
+        assertFalse(sut.accept(hash(1), nonce(2)));
+        assertFalse(sut.accept(hash(2), nonce(1)));
+        sut.release(hash(1), nonce(1));
+        assertTrue(sut.reserve(hash(1), nonce(1)));
+        sut.record(hash(1), nonce(1));
+        assertFalse(sut.accept(hash(1), nonce(1)));
+        assertTrue(sut.accept(hash(2), nonce(2)));
+    }
+
+    @Test
+    public void testAcceptsDistinctPops() {
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(sut.accept(hash(i), nonce(i)));
+        }
+        assertEquals(0, sut.getProbableHitCount());
+    }
+
+    @Test
+    public void testRetention() {
+        assertTrue(sut.accept(hash(1), nonce(1)));
+        now += TimeUnit.MINUTES.toNanos(10);
+        assertFalse(sut.accept(hash(1), nonce(1)));
+
+        // Forgotten after retention plus one window
+        now += TimeUnit.MINUTES.toNanos(5);
+        assertTrue(sut.accept(hash(1), nonce(1)));
+    }
+
+    @Test
+    public void testReplayCheckOnProbableHit() {
+        final int[] calls = {0};
+        ReplayFilter tiny = newFilter(32);
+        tiny.setReplayCheck(new ReplayCheck() {
+            public boolean isAccepted(Sha256Hash popHash, byte[] nonce) {
+                calls[0]++;
+                return false;
+            }
+        });
+        for (int i = 0; i < 200; i++) {
+            assertTrue(tiny.accept(hash(i), nonce(i)));
+        }
+        assertTrue(calls[0] > 0);
+        assertEquals(calls[0], tiny.getFalsePositiveCount());
+        assertEquals(calls[0], tiny.getProbableHitCount());
+        assertEquals(0, tiny.getReplayCount());
+        assertTrue(tiny.getObservedFalsePositiveRate() > 0.5);
+        assertTrue(tiny.getEstimatedFalsePositiveRate() > 0.5);
+    }
+
+    @Test
+    public void testEstimatedFalsePositiveRate() {
+        assertEquals(0, sut.getEstimatedFalsePositiveRate(), 0);
+        for (int i = 0; i < 1000; i++) {
+            sut.accept(hash(i), nonce(i));
+        }
+        double rate = sut.getEstimatedFalsePositiveRate();
+        assertTrue(rate > 0 && rate < 1e-6);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooLittleMemory() {
+        newFilter(8);
+    }
+
+    private ReplayFilter newFilter(long maxBytes) {
+        return new ReplayFilter(10, TimeUnit.MINUTES, 3, maxBytes, new Ticker() {
+            public long nanoTime() {
+                return now;
+            }
+        });
+    }
+
+    private static Sha256Hash hash(int i) {
+        return Sha256Hash.create(new byte[]{(byte) (i >> 8), (byte) i});
+    }
+
+    private static byte[] nonce(int i) {
+        return new byte[]{0, 0, 0, 0, (byte) (i >> 8), (byte) i};
+    }
+}
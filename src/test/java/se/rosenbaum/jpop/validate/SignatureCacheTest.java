@@ -0,0 +1,51 @@
+package se.rosenbaum.jpop.validate;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SignatureCacheTest {
+
+    @Test
+    public void testEvictsOldest() {
+        SignatureCache sut = new SignatureCache(3);
+        for (int i = 0; i < 5; i++) {
+            sut.add(key(i));
+        }
+        assertEquals(3, sut.size());
+        assertFalse(sut.contains(key(0)));
+        assertFalse(sut.contains(key(1)));
+        assertTrue(sut.contains(key(2)));
+        assertTrue(sut.contains(key(3)));
+        assertTrue(sut.contains(key(4)));
+    }
+
+    @Test
+    public void testAddTwice() {
+        SignatureCache sut = new SignatureCache(2);
+        sut.add(key(0));
+        sut.add(key(0));
+        sut.add(key(1));
+        assertEquals(2, sut.size());
+        assertTrue(sut.contains(key(0)));
+        assertTrue(sut.contains(key(1)));
+    }
+
+    @Test
+    public void testManyAddsToFullCache() {
+        SignatureCache sut = new SignatureCache(100000);
+        for (int i = 0; i < 1000000; i++) {
+            sut.add(key(i));
+        }
+        assertEquals(100000, sut.size());
+        assertTrue(sut.contains(key(999999)));
+        assertFalse(sut.contains(key(899999)));
+    }
+
+    private Sha256Hash key(int i) {
+        return Sha256Hash.of(new byte[]{(byte) i, (byte) (i >> 8), (byte) (i >> 16), (byte) (i >> 24)});
+    }
+}